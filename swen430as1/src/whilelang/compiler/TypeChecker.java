@@ -323,11 +323,16 @@ public class TypeChecker {
 		case SUB:
 		case DIV:
 		case MUL:
-		case REM:
-			// Check arguments have int type
-			checkInstanceOf(leftType,expr.getLhs(),Type.Int.class,Type.Real.class);
-			checkInstanceOf(rightType,expr.getRhs(),Type.Int.class,Type.Real.class);
+		case REM: {
+			// Check arguments have int or real type
+			Type lhs = checkInstanceOf(leftType,expr.getLhs(),Type.Int.class,Type.Real.class);
+			Type rhs = checkInstanceOf(rightType,expr.getRhs(),Type.Int.class,Type.Real.class);
+			// An int operand is widened if the other is real
+			if(lhs instanceof Type.Int && rhs instanceof Type.Real) {
+				return rightType;
+			}
 			return leftType;
+		}
 		case EQ:
 		case NEQ:
 			// FIXME: we could do better here by making sure one of the
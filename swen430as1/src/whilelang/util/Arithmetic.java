@@ -0,0 +1,228 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import whilelang.ast.Expr;
+
+/**
+ * <p>
+ * Implements the arithmetic and comparison operators over <code>int</code> and
+ * <code>real</code> values, which are represented by <code>Integer</code> and
+ * <code>Double</code> objects respectively. There are three implementations of
+ * each operator: one specialised for when both operands are known to be
+ * <code>int</code>, one specialised for when either operand is known to be
+ * <code>real</code>, and a generic one which decides between these based on the
+ * operand values themselves. The interpreter selects the appropriate
+ * implementation for an expression once, based on the static types of its
+ * operands.
+ * </p>
+ *
+ * <p>
+ * The specialised implementations operate on unboxed <code>int</code> or
+ * <code>double</code> values. In the <code>real</code> case, an
+ * <code>int</code> operand is widened directly as it is unboxed. Comparisons
+ * compare the primitive values, rather than using <code>compareTo()</code>, and
+ * so produce (cached) <code>Boolean</code> values without allocating.
+ * </p>
+ */
+public abstract class Arithmetic {
+	protected final Expr.BOp op;
+
+	private Arithmetic(Expr.BOp op) {
+		this.op = op;
+	}
+
+	/**
+	 * Apply this operator to a given pair of operands.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	public abstract Object apply(Object lhs, Object rhs);
+
+	private static final Arithmetic[] INTS = new Arithmetic[Expr.BOp.values().length];
+	private static final Arithmetic[] REALS = new Arithmetic[Expr.BOp.values().length];
+	private static final Arithmetic[] GENERIC = new Arithmetic[Expr.BOp.values().length];
+
+	static {
+		for (Expr.BOp op : Expr.BOp.values()) {
+			INTS[op.ordinal()] = new Ints(op);
+			REALS[op.ordinal()] = new Reals(op);
+			GENERIC[op.ordinal()] = new Generic(op);
+		}
+	}
+
+	/**
+	 * Get the implementation of an operator for when both operands are
+	 * <code>int</code>.
+	 *
+	 * @param op
+	 * @return
+	 */
+	public static Arithmetic ints(Expr.BOp op) {
+		return INTS[op.ordinal()];
+	}
+
+	/**
+	 * Get the implementation of an operator for when either operand is
+	 * <code>real</code>.
+	 *
+	 * @param op
+	 * @return
+	 */
+	public static Arithmetic reals(Expr.BOp op) {
+		return REALS[op.ordinal()];
+	}
+
+	/**
+	 * Get the implementation of an operator for when the types of its operands
+	 * are not known.
+	 *
+	 * @param op
+	 * @return
+	 */
+	public static Arithmetic generic(Expr.BOp op) {
+		return GENERIC[op.ordinal()];
+	}
+
+	private static final class Ints extends Arithmetic {
+		public Ints(Expr.BOp op) {
+			super(op);
+		}
+
+		@Override
+		public Object apply(Object lhs, Object rhs) {
+			if (lhs instanceof Integer && rhs instanceof Integer) {
+				return compute(op, ((Integer) lhs).intValue(), ((Integer) rhs).intValue());
+			}
+			return GENERIC[op.ordinal()].apply(lhs, rhs);
+		}
+	}
+
+	private static final class Reals extends Arithmetic {
+		public Reals(Expr.BOp op) {
+			super(op);
+		}
+
+		@Override
+		public Object apply(Object lhs, Object rhs) {
+			return compute(op, ((Number) lhs).doubleValue(), ((Number) rhs).doubleValue());
+		}
+	}
+
+	private static final class Generic extends Arithmetic {
+		public Generic(Expr.BOp op) {
+			super(op);
+		}
+
+		@Override
+		public Object apply(Object lhs, Object rhs) {
+			if (lhs instanceof Double || rhs instanceof Double) {
+				return compute(op, ((Number) lhs).doubleValue(), ((Number) rhs).doubleValue());
+			} else {
+				return compute(op, intValue(lhs), intValue(rhs));
+			}
+		}
+
+		/**
+		 * Unbox an <code>int</code> value. Character literals have type
+		 * <code>int</code>, but are represented by <code>Character</code>
+		 * objects.
+		 *
+		 * @param value
+		 * @return
+		 */
+		private static int intValue(Object value) {
+			if (value instanceof Character) {
+				return (Character) value;
+			}
+			return ((Number) value).intValue();
+		}
+	}
+
+	private static Object compute(Expr.BOp op, int lhs, int rhs) {
+		switch (op) {
+		case ADD:
+			return lhs + rhs;
+		case SUB:
+			return lhs - rhs;
+		case MUL:
+			return lhs * rhs;
+		case DIV:
+			checkDivisor(rhs);
+			return lhs / rhs;
+		case REM:
+			checkDivisor(rhs);
+			return lhs % rhs;
+		case EQ:
+			return lhs == rhs;
+		case NEQ:
+			return lhs != rhs;
+		case LT:
+			return lhs < rhs;
+		case LTEQ:
+			return lhs <= rhs;
+		case GT:
+			return lhs > rhs;
+		case GTEQ:
+			return lhs >= rhs;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Check that the divisor of an integer division or remainder is non-zero.
+	 *
+	 * @param rhs
+	 */
+	private static void checkDivisor(int rhs) {
+		if (rhs == 0) {
+			throw WhileException.error(WhileException.DIVIDE_BY_ZERO, "/ by zero");
+		}
+	}
+
+	private static Object compute(Expr.BOp op, double lhs, double rhs) {
+		switch (op) {
+		case ADD:
+			return lhs + rhs;
+		case SUB:
+			return lhs - rhs;
+		case MUL:
+			return lhs * rhs;
+		case DIV:
+			return lhs / rhs;
+		case REM:
+			return lhs % rhs;
+		case EQ:
+			return lhs == rhs;
+		case NEQ:
+			return lhs != rhs;
+		case LT:
+			return lhs < rhs;
+		case LTEQ:
+			return lhs <= rhs;
+		case GT:
+			return lhs > rhs;
+		case GTEQ:
+			return lhs >= rhs;
+		default:
+			return null;
+		}
+	}
+}
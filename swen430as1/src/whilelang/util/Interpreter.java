@@ -23,9 +23,12 @@ import static whilelang.util.SyntaxError.internalFailure;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
+import whilelang.ast.Attribute;
 import whilelang.ast.Expr;
 import whilelang.ast.Stmt;
 import whilelang.ast.Type;
@@ -44,6 +47,10 @@ import whilelang.compiler.TypeChecker;
 public class Interpreter {
 	private HashMap<String, WhileFile.Decl> declarations;
 	private WhileFile file;
+	private IdentityHashMap<Expr.Binary, Arithmetic> arithmetic;
+	private IdentityHashMap<Stmt.TryCatch, Handler[]> handlers;
+	private IdentityHashMap<Stmt.ForEach, Iteration> iterations;
+	private TypeChecker checker;
 
 	public void run(WhileFile wf) {
 		// First, initialise the map of declaration names to their bodies.
@@ -52,6 +59,10 @@ public class Interpreter {
 			declarations.put(decl.name(), decl);
 		}
 		this.file = wf;
+		this.arithmetic = new IdentityHashMap<Expr.Binary, Arithmetic>();
+		this.handlers = new IdentityHashMap<Stmt.TryCatch, Handler[]>();
+		this.iterations = new IdentityHashMap<Stmt.ForEach, Iteration>();
+		this.checker = new TypeChecker();
 
 		// Second, pick the main method (if one exits) and execute it
 		WhileFile.Decl main = declarations.get("main");
@@ -152,7 +163,7 @@ public class Interpreter {
 	private Object execute(Stmt.Assert stmt, HashMap<String,Object> frame) {
 		boolean b = (Boolean) execute(stmt.getExpr(),frame);
 		if(!b) {
-			throw new RuntimeException("assertion failure");
+			throw WhileException.error(WhileException.ASSERTION_FAILURE, "assertion failure");
 		}
 		return null;
 	}
@@ -176,6 +187,7 @@ public class Interpreter {
 			Expr.IndexOf io = (Expr.IndexOf) lhs;
 			ArrayList<Object> src = (ArrayList) execute(io.getSource(),frame);
 			Integer idx = (Integer) execute(io.getIndex(),frame);
+			checkIndex(idx,src.size());
 			Object rhs = execute(stmt.getRhs(),frame);
 			// We need to perform a deep clone here to ensure the value
 			// semantics used in While are preserved.
@@ -207,10 +219,17 @@ public class Interpreter {
 		execute(stmt.getDeclaration(),frame);
 		Expr expr = stmt.getCollection_values();
 		Object collection = execute(expr,frame);
+		Iteration iteration = iteration(stmt);
+		if(iteration.copySource) {
+			collection = deepClone(collection);
+		}
 		if(collection instanceof List){
 			List list = (List)collection;
+			String var = stmt.getDeclaration().getName();
 			for(int i=0;i<list.size();i++){
-				frame.put(stmt.getDeclaration().getName(),list.get(i));
+				// Elements are only copied if the body may update them in place.
+				Object element = list.get(i);
+				frame.put(var,iteration.copyElements ? deepClone(element) : element);
 				Object ret = execute(stmt.getBody(),frame);
 				if(ret == BREAK_CONSTANT) {
 					break;
@@ -224,6 +243,122 @@ public class Interpreter {
 		return null;
 	}
 
+	/**
+	 * Get the iteration strategy for a given for-each loop. This is determined
+	 * the first time the loop is executed.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private Iteration iteration(Stmt.ForEach stmt) {
+		Iteration r = iterations.get(stmt);
+		if(r == null) {
+			HashSet<String> updated = new HashSet<String>();
+			updatedInPlace(stmt.getBody(),updated);
+			String source = root(stmt.getCollection_values());
+			r = new Iteration(updated.contains(stmt.getDeclaration().getName()),
+					source != null && updated.contains(source));
+			iterations.put(stmt, r);
+		}
+		return r;
+	}
+
+	/**
+	 * <p>
+	 * Determines how a for-each loop binds elements of the array being
+	 * iterated over to its loop variable. Elements are bound by reference,
+	 * rather than being copied, unless the loop body may update the loop
+	 * variable in place (e.g. <code>x.f = 1</code>). Likewise, the array itself
+	 * is copied once before iteration begins if the loop body may update the
+	 * variable it was read from in place (e.g. <code>xs[0] = 1</code>).
+	 * Otherwise, such updates would be visible through the loop variable,
+	 * violating the value semantics of While.
+	 * </p>
+	 *
+	 * <p>
+	 * Reassigning a variable as a whole (e.g. <code>x = y</code>) binds it to a
+	 * fresh value, and so requires no copying.
+	 * </p>
+	 */
+	private static final class Iteration {
+		private final boolean copyElements;
+		private final boolean copySource;
+
+		public Iteration(boolean copyElements, boolean copySource) {
+			this.copyElements = copyElements;
+			this.copySource = copySource;
+		}
+	}
+
+	/**
+	 * Determine the set of variables which may be updated in place by a given
+	 * block of statements. That is, those which are the root of an assignment
+	 * to an array element or record field.
+	 *
+	 * @param block
+	 * @param updated
+	 */
+	private static void updatedInPlace(List<? extends Stmt> block, HashSet<String> updated) {
+		for(Stmt stmt : block) {
+			updatedInPlace(stmt,updated);
+		}
+	}
+
+	private static void updatedInPlace(Stmt stmt, HashSet<String> updated) {
+		if(stmt instanceof Stmt.Assign) {
+			Expr lhs = ((Stmt.Assign) stmt).getLhs();
+			if(!(lhs instanceof Expr.Variable)) {
+				String root = root(lhs);
+				if(root != null) {
+					updated.add(root);
+				}
+			}
+		} else if(stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			updatedInPlace(s.getIncrement(),updated);
+			updatedInPlace(s.getBody(),updated);
+		} else if(stmt instanceof Stmt.ForEach) {
+			updatedInPlace(((Stmt.ForEach) stmt).getBody(),updated);
+		} else if(stmt instanceof Stmt.While) {
+			updatedInPlace(((Stmt.While) stmt).getBody(),updated);
+		} else if(stmt instanceof Stmt.DoWhile) {
+			updatedInPlace(((Stmt.DoWhile) stmt).getBody(),updated);
+		} else if(stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			updatedInPlace(s.getTrueBranch(),updated);
+			updatedInPlace(s.getFalseBranch(),updated);
+		} else if(stmt instanceof Stmt.Switch) {
+			for(Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+				updatedInPlace(c.getBody(),updated);
+			}
+		} else if(stmt instanceof Stmt.TryCatch) {
+			Stmt.TryCatch s = (Stmt.TryCatch) stmt;
+			updatedInPlace(s.getTry_body(),updated);
+			for(Stmt.Catch c : s.getCatchs()) {
+				updatedInPlace(c.getCatch_body(),updated);
+			}
+		}
+	}
+
+	/**
+	 * Determine the variable from which a given expression reads a value
+	 * (or part of one), or <code>null</code> if it produces a fresh value.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static String root(Expr expr) {
+		if(expr instanceof Expr.Variable) {
+			return ((Expr.Variable) expr).getName();
+		} else if(expr instanceof Expr.IndexOf) {
+			return root(((Expr.IndexOf) expr).getSource());
+		} else if(expr instanceof Expr.RecordAccess) {
+			return root(((Expr.RecordAccess) expr).getSource());
+		} else {
+			return null;
+		}
+	}
+
 	private Object execute(Stmt.While stmt, HashMap<String,Object> frame) {
 		while((Boolean) execute(stmt.getCondition(),frame)) {
 			Object ret = execute(stmt.getBody(),frame);
@@ -264,98 +399,102 @@ public class Interpreter {
 	}
 
 	private Object execute(Stmt.Throw stmt, HashMap<String,Object> frame){
-		//it is of type throw....
 		Object o = execute(stmt.getExpr(),frame);
-		throw new myException("My Exception "+stmt.getExpr().toString(),stmt,o);
+		throw WhileException.thrown(o, stmt.getType());
 	}
 
-	public class myException extends RuntimeException {
-		private final Stmt.Throw err;
-		private final Object evaluatedVal;
-		public myException(String errorMessage, Stmt.Throw err,Object evaluatedVal) {
-			super(errorMessage);
-			this.err = err;
-			this.evaluatedVal = evaluatedVal;
-		}
-
-		public Stmt.Throw getErr() {
-			return err;
+	private Object execute(Stmt.TryCatch stmt, HashMap<String,Object> frame) {
+		try {
+			return execute(stmt.getTry_body(), frame);
+		} catch (WhileException e) {
+			for (Handler h : handlers(stmt)) {
+				if (h.matches(e)) {
+					Stmt.Catch c = h.clause;
+					if (e.isError()) {
+						// Runtime errors are caught as a record holding the error code
+						HashMap<String, Object> record = new HashMap<String, Object>();
+						record.put(h.field, e.getValue());
+						frame.put(c.getCaught_var().getName(), record);
+					} else {
+						frame.put(c.getCaught_var().getName(), e.getValue());
+					}
+					return execute(c.getCatch_body(), frame);
+				}
+			}
+			throw e;
 		}
+	}
 
-		public Object getEvaluatedVal() {
-			return evaluatedVal;
+	/**
+	 * Get the handlers for the catch clauses of a given try-catch statement.
+	 * These are constructed the first time the statement is executed.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private Handler[] handlers(Stmt.TryCatch stmt) {
+		Handler[] hs = handlers.get(stmt);
+		if (hs == null) {
+			List<Stmt.Catch> catchs = stmt.getCatchs();
+			hs = new Handler[catchs.size()];
+			for (int i = 0; i != hs.length; ++i) {
+				hs[i] = new Handler(catchs.get(i));
+			}
+			handlers.put(stmt, hs);
 		}
+		return hs;
 	}
 
-
-	private Object execute(Stmt.TryCatch stmt, HashMap<String,Object> frame) {
-		Object condition =null;
-		try {
-			condition = execute(stmt.getTry_body(), frame);
-			//FIXME what if no try, how does it continue
-		}catch (Exception e) {
-			boolean isJavaError = false;
-			Object value = null;
-			Type exception_val_type = null;
-			Expr expr = null;
-
-			if (e instanceof myException) {
-				myException exception = (myException) e;
-				value = exception.getEvaluatedVal();
-				exception_val_type = exception.getErr().getType();
-				expr = exception.getErr().getExpr();
-				//List so catch statements will be evaulated in order
-				//TODO check if any catch statements are the same, as it will be dead code.
+	/**
+	 * Represents a catch clause whose type has been resolved, and which
+	 * determines whether or not a given exception is caught by it. A runtime
+	 * error is caught by the first clause of record type, whilst a thrown value
+	 * is caught by the first clause whose type is a supertype of the thrown
+	 * expression's type. The latter is determined once for each type thrown.
+	 */
+	private final class Handler {
+		private final Stmt.Catch clause;
+		private final Type type;
+		private final String field;
+		private final IdentityHashMap<Type, Boolean> matches = new IdentityHashMap<Type, Boolean>();
+
+		public Handler(Stmt.Catch clause) {
+			this.clause = clause;
+			this.type = resolve(clause.getCaught_var().getType());
+			if (type instanceof Type.Record && !((Type.Record) type).getFields().isEmpty()) {
+				this.field = ((Type.Record) type).getFields().get(0).second();
 			} else {
-				isJavaError = true;
-
-				String message = e.getMessage();
-				if(message.startsWith("/ by zero")){
-					value = 0;
-				}else if(message.startsWith("Index")){
-					value = 1;
-				}else if(message.equals("negative length exception")){
-					value = 2;
-				}else if(message.equals("assertion failure")){
-					value = 3;
-				}
+				this.field = null;
 			}
+		}
 
-			if(value != null) {
-				for (Stmt.Catch v : stmt.getCatchs()) {
-					Type t = v.getCaught_var().getType();
-					if (t instanceof Type.Named) {
-						Type.Named named = (Type.Named) t;
-						WhileFile.Decl s = this.declarations.get(named.getName());
-						if (s instanceof WhileFile.TypeDecl) {
-							WhileFile.TypeDecl dec = (WhileFile.TypeDecl) s;
-							t = dec.getType();
-						}
-					}
-					TypeChecker checker = new TypeChecker();
-					if (isJavaError && t instanceof Type.Record) {
-						//convert value to record in form given
-						ArrayList<Pair<String, Expr>> exprs = new ArrayList<Pair<String, Expr>>();
-						Type.Record trecord = (Type.Record) t;
-						exprs.add(new Pair<String, Expr>(trecord.getFields().get(0).second(), new Expr.Literal(value)));
-						Expr.RecordConstructor rc = new Expr.RecordConstructor(exprs);
-						Stmt.Assign ass = new Stmt.Assign(new Expr.Variable(v.getCaught_var().getName()), rc);
-						v.getCatch_body().add(0, ass);
-						return execute(v.getCatch_body(), frame);
-					} else if (!isJavaError && checker.isSubtype(t, exception_val_type, expr)) {
-						frame.put(v.getCaught_var().getName(), value);
-						return execute(v.getCatch_body(), frame);
-					}
-				}
+		public boolean matches(WhileException e) {
+			if (e.isError()) {
+				return field != null;
 			}
-			throw e;
-			//Run catch code
-			//it is expected that frame has been updated
-
+			Boolean r = matches.get(e.getType());
+			if (r == null) {
+				r = checker.isSubtype(type, resolve(e.getType()), clause);
+				matches.put(e.getType(), r);
+			}
+			return r;
+		}
+	}
 
+	/**
+	 * Expand a named type into its definition.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Type resolve(Type type) {
+		if (type instanceof Type.Named) {
+			WhileFile.Decl decl = declarations.get(((Type.Named) type).getName());
+			if (decl instanceof WhileFile.TypeDecl) {
+				return ((WhileFile.TypeDecl) decl).getType();
+			}
 		}
-		//no error thrown
-		return null;
+		return type;
 	}
 
 	private Object execute(Stmt.Break stmt, HashMap<String, Object> frame) {
@@ -445,79 +584,48 @@ public class Interpreter {
 		}
 	}
 
-	private Object doNumberOperation(Object lhs, Object rhs,Expr.BOp operation){
-		Number lhs_number = (Number) lhs;
-		Number rhs_number = (Number) rhs;
-		if(lhs instanceof Double || rhs instanceof Double){
-			return doOperator(lhs_number.doubleValue(), rhs_number.doubleValue(), operation);
-		}else {
-			return doOperator(lhs_number.intValue(), rhs_number.intValue(), operation);
+	/**
+	 * Get the implementation of a given arithmetic or comparison operator.
+	 * This is selected the first time the expression is executed, according
+	 * to the static types of its operands. If either operand is not known to
+	 * be an <code>int</code> or <code>real</code> (e.g. for equality between
+	 * arrays), then <code>null</code> is returned.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private Arithmetic arithmetic(Expr.Binary expr) {
+		Arithmetic op = arithmetic.get(expr);
+		if(op == null && !arithmetic.containsKey(expr)) {
+			Type lhs = numericType(expr.getLhs());
+			Type rhs = numericType(expr.getRhs());
+			if(lhs instanceof Type.Int && rhs instanceof Type.Int) {
+				op = Arithmetic.ints(expr.getOp());
+			} else if(lhs != null && rhs != null) {
+				op = Arithmetic.reals(expr.getOp());
+			}
+			arithmetic.put(expr, op);
 		}
+		return op;
 	}
 
-	private Object doOperator(Number lhs, Number rhs, Expr.BOp expr){
-		//Assume both are of same class
-		boolean isDouble = false;
-		if(lhs instanceof Double){
-			isDouble = true;
+	/**
+	 * Determine the static type of a given expression, if this is either
+	 * <code>int</code> or <code>real</code>. Otherwise, <code>null</code> is
+	 * returned.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private Type numericType(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		Type type = attr == null ? null : attr.type;
+		while(type instanceof Type.Named) {
+			WhileFile.Decl decl = declarations.get(((Type.Named) type).getName());
+			type = decl instanceof WhileFile.TypeDecl ? ((WhileFile.TypeDecl) decl).getType() : null;
 		}
-
-		switch (expr) {
-			case ADD:
-				if(isDouble){
-					return ((Double)lhs) + ((Double)rhs);
-				}
-				return ((Integer)lhs) + ((Integer)rhs);
-			case SUB:
-				if(isDouble){
-					return ((Double)lhs) - ((Double)rhs);
-				}
-				return ((Integer)lhs) - ((Integer)rhs);
-			case MUL:
-				if(isDouble){
-					return ((Double)lhs) * ((Double)rhs);
-				}
-				return ((Integer)lhs) * ((Integer)rhs);
-			case DIV:
-				if(isDouble){
-					return ((Double)lhs) / ((Double)rhs);
-				}
-				return ((Integer)lhs) / ((Integer)rhs);
-			case REM:
-				if(isDouble){
-					return ((Double)lhs) % ((Double)rhs);
-				}
-				return ((Integer)lhs) % ((Integer)rhs);
-			case EQ:
-				if(isDouble){
-					return ((Double)lhs).compareTo((Double)rhs) == 0;
-				}
-				return ((Integer)lhs).compareTo((Integer)rhs) == 0;
-			case NEQ:
-				if(isDouble){
-					return ((Double)lhs).compareTo((Double)rhs) != 0;
-				}
-				return ((Integer)lhs).compareTo((Integer)rhs) != 0;
-			case LT:
-				if(isDouble){
-					return ((Double)lhs) < ((Double)rhs);
-				}
-				return ((Integer)lhs) < ((Integer)rhs);
-			case LTEQ:
-				if(isDouble){
-					return ((Double)lhs) <= ((Double)rhs);
-				}
-				return ((Integer)lhs) <= ((Integer)rhs);
-			case GT:
-				if(isDouble){
-					return ((Double)lhs) > ((Double)rhs);
-				}
-				return ((Integer)lhs) > ((Integer)rhs);
-			case GTEQ:
-				if(isDouble){
-					return ((Double)lhs) >= ((Double)rhs);
-				}
-				return ((Integer)lhs) >= ((Integer)rhs);
+		if(type instanceof Type.Int || type instanceof Type.Real) {
+			return type;
 		}
 		return null;
 	}
@@ -526,7 +634,7 @@ public class Interpreter {
 		boolean equal = true;
 
 		if(lhs instanceof Number){//for real and int type
-			return doNumberOperation(lhs,rhs, Expr.BOp.EQ);
+			return Arithmetic.generic(Expr.BOp.EQ).apply(lhs,rhs);
 		}else if(lhs instanceof Boolean){//for Bool type
 			return lhs.equals(rhs);
 		}else if( lhs instanceof HashMap){
@@ -594,15 +702,17 @@ public class Interpreter {
 		// Second, deal the rest.
 		Object rhs = execute(expr.getRhs(), frame);
 
-
-
+		Arithmetic op = arithmetic(expr);
+		if(op != null) {
+			return op.apply(lhs,rhs);
+		}
 		switch (expr.getOp()) {
 			case EQ:
 				return (Boolean)checkEqual(lhs,rhs);
 			case NEQ:
 				return !(Boolean)checkEqual(lhs,rhs);
 		}
-		Object returnVal = doNumberOperation(lhs,rhs,expr.getOp());
+		Object returnVal = Arithmetic.generic(expr.getOp()).apply(lhs,rhs);
 		if(returnVal !=null) {
 			return returnVal;
 		}
@@ -652,17 +762,36 @@ public class Interpreter {
 		int idx = (Integer) execute(expr.getIndex(),frame);
 		if(_src instanceof String) {
 			String src = (String) _src;
+			checkIndex(idx,src.length());
 			return src.charAt(idx);
 		} else {
 			ArrayList<Object> src = (ArrayList<Object>) _src;
+			checkIndex(idx,src.size());
 			return src.get(idx);
 		}
 	}
 
+	/**
+	 * Check that a given index is within the bounds of an array (or string) of
+	 * a given length.
+	 *
+	 * @param idx
+	 * @param length
+	 */
+	private static void checkIndex(int idx, int length) {
+		if(idx < 0 || idx >= length) {
+			throw WhileException.error(WhileException.INDEX_OUT_OF_BOUNDS,
+					"Index " + idx + " out of bounds for length " + length);
+		}
+	}
+
 	private Object execute(Expr.ArrayGenerator expr, HashMap<String, Object> frame) {
 		Object value = execute(expr.getValue(),frame);
 		int size = (Integer) execute(expr.getSize(),frame);
-		ArrayList<Object> ls = new ArrayList<Object>();
+		if(size < 0) {
+			throw WhileException.error(WhileException.NEGATIVE_LENGTH, "negative length exception");
+		}
+		ArrayList<Object> ls = new ArrayList<Object>(size);
 		for (int i = 0; i < size; ++i) {
 			ls.add(value);
 		}
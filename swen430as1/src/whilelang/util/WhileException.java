@@ -0,0 +1,130 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import whilelang.ast.Type;
+
+/**
+ * <p>
+ * Represents an exception raised during the execution of a While program,
+ * which may be caught by a <code>try-catch</code> statement. This is either a
+ * value thrown explicitly by a <code>throw</code> statement, or a runtime error
+ * (e.g. division by zero) identified by its error code. In the latter case,
+ * the error is caught by a <code>catch</code> clause of record type, such as
+ * <code>{int code}</code>.
+ * </p>
+ *
+ * <p>
+ * No stack trace is recorded when a <code>WhileException</code> is created,
+ * since this is never needed and would otherwise dominate the cost of throwing
+ * one.
+ * </p>
+ */
+public final class WhileException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Error code used for values thrown by a <code>throw</code> statement.
+	 */
+	public static final int THROWN = -1;
+	public static final int DIVIDE_BY_ZERO = 0;
+	public static final int INDEX_OUT_OF_BOUNDS = 1;
+	public static final int NEGATIVE_LENGTH = 2;
+	public static final int ASSERTION_FAILURE = 3;
+
+	private final int code;
+	private final Object value;
+	private final Type type;
+
+	private WhileException(String message, int code, Object value, Type type) {
+		super(message, null, false, false);
+		this.code = code;
+		this.value = value;
+		this.type = type;
+	}
+
+	/**
+	 * Construct an exception for a value thrown by a <code>throw</code>
+	 * statement.
+	 *
+	 * @param value
+	 *            The value being thrown.
+	 * @param type
+	 *            The static type of the expression being thrown.
+	 * @return
+	 */
+	public static WhileException thrown(Object value, Type type) {
+		// The message is only constructed if needed (see getMessage()), since
+		// converting a large value into a string is expensive.
+		return new WhileException(null, THROWN, value, type);
+	}
+
+	/**
+	 * Construct an exception for a runtime error.
+	 *
+	 * @param code
+	 *            The error code (e.g. <code>DIVIDE_BY_ZERO</code>).
+	 * @param message
+	 *            A description of the error.
+	 * @return
+	 */
+	public static WhileException error(int code, String message) {
+		return new WhileException(message, code, code, null);
+	}
+
+	@Override
+	public String getMessage() {
+		if (code == THROWN) {
+			return "uncaught exception (" + value + ")";
+		}
+		return super.getMessage();
+	}
+
+	/**
+	 * Check whether this exception represents a runtime error, rather than a
+	 * value thrown by a <code>throw</code> statement.
+	 *
+	 * @return
+	 */
+	public boolean isError() {
+		return code != THROWN;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Get the value carried by this exception. For a runtime error, this is its
+	 * error code.
+	 *
+	 * @return
+	 */
+	public Object getValue() {
+		return value;
+	}
+
+	/**
+	 * Get the static type of the value thrown, or <code>null</code> for a
+	 * runtime error.
+	 *
+	 * @return
+	 */
+	public Type getType() {
+		return type;
+	}
+}
@@ -95,6 +95,10 @@ public class Main {
 
 			// First, compile the source file
 			WhileFile ast = compiler.compile();
+			if (verbose) {
+				System.err.println("Eliminated " + compiler.getEliminatedChecks() + " of "
+						+ compiler.getTotalChecks() + " type tests");
+			}
 
 			// Second, execute it!
 			switch(target) {
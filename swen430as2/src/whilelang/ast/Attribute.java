@@ -84,4 +84,36 @@ public interface Attribute {
 			this.type = type;
 		}
 	}
+
+	/**
+	 * Represents the result of flow-sensitive type refinement for an
+	 * <code>is</code> or cast expression. This records the refined type of the
+	 * operand at that point, and whether the runtime test is redundant because
+	 * the refined type already implies the type being tested.
+	 */
+	public static class Refinement implements Attribute {
+
+		/**
+		 * The refined type of the operand, or <code>null</code> if this is
+		 * unknown.
+		 */
+		public final whilelang.ast.Type type;
+
+		/**
+		 * Indicates the runtime test can be skipped
+		 */
+		public final boolean redundant;
+
+		/**
+		 * Construct a new refinement attribute which can be attached to a
+		 * given AST node.
+		 *
+		 * @param type
+		 * @param redundant
+		 */
+		public Refinement(whilelang.ast.Type type, boolean redundant) {
+			this.type = type;
+			this.redundant = redundant;
+		}
+	}
 }
@@ -0,0 +1,638 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.Pair;
+import whilelang.util.TypeTest;
+
+/**
+ * <p>
+ * Responsible for refining the types of variables according to the
+ * <code>is</code> tests which guard them, and using this to identify those
+ * <code>is</code> and cast expressions whose runtime test is redundant. For
+ * example, in the following the cast need not be checked:
+ * </p>
+ *
+ * <pre>
+ * int|null x = ...
+ * if(x is int) {
+ *    return (int) x;
+ * }
+ * </pre>
+ *
+ * <p>
+ * The analysis follows the control-flow graph of each method, maintaining the
+ * refined type of each variable. This starts from the type declared for the
+ * variable, is narrowed by conditions, and is reset by assignment. Variables
+ * assigned within a loop are reset to their declared type on entry to the
+ * loop. Every <code>is</code> and cast expression encountered is given an
+ * <code>Attribute.Refinement</code> recording the refined type of its operand,
+ * and whether this already implies the type being tested. This relies upon
+ * the type checker having already been run.
+ * </p>
+ */
+public class TypeRefinement {
+	/**
+	 * The source file being checked.
+	 */
+	private WhileFile file;
+
+	/**
+	 * Used to decide whether one type implies another at runtime.
+	 */
+	private TypeTest.Compiler tests;
+
+	/**
+	 * The declared types of all variables in the method being checked.
+	 */
+	private HashMap<String, Type> declared;
+
+	private HashMap<String, WhileFile.TypeDecl> types;
+
+	private int total;
+
+	private int eliminated;
+
+	/**
+	 * Check a given source file.
+	 *
+	 * @param wf
+	 *            The source file to be checked.
+	 */
+	public void check(WhileFile wf) {
+		this.file = wf;
+		HashMap<String, WhileFile.Decl> declarations = new HashMap<String, WhileFile.Decl>();
+		this.types = new HashMap<String, WhileFile.TypeDecl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			declarations.put(declaration.name(), declaration);
+			if (declaration instanceof WhileFile.TypeDecl) {
+				types.put(declaration.name(), (WhileFile.TypeDecl) declaration);
+			}
+		}
+		this.tests = new TypeTest.Compiler(declarations);
+
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				check((WhileFile.MethodDecl) declaration);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of <code>is</code> and cast expressions checked.
+	 *
+	 * @return
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Get the number of <code>is</code> and cast expressions found to be
+	 * redundant.
+	 *
+	 * @return
+	 */
+	public int getEliminated() {
+		return eliminated;
+	}
+
+	public void check(WhileFile.MethodDecl fd) {
+		declared = new HashMap<String, Type>();
+		Env environment = new Env();
+		for (WhileFile.Parameter p : fd.getParameters()) {
+			declared.put(p.name(), p.getType());
+			environment = environment.put(p.name(), p.getType());
+		}
+		check(fd.getBody(), environment);
+	}
+
+	/**
+	 * Check a list of statements in a given environment, producing the
+	 * environment which holds afterwards.
+	 *
+	 * @param statements
+	 * @param environment
+	 *            The refined types of variables before these statements.
+	 * @return The refined types of variables after these statements, or
+	 *         <code>null</code> if control does not fall through.
+	 */
+	public Env check(List<Stmt> statements, Env environment) {
+		for (Stmt s : statements) {
+			if (environment == null) {
+				// Unreachable, which should already have been reported.
+				break;
+			}
+			environment = check(s, environment);
+		}
+		return environment;
+	}
+
+	public Env check(Stmt stmt, Env environment) {
+		if (stmt instanceof Stmt.Assert) {
+			return condition(((Stmt.Assert) stmt).getExpr(), environment).trueEnvironment;
+		} else if (stmt instanceof Stmt.Print) {
+			check(((Stmt.Print) stmt).getExpr(), environment);
+			return environment;
+		} else if (stmt instanceof Stmt.Assign) {
+			return check((Stmt.Assign) stmt, environment);
+		} else if (stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) {
+			return null;
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			if (s.getExpr() != null) {
+				check(s.getExpr(), environment);
+			}
+			return null;
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return check((Stmt.VariableDeclaration) stmt, environment);
+		} else if (stmt instanceof Expr.Invoke) {
+			check((Expr) stmt, environment);
+			return environment;
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			Condition c = condition(s.getCondition(), environment);
+			Env left = check(s.getTrueBranch(), c.trueEnvironment);
+			Env right = check(s.getFalseBranch(), c.falseEnvironment);
+			return join(left, right);
+		} else if (stmt instanceof Stmt.For) {
+			return check((Stmt.For) stmt, environment);
+		} else if (stmt instanceof Stmt.While) {
+			return check((Stmt.While) stmt, environment);
+		} else if (stmt instanceof Stmt.Switch) {
+			return check((Stmt.Switch) stmt, environment);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	public Env check(Stmt.Assign stmt, Env environment) {
+		check(stmt.getRhs(), environment);
+		if (stmt.getLhs() instanceof Expr.Variable) {
+			Expr.Variable var = (Expr.Variable) stmt.getLhs();
+			return environment.put(var.getName(), typeOf(stmt.getRhs(), environment));
+		} else {
+			// Updating part of a variable may change which type it has, so
+			// fall back to its declared type.
+			check(stmt.getLhs(), environment);
+			String root = root(stmt.getLhs());
+			return environment.put(root, declared.get(root));
+		}
+	}
+
+	public Env check(Stmt.VariableDeclaration stmt, Env environment) {
+		declared.put(stmt.getName(), stmt.getType());
+		if (stmt.getExpr() != null) {
+			check(stmt.getExpr(), environment);
+			return environment.put(stmt.getName(), typeOf(stmt.getExpr(), environment));
+		}
+		return environment.put(stmt.getName(), stmt.getType());
+	}
+
+	public Env check(Stmt.For stmt, Env environment) {
+		environment = check(stmt.getDeclaration(), environment);
+		HashSet<String> modified = new HashSet<String>();
+		modified(stmt.getBody(), modified);
+		modified(stmt.getIncrement(), modified);
+		Env head = reset(environment, modified);
+		Condition c = condition(stmt.getCondition(), head);
+		check(stmt.getBody(), c.trueEnvironment);
+		// The increment follows either the end of the body or a continue
+		check(stmt.getIncrement(), head);
+		return containsBreak(stmt.getBody()) ? head : c.falseEnvironment;
+	}
+
+	public Env check(Stmt.While stmt, Env environment) {
+		HashSet<String> modified = new HashSet<String>();
+		modified(stmt.getBody(), modified);
+		Env head = reset(environment, modified);
+		Condition c = condition(stmt.getCondition(), head);
+		check(stmt.getBody(), c.trueEnvironment);
+		return containsBreak(stmt.getBody()) ? head : c.falseEnvironment;
+	}
+
+	public Env check(Stmt.Switch stmt, Env environment) {
+		check(stmt.getExpr(), environment);
+		HashSet<String> modified = new HashSet<String>();
+		for (Stmt.Case c : stmt.getCases()) {
+			check(c.getBody(), environment);
+			modified(c.getBody(), modified);
+		}
+		return reset(environment, modified);
+	}
+
+	/**
+	 * Check a condition in a given environment, determining the environments
+	 * which hold when it evaluates to true and to false.
+	 *
+	 * @param expr
+	 * @param environment
+	 * @return
+	 */
+	private Condition condition(Expr expr, Env environment) {
+		if (expr instanceof Expr.Unary && ((Expr.Unary) expr).getOp() == Expr.UOp.NOT) {
+			Condition c = condition(((Expr.Unary) expr).getExpr(), environment);
+			return new Condition(c.falseEnvironment, c.trueEnvironment);
+		} else if (expr instanceof Expr.Binary && ((Expr.Binary) expr).getOp() == Expr.BOp.AND) {
+			Expr.Binary e = (Expr.Binary) expr;
+			Condition lhs = condition(e.getLhs(), environment);
+			Condition rhs = condition(e.getRhs(), lhs.trueEnvironment);
+			return new Condition(rhs.trueEnvironment, join(lhs.falseEnvironment, rhs.falseEnvironment));
+		} else if (expr instanceof Expr.Binary && ((Expr.Binary) expr).getOp() == Expr.BOp.OR) {
+			Expr.Binary e = (Expr.Binary) expr;
+			Condition lhs = condition(e.getLhs(), environment);
+			Condition rhs = condition(e.getRhs(), lhs.falseEnvironment);
+			return new Condition(join(lhs.trueEnvironment, rhs.trueEnvironment), rhs.falseEnvironment);
+		} else if (expr instanceof Expr.Is && ((Expr.Is) expr).getExpr() instanceof Expr.Variable) {
+			Expr.Is e = (Expr.Is) expr;
+			check(e, environment);
+			String var = ((Expr.Variable) e.getExpr()).getName();
+			Type known = typeOf(e.getExpr(), environment);
+			return new Condition(environment.put(var, e.getIsType()),
+					environment.put(var, difference(known, e.getIsType())));
+		} else {
+			check(expr, environment);
+			return new Condition(environment, environment);
+		}
+	}
+
+	/**
+	 * Check the <code>is</code> and cast expressions within a given expression.
+	 *
+	 * @param expr
+	 * @param environment
+	 */
+	public void check(Expr expr, Env environment) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			if (e.getOp() == Expr.BOp.AND || e.getOp() == Expr.BOp.OR) {
+				// The right-hand side is only evaluated under a refined
+				// environment.
+				condition(e, environment);
+			} else {
+				check(e.getLhs(), environment);
+				check(e.getRhs(), environment);
+			}
+		} else if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+			// Nothing to do
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			check(e.getSource(), environment);
+			check(e.getIndex(), environment);
+		} else if (expr instanceof Expr.Invoke) {
+			for (Expr arg : ((Expr.Invoke) expr).getArguments()) {
+				check(arg, environment);
+			}
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			check(e.getValue(), environment);
+			check(e.getSize(), environment);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr arg : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				check(arg, environment);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			check(((Expr.RecordAccess) expr).getSource(), environment);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> arg : ((Expr.RecordConstructor) expr).getFields()) {
+				check(arg.second(), environment);
+			}
+		} else if (expr instanceof Expr.Unary) {
+			check(((Expr.Unary) expr).getExpr(), environment);
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			check(e.getExpr(), environment);
+			refine(e, e.getCastType(), typeOf(e.getExpr(), environment));
+		} else if (expr instanceof Expr.Is) {
+			Expr.Is e = (Expr.Is) expr;
+			check(e.getExpr(), environment);
+			refine(e, e.getIsType(), typeOf(e.getExpr(), environment));
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+
+	/**
+	 * Record the refined type of the operand of a given <code>is</code> or cast
+	 * expression, and whether its runtime test is therefore redundant.
+	 *
+	 * @param expr
+	 * @param type
+	 *            The type being tested.
+	 * @param known
+	 *            The refined type of the operand.
+	 */
+	private void refine(Expr expr, Type type, Type known) {
+		boolean redundant = known != null && tests.compile(type, known) == TypeTest.ANY;
+		expr.attributes().add(new Attribute.Refinement(known, redundant));
+		total++;
+		if (redundant) {
+			eliminated++;
+		}
+	}
+
+	/**
+	 * Determine the refined type of a given expression. This is the refined
+	 * type of a variable, or one of its fields or elements, otherwise the type
+	 * determined by the type checker.
+	 *
+	 * @param expr
+	 * @param environment
+	 * @return
+	 */
+	private Type typeOf(Expr expr, Env environment) {
+		Type type = null;
+		if (expr instanceof Expr.Variable) {
+			type = environment.get(((Expr.Variable) expr).getName());
+		} else if (expr instanceof Expr.Cast) {
+			type = ((Expr.Cast) expr).getCastType();
+		} else if (expr instanceof Expr.IndexOf) {
+			Type source = expand(typeOf(((Expr.IndexOf) expr).getSource(), environment));
+			if (source instanceof Type.Array) {
+				type = ((Type.Array) source).getElement();
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			Type source = expand(typeOf(e.getSource(), environment));
+			if (source instanceof Type.Record) {
+				for (Pair<Type, String> field : ((Type.Record) source).getFields()) {
+					if (field.second().equals(e.getName())) {
+						type = field.first();
+					}
+				}
+			}
+		}
+		if (type == null) {
+			Attribute.Type attr = expr.attribute(Attribute.Type.class);
+			type = attr == null ? null : attr.type;
+		}
+		return type;
+	}
+
+	/**
+	 * Determine the type of those values in a given type which fail a runtime
+	 * test for another type. This simply drops those alternatives of a union
+	 * which would always pass the test.
+	 *
+	 * @param known
+	 * @param type
+	 * @return
+	 */
+	private Type difference(Type known, Type type) {
+		if (known == null) {
+			return null;
+		}
+		ArrayList<Type> alternatives = new ArrayList<Type>();
+		flatten(known, alternatives, new HashSet<String>());
+		HashSet<Type> remaining = new HashSet<Type>();
+		for (Type alternative : alternatives) {
+			if (tests.compile(type, alternative) != TypeTest.ANY) {
+				remaining.add(alternative);
+			}
+		}
+		if (remaining.isEmpty() || remaining.size() == alternatives.size()) {
+			return known;
+		} else if (remaining.size() == 1) {
+			return remaining.iterator().next();
+		} else {
+			return new Type.Union(remaining);
+		}
+	}
+
+	private void flatten(Type type, List<Type> alternatives, Set<String> visited) {
+		if (type instanceof Type.Union) {
+			for (Type alternative : ((Type.Union) type).getType_list()) {
+				flatten(alternative, alternatives, visited);
+			}
+		} else if (type instanceof Type.Named && types.containsKey(((Type.Named) type).getName())
+				&& visited.add(((Type.Named) type).getName())) {
+			flatten(types.get(((Type.Named) type).getName()).getType(), alternatives, visited);
+		} else {
+			alternatives.add(type);
+		}
+	}
+
+	/**
+	 * Expand a named type into its body, unless it is undefined.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Type expand(Type type) {
+		HashSet<String> visited = new HashSet<String>();
+		while (type instanceof Type.Named && visited.add(((Type.Named) type).getName())) {
+			WhileFile.TypeDecl td = types.get(((Type.Named) type).getName());
+			if (td == null) {
+				break;
+			}
+			type = td.getType();
+		}
+		return type;
+	}
+
+	/**
+	 * Reset the refined types of given variables to their declared types.
+	 *
+	 * @param environment
+	 * @param variables
+	 * @return
+	 */
+	private Env reset(Env environment, Set<String> variables) {
+		for (String var : variables) {
+			if (environment.get(var) != null) {
+				environment = environment.put(var, declared.get(var));
+			}
+		}
+		return environment;
+	}
+
+	/**
+	 * Determine the variables which are declared or assigned by some
+	 * statement(s).
+	 *
+	 * @param statements
+	 * @param modified
+	 */
+	private void modified(List<Stmt> statements, Set<String> modified) {
+		for (Stmt s : statements) {
+			modified(s, modified);
+		}
+	}
+
+	private void modified(Stmt stmt, Set<String> modified) {
+		if (stmt instanceof Stmt.Assign) {
+			modified.add(root(((Stmt.Assign) stmt).getLhs()));
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			modified.add(((Stmt.VariableDeclaration) stmt).getName());
+		} else if (stmt instanceof Stmt.IfElse) {
+			modified(((Stmt.IfElse) stmt).getTrueBranch(), modified);
+			modified(((Stmt.IfElse) stmt).getFalseBranch(), modified);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			modified(s.getDeclaration(), modified);
+			modified(s.getIncrement(), modified);
+			modified(s.getBody(), modified);
+		} else if (stmt instanceof Stmt.While) {
+			modified(((Stmt.While) stmt).getBody(), modified);
+		} else if (stmt instanceof Stmt.Switch) {
+			for (Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+				modified(c.getBody(), modified);
+			}
+		}
+	}
+
+	/**
+	 * Determine whether a break statement can exit the loop with the given
+	 * body. For simplicity, this includes those breaks within nested
+	 * statements which they actually exit instead.
+	 *
+	 * @param statements
+	 * @return
+	 */
+	private boolean containsBreak(List<Stmt> statements) {
+		for (Stmt s : statements) {
+			if (s instanceof Stmt.Break) {
+				return true;
+			} else if (s instanceof Stmt.IfElse) {
+				Stmt.IfElse ie = (Stmt.IfElse) s;
+				if (containsBreak(ie.getTrueBranch()) || containsBreak(ie.getFalseBranch())) {
+					return true;
+				}
+			} else if (s instanceof Stmt.For && containsBreak(((Stmt.For) s).getBody())) {
+				return true;
+			} else if (s instanceof Stmt.While && containsBreak(((Stmt.While) s).getBody())) {
+				return true;
+			} else if (s instanceof Stmt.Switch) {
+				for (Stmt.Case c : ((Stmt.Switch) s).getCases()) {
+					if (containsBreak(c.getBody())) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static String root(Expr expr) {
+		if (expr instanceof Expr.Variable) {
+			return ((Expr.Variable) expr).getName();
+		} else if (expr instanceof Expr.IndexOf) {
+			return root(((Expr.IndexOf) expr).getSource());
+		} else {
+			return root(((Expr.RecordAccess) expr).getSource());
+		}
+	}
+
+	private static Env join(Env left, Env right) {
+		if (left == null) {
+			return right;
+		} else if (right == null) {
+			return left;
+		} else {
+			return left.join(right);
+		}
+	}
+
+	/**
+	 * The environments which hold after a condition evaluates to true and to
+	 * false respectively.
+	 */
+	private static class Condition {
+		public final Env trueEnvironment;
+		public final Env falseEnvironment;
+
+		public Condition(Env trueEnvironment, Env falseEnvironment) {
+			this.trueEnvironment = trueEnvironment;
+			this.falseEnvironment = falseEnvironment;
+		}
+	}
+
+	/**
+	 * A simple class representing an immutable mapping from variables to their
+	 * refined types.
+	 */
+	public static class Env {
+		private HashMap<String, Type> variables;
+
+		public Env() {
+			this.variables = new HashMap<String, Type>();
+		}
+
+		public Env(Env env) {
+			this.variables = new HashMap<String, Type>(env.variables);
+		}
+
+		public Type get(String var) {
+			return variables.get(var);
+		}
+
+		/**
+		 * Update the refined type of a variable, producing an updated
+		 * environment.
+		 *
+		 * @param var
+		 * @param type
+		 * @return
+		 */
+		public Env put(String var, Type type) {
+			Env r = new Env(this);
+			r.variables.put(var, type);
+			return r;
+		}
+
+		/**
+		 * Join two environments together, where the refined type of each
+		 * variable is the union of its refined types on both branches.
+		 *
+		 * @param other
+		 * @return
+		 */
+		public Env join(Env other) {
+			Env r = new Env();
+			for (Map.Entry<String, Type> e : variables.entrySet()) {
+				Type t1 = e.getValue();
+				Type t2 = other.get(e.getKey());
+				if (t1 == null || t2 == null) {
+					continue;
+				} else if (t1 == t2 || t1.toString().equals(t2.toString())) {
+					r.variables.put(e.getKey(), t1);
+				} else {
+					HashSet<Type> union = new HashSet<Type>();
+					union.add(t1);
+					union.add(t2);
+					r.variables.put(e.getKey(), new Type.Union(union));
+				}
+			}
+			return r;
+		}
+	}
+}
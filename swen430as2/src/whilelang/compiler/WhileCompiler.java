@@ -33,6 +33,7 @@ import whilelang.ast.WhileFile;
  */
 public class WhileCompiler {
 	private File srcFile;
+	private TypeRefinement refinement;
 	
 	public WhileCompiler(String filename) {
 		this.srcFile = new File(filename);
@@ -49,8 +50,30 @@ public class WhileCompiler {
 		new UnreachableCode().check(ast);
 		// Fourth, definite assignment
 		new DefiniteAssignment().check(ast);
+		// Fifth, identify redundant type tests
+		refinement = new TypeRefinement();
+		refinement.check(ast);
 		
 		// Done
 		return ast;
 	}
+
+	/**
+	 * Get the number of type tests in the file most recently compiled which
+	 * were found to be redundant, and hence are eliminated.
+	 *
+	 * @return
+	 */
+	public int getEliminatedChecks() {
+		return refinement.getEliminated();
+	}
+
+	/**
+	 * Get the total number of type tests in the file most recently compiled.
+	 *
+	 * @return
+	 */
+	public int getTotalChecks() {
+		return refinement.getTotal();
+	}
 }
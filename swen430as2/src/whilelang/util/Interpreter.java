@@ -23,9 +23,11 @@ import static whilelang.util.SyntaxError.internalFailure;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
+import whilelang.ast.Attribute;
 import whilelang.ast.Expr;
 import whilelang.ast.Stmt;
 import whilelang.ast.Type;
@@ -43,6 +45,8 @@ import whilelang.ast.WhileFile;
 public class Interpreter {
 	private HashMap<String, WhileFile.Decl> declarations;
 	private WhileFile file;
+	private TypeTest.Compiler typeTestCompiler;
+	private IdentityHashMap<Expr, TypeTest> typeTests;
 
 	public void run(WhileFile wf) {
 		// First, initialise the map of declaration names to their bodies.
@@ -51,6 +55,8 @@ public class Interpreter {
 			declarations.put(decl.name(), decl);
 		}
 		this.file = wf;
+		this.typeTestCompiler = new TypeTest.Compiler(declarations);
+		this.typeTests = new IdentityHashMap<Expr, TypeTest>();
 
 		// Second, pick the main method (if one exits) and execute it
 		WhileFile.Decl main = declarations.get("main");
@@ -343,14 +349,8 @@ public class Interpreter {
 		case REM:
 			return ((Integer)lhs) % ((Integer)rhs);
 		case EQ:
-			if(lhs == null || rhs == null){
-				return lhs ==null && rhs == null;
-			}
 			return lhs.equals(rhs);
 		case NEQ:
-			if(lhs == null || rhs == null){
-				return (lhs == null && rhs != null) || (lhs != null && rhs == null);
-			}
 			return !lhs.equals(rhs);
 		case LT:
 			return ((Integer)lhs) < ((Integer)rhs);
@@ -370,7 +370,9 @@ public class Interpreter {
 	private Object execute(Expr.Literal expr, HashMap<String,Object> frame) {
 		Object o = expr.getValue();
 		// Check whether any coercions required
-		if(o instanceof Character) {
+		if(o == null) {
+			return Tag.NULL_VALUE;
+		} else if(o instanceof Character) {
 			char c = ((Character)o);
 			return c;
 		} else if(o instanceof String) {
@@ -380,6 +382,9 @@ public class Interpreter {
 				list.add((int) c);
 			}
 			return list;
+		} else if(o instanceof ArrayList || o instanceof HashMap) {
+			// Constant arrays and records may contain null
+			return Tag.value(o);
 		}
 		// Done
 		return o;
@@ -471,7 +476,7 @@ public class Interpreter {
 
 	private Object execute(Expr.Cast expr, HashMap<String,Object> frame) {
 		Object o = execute(expr.getExpr(),frame);
-		if(checkInstance(expr.getCastType(),o)){
+		if(typeTest(expr,expr.getCastType()).test(o)){
 			return o;
 		}
 		throw new RuntimeException("cannot cast: "+o+" to"+ expr.getCastType());
@@ -479,75 +484,41 @@ public class Interpreter {
 
 	private Object execute(Expr.Is expr, HashMap<String,Object> frame) {
 		Object o = execute(expr.getExpr(),frame);
-		if(checkInstance(expr.getIsType(),o)){
-			return true;
-		}
-		return false;
+		return typeTest(expr,expr.getIsType()).test(o);
 	}
 
-
-	private boolean checkInstance(Type t,Object o){
-		if(t instanceof Type.Void) {
-			return o == null;
-		}else if(t instanceof Type.Null) {
-			return o == null;
-		}else if(t instanceof Type.Bool) {
-			return o instanceof Boolean;
-		}else if(t instanceof Type.Int) {
-			return o instanceof Integer;
-		}else if(t instanceof Type.Named) {
-			Type.Named n = (Type.Named)t;
-			WhileFile.Decl declaration = this.declarations.get(n.getName());
-			if(declaration instanceof WhileFile.TypeDecl){
-				return checkInstance(((WhileFile.TypeDecl) declaration).getType(),o);
-			}
-			return false;
-		}else if(t instanceof Type.Array) {
-			if(!(o instanceof ArrayList)){
-				return false;
-			}
-			for(Object o1:(ArrayList)o) {
-				if(!checkInstance(((Type.Array) t).getElement(), o1)) {
-					return false;
-				}
-			}
-			return true;
-		}else if(t instanceof Type.Record) {
-			//convert t to map
-			HashMap<String,Type> recordMap = new HashMap<>();
-			for(Pair<Type,String> p:((Type.Record) t).getFields()){
-				recordMap.put(p.second(),p.first());
-			}
-
-			if(o instanceof HashMap){
-				HashMap<String,Object> objectHashMap = (HashMap<String, Object>)o;
-
-				for (Map.Entry<String, Type> entry : recordMap.entrySet()) {
-					String key = entry.getKey();
-					Type value = entry.getValue();
-					Object o1 = objectHashMap.get(key);
-					if (!checkInstance(value, o1)) {
-						return false;
-					}
-				}
-				return true;
-			}
-
-			return false;
-		}else if(t instanceof Type.Union) {
-			Type.Union u = (Type.Union)t;
-			for(Type union_type:u.getType_list()){
-				if(checkInstance(union_type,o)){
-					return true;
-				}
+	/**
+	 * Get the compiled test for the type of a given <code>is</code> or cast
+	 * expression. This is compiled the first time the expression is executed,
+	 * using the static type of its operand to avoid checking what is already
+	 * known. This is the refined type of the operand where available,
+	 * otherwise that determined by the type checker. A test found to be
+	 * redundant by type refinement is skipped altogether.
+	 *
+	 * @param expr
+	 *            Either an <code>is</code> or cast expression.
+	 * @param type
+	 *            The type being tested.
+	 * @return
+	 */
+	private TypeTest typeTest(Expr expr, Type type) {
+		TypeTest test = typeTests.get(expr);
+		if(test == null) {
+			Attribute.Refinement refinement = expr.attribute(Attribute.Refinement.class);
+			if(refinement != null && refinement.redundant) {
+				test = TypeTest.ANY;
+			} else if(refinement != null && refinement.type != null) {
+				test = typeTestCompiler.compile(type, refinement.type);
+			} else {
+				Expr operand = expr instanceof Expr.Cast ? ((Expr.Cast) expr).getExpr() : ((Expr.Is) expr).getExpr();
+				Attribute.Type known = operand.attribute(Attribute.Type.class);
+				test = typeTestCompiler.compile(type, known == null ? null : known.type);
 			}
-			return false;
+			typeTests.put(expr, test);
 		}
-		throw new RuntimeException("unknown cast type");
+		return test;
 	}
 
-
-
 	/**
 	 * Perform a deep clone of the given object value. This is either a
 	 * <code>Boolean</code>, <code>Integer</code>, , <code>Character</code>,
@@ -0,0 +1,137 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Describes the tagged representation of values used by the interpreter. Every
+ * value has a small integer <i>tag</i> identifying which kind of value it is,
+ * and its payload is the Java object representing it. Thus, <code>bool</code>
+ * and <code>int</code> values are represented by <code>Boolean</code> and
+ * <code>Integer</code> (or <code>Character</code>) objects, arrays by
+ * <code>ArrayList</code> and records by <code>HashMap</code>. The tag of a
+ * value is determined from the class of its payload, rather than being stored
+ * separately. This means a value held in a variable of union type is
+ * represented exactly as it would be otherwise, and no wrapper is allocated.
+ * </p>
+ *
+ * <p>
+ * The value <code>null</code> is represented by the unique object
+ * <code>NULL_VALUE</code>. This ensures it cannot be confused with a Java
+ * <code>null</code>, which the interpreter uses to indicate the absence of a
+ * value (e.g. when a statement completes normally).
+ * </p>
+ *
+ * <p>
+ * Runtime type tests are implemented on top of tags. A set of tags is
+ * represented as a bitmask, such that a value is an instance of a union of
+ * <code>null</code>, <code>bool</code> and <code>int</code> exactly when the
+ * bit for its tag is set.
+ * </p>
+ */
+public final class Tag {
+	public static final int NULL = 0;
+	public static final int BOOL = 1;
+	public static final int INT = 2;
+	public static final int ARRAY = 3;
+	public static final int RECORD = 4;
+
+	/**
+	 * The number of distinct tags.
+	 */
+	public static final int COUNT = 5;
+
+	/**
+	 * The runtime representation of <code>null</code>.
+	 */
+	public static final Object NULL_VALUE = new Object() {
+		@Override
+		public String toString() {
+			return "null";
+		}
+	};
+
+	private Tag() {
+	}
+
+	/**
+	 * Determine the tag of a given value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static int of(Object value) {
+		if (value == NULL_VALUE) {
+			return NULL;
+		}
+		Class<?> c = value.getClass();
+		if (c == Integer.class || c == Character.class) {
+			return INT;
+		} else if (c == Boolean.class) {
+			return BOOL;
+		} else if (c == ArrayList.class) {
+			return ARRAY;
+		} else if (c == HashMap.class) {
+			return RECORD;
+		}
+		throw new IllegalArgumentException("unknown value encountered (" + value + ")");
+	}
+
+	/**
+	 * Get the bitmask representing the set containing only a given tag.
+	 *
+	 * @param tag
+	 * @return
+	 */
+	public static int bit(int tag) {
+		return 1 << tag;
+	}
+
+	/**
+	 * Convert a constant, as produced by the parser, into its runtime
+	 * representation. This simply replaces any occurrence of Java
+	 * <code>null</code> with <code>NULL_VALUE</code>.
+	 *
+	 * @param constant
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object value(Object constant) {
+		if (constant == null) {
+			return NULL_VALUE;
+		} else if (constant instanceof ArrayList) {
+			ArrayList<Object> l = (ArrayList<Object>) constant;
+			ArrayList<Object> r = new ArrayList<Object>(l.size());
+			for (Object o : l) {
+				r.add(value(o));
+			}
+			return r;
+		} else if (constant instanceof HashMap) {
+			HashMap<String, Object> m = (HashMap<String, Object>) constant;
+			HashMap<String, Object> r = new HashMap<String, Object>();
+			for (Map.Entry<String, Object> e : m.entrySet()) {
+				r.put(e.getKey(), value(e.getValue()));
+			}
+			return r;
+		}
+		return constant;
+	}
+}
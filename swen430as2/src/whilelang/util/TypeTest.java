@@ -0,0 +1,494 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+
+/**
+ * <p>
+ * A runtime test that a value is an instance of a given type, as required for
+ * the <code>is</code> and cast expressions. Type tests are compiled once from
+ * the syntactic type being tested, rather than walking that type every time
+ * the test is performed. During compilation, named types are resolved to the
+ * tests for their bodies. Tests which need only check the tag of a value (see
+ * <code>Tag</code>) are represented as a bitmask of the permitted tags. Thus,
+ * those alternatives of a union needing only a tag check are combined into a
+ * single bitmask, whilst the remainder are grouped by the tag they require.
+ * </p>
+ *
+ * <p>
+ * A test can also be compiled against the static type of the value being
+ * tested. Whenever the static type already implies the tested type, the test
+ * always succeeds and nothing is checked at all. Likewise, when the static
+ * type fixes the element type of an array (or the type of a record field) to
+ * something implying that being tested, the elements (or field) are not
+ * examined.
+ * </p>
+ */
+public abstract class TypeTest {
+
+	/**
+	 * Determine whether a given value is an instance of the type this test was
+	 * compiled from.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public abstract boolean test(Object value);
+
+	/**
+	 * Get the tag which values must have to pass this test, or
+	 * <code>-1</code> if this is not fixed.
+	 *
+	 * @return
+	 */
+	protected int tag() {
+		return -1;
+	}
+
+	/**
+	 * The test which every value passes.
+	 */
+	public static final TypeTest ANY = new TypeTest() {
+		@Override
+		public boolean test(Object value) {
+			return true;
+		}
+	};
+
+	/**
+	 * The test which no value passes.
+	 */
+	public static final TypeTest NONE = new TypeTest() {
+		@Override
+		public boolean test(Object value) {
+			return false;
+		}
+	};
+
+	/**
+	 * The test for <code>null</code> (and <code>void</code>).
+	 */
+	public static final TypeTest NULL = new Tags(Tag.bit(Tag.NULL));
+
+	/**
+	 * The test for <code>bool</code>.
+	 */
+	public static final TypeTest BOOL = new Tags(Tag.bit(Tag.BOOL));
+
+	/**
+	 * The test for <code>int</code>. Character literals are given type
+	 * <code>int</code> by the type checker, and hence are tagged as such.
+	 */
+	public static final TypeTest INT = new Tags(Tag.bit(Tag.INT));
+
+	/**
+	 * A test which checks only the tag of a value, against a bitmask of
+	 * permitted tags.
+	 */
+	private static final class Tags extends TypeTest {
+		private final int mask;
+
+		public Tags(int mask) {
+			this.mask = mask;
+		}
+
+		@Override
+		public boolean test(Object value) {
+			return (mask & Tag.bit(Tag.of(value))) != 0;
+		}
+	}
+
+	/**
+	 * The test for an array type whose elements must also be checked.
+	 */
+	private static final class Array extends TypeTest {
+		private final TypeTest element;
+
+		public Array(TypeTest element) {
+			this.element = element;
+		}
+
+		@Override
+		public boolean test(Object value) {
+			if (!(value instanceof ArrayList)) {
+				return false;
+			}
+			ArrayList<?> list = (ArrayList<?>) value;
+			for (int i = 0; i != list.size(); ++i) {
+				if (!element.test(list.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		protected int tag() {
+			return Tag.ARRAY;
+		}
+	}
+
+	/**
+	 * The test for a record type, where at least one field must be checked.
+	 * Only those fields whose test is not <code>ANY</code> are retained.
+	 */
+	private static final class Record extends TypeTest {
+		private final String[] fields;
+		private final TypeTest[] tests;
+
+		public Record(String[] fields, TypeTest[] tests) {
+			this.fields = fields;
+			this.tests = tests;
+		}
+
+		@Override
+		public boolean test(Object value) {
+			if (!(value instanceof HashMap)) {
+				return false;
+			}
+			HashMap<?, ?> record = (HashMap<?, ?>) value;
+			for (int i = 0; i != fields.length; ++i) {
+				Object field = record.get(fields[i]);
+				if (field == null || !tests[i].test(field)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		protected int tag() {
+			return Tag.RECORD;
+		}
+	}
+
+	/**
+	 * The test for a union type. Values whose tag is in the mask pass
+	 * immediately. Otherwise, only those alternatives applicable to values
+	 * with that tag are tried.
+	 */
+	private static final class Union extends TypeTest {
+		private final int mask;
+		private final TypeTest[][] alternatives;
+
+		public Union(int mask, TypeTest[][] alternatives) {
+			this.mask = mask;
+			this.alternatives = alternatives;
+		}
+
+		@Override
+		public boolean test(Object value) {
+			int tag = Tag.of(value);
+			if ((mask & Tag.bit(tag)) != 0) {
+				return true;
+			}
+			TypeTest[] tests = alternatives[tag];
+			for (int i = 0; i != tests.length; ++i) {
+				if (tests[i].test(value)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The test for a recursive named type. The test for the body of the type
+	 * is filled in once it has been compiled.
+	 */
+	private static final class Named extends TypeTest {
+		private TypeTest body;
+
+		@Override
+		public boolean test(Object value) {
+			return body.test(value);
+		}
+	}
+
+	/**
+	 * Responsible for compiling type tests within the context of a given set
+	 * of declarations, which are used to resolve named types. The tests for
+	 * recursive named types are shared between all tests compiled by a given
+	 * compiler.
+	 */
+	public static class Compiler {
+		private final Map<String, WhileFile.Decl> declarations;
+
+		/**
+		 * The tests for named types which have been compiled without any
+		 * static information.
+		 */
+		private final HashMap<String, Named> named = new HashMap<String, Named>();
+
+		/**
+		 * The named types whose bodies are currently being compiled.
+		 */
+		private final HashSet<String> resolving = new HashSet<String>();
+
+		public Compiler(Map<String, WhileFile.Decl> declarations) {
+			this.declarations = declarations;
+		}
+
+		/**
+		 * Compile a test for a given type, where the value being tested is
+		 * known to be an instance of a given static type.
+		 *
+		 * @param type
+		 *            The type being tested.
+		 * @param known
+		 *            The static type of the values being tested, or
+		 *            <code>null</code> if this is unknown.
+		 * @return
+		 */
+		public TypeTest compile(Type type, Type known) {
+			if (known != null && implies(known, type, new HashSet<String>())) {
+				return ANY;
+			} else if (type instanceof Type.Void || type instanceof Type.Null) {
+				return NULL;
+			} else if (type instanceof Type.Bool) {
+				return BOOL;
+			} else if (type instanceof Type.Int) {
+				return INT;
+			} else if (type instanceof Type.Named) {
+				return compile((Type.Named) type, known);
+			} else if (type instanceof Type.Array) {
+				Type.Array array = (Type.Array) type;
+				Type.Array knownArray = (Type.Array) select(known, Type.Array.class);
+				Type knownElement = knownArray == null ? null : knownArray.getElement();
+				TypeTest element = compile(array.getElement(), knownElement);
+				return element == ANY ? new Tags(Tag.bit(Tag.ARRAY)) : new Array(element);
+			} else if (type instanceof Type.Record) {
+				return compile((Type.Record) type, known);
+			} else if (type instanceof Type.Union) {
+				return compile((Type.Union) type, known);
+			}
+			throw new RuntimeException("unknown type encountered (" + type + ")");
+		}
+
+		private TypeTest compile(Type.Named type, Type known) {
+			String name = type.getName();
+			Type body = body(name);
+			if (body == null) {
+				return NONE;
+			} else if (known == null || resolving.contains(name)) {
+				Named test = named.get(name);
+				if (test == null) {
+					test = new Named();
+					named.put(name, test);
+					resolving.add(name);
+					test.body = compile(body, null);
+					resolving.remove(name);
+				}
+				return test;
+			} else {
+				resolving.add(name);
+				TypeTest test = compile(body, known);
+				resolving.remove(name);
+				return test;
+			}
+		}
+
+		private TypeTest compile(Type.Record type, Type known) {
+			Type.Record knownRecord = (Type.Record) select(known, Type.Record.class);
+			ArrayList<String> fields = new ArrayList<String>();
+			ArrayList<TypeTest> tests = new ArrayList<TypeTest>();
+			for (Pair<Type, String> field : type.getFields()) {
+				TypeTest test = compile(field.first(), fieldType(knownRecord, field.second()));
+				if (test == NONE) {
+					return NONE;
+				} else if (test != ANY) {
+					fields.add(field.second());
+					tests.add(test);
+				}
+			}
+			if (fields.isEmpty()) {
+				return new Tags(Tag.bit(Tag.RECORD));
+			}
+			return new Record(fields.toArray(new String[fields.size()]), tests.toArray(new TypeTest[tests.size()]));
+		}
+
+		private TypeTest compile(Type.Union type, Type known) {
+			int mask = 0;
+			ArrayList<TypeTest> alternatives = new ArrayList<TypeTest>();
+			for (Type alternative : type.getType_list()) {
+				TypeTest test = compile(alternative, known);
+				if (test == ANY) {
+					return ANY;
+				} else if (test instanceof Tags) {
+					mask |= ((Tags) test).mask;
+				} else if (test != NONE) {
+					alternatives.add(test);
+				}
+			}
+			if (alternatives.isEmpty()) {
+				return mask == 0 ? NONE : new Tags(mask);
+			} else if (alternatives.size() == 1 && mask == 0) {
+				return alternatives.get(0);
+			}
+			// Group the remaining alternatives by the tag they require
+			TypeTest[][] byTag = new TypeTest[Tag.COUNT][];
+			for (int tag = 0; tag != Tag.COUNT; ++tag) {
+				ArrayList<TypeTest> tests = new ArrayList<TypeTest>();
+				if ((mask & Tag.bit(tag)) == 0) {
+					for (TypeTest test : alternatives) {
+						if (test.tag() == tag || test.tag() == -1) {
+							tests.add(test);
+						}
+					}
+				}
+				byTag[tag] = tests.toArray(new TypeTest[tests.size()]);
+			}
+			return new Union(mask, byTag);
+		}
+
+		/**
+		 * Determine whether every instance of one type is also an instance of
+		 * another, as far as the runtime tests are concerned. This is
+		 * conservative, in that it may fail to spot some cases where this
+		 * holds. Recursive named types are handled by assuming that any pair
+		 * of types already being considered holds.
+		 *
+		 * @param known
+		 * @param type
+		 * @param assumptions
+		 * @return
+		 */
+		private boolean implies(Type known, Type type, Set<String> assumptions) {
+			if (known instanceof Type.Void) {
+				// There are no values of type void
+				return true;
+			} else if (type instanceof Type.Named || known instanceof Type.Named) {
+				if (type instanceof Type.Named && known instanceof Type.Named
+						&& ((Type.Named) type).getName().equals(((Type.Named) known).getName())) {
+					return true;
+				} else if (!assumptions.add(known + " <: " + type)) {
+					return true;
+				}
+				Type t = type instanceof Type.Named ? body(((Type.Named) type).getName()) : type;
+				Type k = known instanceof Type.Named ? body(((Type.Named) known).getName()) : known;
+				return t != null && k != null && implies(k, t, assumptions);
+			} else if (known instanceof Type.Union) {
+				for (Type alternative : ((Type.Union) known).getType_list()) {
+					if (!implies(alternative, type, assumptions)) {
+						return false;
+					}
+				}
+				return true;
+			} else if (type instanceof Type.Union) {
+				for (Type alternative : ((Type.Union) type).getType_list()) {
+					if (implies(known, alternative, assumptions)) {
+						return true;
+					}
+				}
+				return false;
+			} else if (type instanceof Type.Void || type instanceof Type.Null) {
+				return known instanceof Type.Null;
+			} else if (type instanceof Type.Bool) {
+				return known instanceof Type.Bool;
+			} else if (type instanceof Type.Int) {
+				return known instanceof Type.Int;
+			} else if (type instanceof Type.Array) {
+				return known instanceof Type.Array
+						&& implies(((Type.Array) known).getElement(), ((Type.Array) type).getElement(), assumptions);
+			} else if (type instanceof Type.Record && known instanceof Type.Record) {
+				for (Pair<Type, String> field : ((Type.Record) type).getFields()) {
+					Type knownField = fieldType((Type.Record) known, field.second());
+					if (knownField == null || !implies(knownField, field.first(), assumptions)) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Select the only alternative of a given static type which is of a
+		 * given kind (e.g. an array type). Since runtime values of different
+		 * kinds are distinct, any value of that kind must be an instance of
+		 * this alternative. If there is no such alternative, or more than one,
+		 * then <code>null</code> is returned.
+		 *
+		 * @param known
+		 * @param kind
+		 * @return
+		 */
+		private Type select(Type known, Class<? extends Type> kind) {
+			ArrayList<Type> alternatives = new ArrayList<Type>();
+			flatten(known, alternatives, new HashSet<String>());
+			Type selected = null;
+			for (Type alternative : alternatives) {
+				if (alternative instanceof Type.Named) {
+					// Cannot tell which kind this is
+					return null;
+				} else if (kind.isInstance(alternative)) {
+					if (selected != null) {
+						return null;
+					}
+					selected = alternative;
+				}
+			}
+			return selected;
+		}
+
+		private void flatten(Type type, List<Type> alternatives, Set<String> visited) {
+			if (type instanceof Type.Union) {
+				for (Type alternative : ((Type.Union) type).getType_list()) {
+					flatten(alternative, alternatives, visited);
+				}
+			} else if (type instanceof Type.Named) {
+				String name = ((Type.Named) type).getName();
+				Type body = body(name);
+				if (body == null || !visited.add(name)) {
+					alternatives.add(type);
+				} else {
+					flatten(body, alternatives, visited);
+				}
+			} else if (type != null) {
+				alternatives.add(type);
+			}
+		}
+
+		private Type fieldType(Type.Record record, String field) {
+			if (record != null) {
+				for (Pair<Type, String> p : record.getFields()) {
+					if (p.second().equals(field)) {
+						return p.first();
+					}
+				}
+			}
+			return null;
+		}
+
+		private Type body(String name) {
+			WhileFile.Decl declaration = declarations.get(name);
+			if (declaration instanceof WhileFile.TypeDecl) {
+				return ((WhileFile.TypeDecl) declaration).getType();
+			}
+			return null;
+		}
+	}
+}
@@ -19,9 +19,16 @@
 package whilelang;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.lang.reflect.Method;
 
 import whilelang.ast.WhileFile;
+import whilelang.compiler.BytecodeGenerator;
 import whilelang.compiler.ClassFileWriter;
 import whilelang.compiler.TypeChecker;
 import whilelang.compiler.WhileCompiler;
@@ -29,6 +36,34 @@ import whilelang.util.*;
 
 public class Main {
 
+	/**
+	 * The maximum number of results retained when memoising pure functions.
+	 */
+	private static final int MEMO_CAPACITY = 10000;
+
+	/**
+	 * The number of statements listed in a hot-spot report.
+	 */
+	private static final int PROFILE_REPORT_SIZE = 20;
+
+	/**
+	 * The number of invocations plus loop iterations after which a method is
+	 * compiled into JVM bytecode, when using tiered execution.
+	 */
+	private static final int TIERED_THRESHOLD = 1000;
+
+	/**
+	 * Target for compilation.
+	 *
+	 */
+	private enum Target {
+		INTERPRETER,
+		TIERED,
+		CLOSURES,
+		VM,
+		JVM
+	}
+
 	/**
 	 * A simple entry point for running the compiler. This parses command-line
 	 * options and then compiles and executes any while source files supplied.
@@ -38,6 +73,12 @@ public class Main {
 	 */
 	public static void main(String[] args) throws Exception {
 		boolean verbose = false;
+		boolean memoise = false;
+		boolean profile = false;
+		boolean optimise = false;
+		int buffer = BufferedPrintSink.DEFAULT_CAPACITY;
+		// The target is resolved once all options are known
+		Target target = null;
 		int fileArgsBegin = 0;
 
 		for (int i = 0; i != args.length; ++i) {
@@ -51,6 +92,24 @@ public class Main {
 					System.exit(0);
 				} else if (arg.equals("-verbose")) {
 					verbose = true;
+				} else if(arg.equals("-interpreter")) {
+					target = Target.INTERPRETER;
+				} else if(arg.equals("-tiered")) {
+					target = Target.TIERED;
+				} else if(arg.equals("-closures")) {
+					target = Target.CLOSURES;
+				} else if(arg.equals("-vm")) {
+					target = Target.VM;
+				} else if(arg.equals("-jvm")) {
+					target = Target.JVM;
+				} else if(arg.equals("-optimise")) {
+					optimise = true;
+				} else if(arg.equals("-memoise")) {
+					memoise = true;
+				} else if(arg.equals("-buffer")) {
+					buffer = Integer.parseInt(args[++i]);
+				} else if(arg.equals("-profile")) {
+					profile = true;
 				} else {
 					throw new RuntimeException("Unknown option: " + args[i]);
 				}
@@ -59,9 +118,31 @@ public class Main {
 			}
 		}
 
+		if(profile) {
+			// Profiling is only supported by the interpreter
+			if(target != null && target != Target.INTERPRETER) {
+				System.err.println("-profile cannot be used with -" + target.name().toLowerCase());
+				System.exit(-1);
+			}
+			target = Target.INTERPRETER;
+		} else if(memoise) {
+			// Memoisation is only supported by the interpreter (including
+			// when tiered)
+			if(target != null && target != Target.INTERPRETER && target != Target.TIERED) {
+				System.err.println("-memoise cannot be used with -" + target.name().toLowerCase());
+				System.exit(-1);
+			}
+			if(target == null) {
+				target = Target.INTERPRETER;
+			}
+		} else if(target == null) {
+			target = Target.JVM;
+		}
+
 		for (int i = fileArgsBegin; i != args.length; ++i) {
 			String filename = args[i];
-			if(!compileAndExecute(filename,verbose)) {
+			PrintSink sink = new BufferedPrintSink(System.out, buffer);
+			if(!compileAndExecute(filename,verbose,memoise,profile,optimise,sink,target)) {
 				System.exit(-1);
 			}
 		}
@@ -76,24 +157,82 @@ public class Main {
 	 * @param verbose
 	 *            Flag indicating whether or not to print out detailed
 	 *            information when an error occurs.
+	 * @param memoise
+	 *            Flag indicating whether or not the interpreter should memoise
+	 *            calls to pure functions, and report how effective this was.
+	 * @param profile
+	 *            Flag indicating whether or not the interpreter should profile
+	 *            the program, and report where time was spent on exit.
+	 * @param optimise
+	 *            Flag indicating whether or not the program should be optimised
+	 *            before it is executed.
+	 * @param sink
+	 *            Receives the output of print statements (not supported when
+	 *            compiling to JVM bytecode).
+	 * @param target
+	 *            The target environment used to execute the program.
 	 * @return
 	 */
-	public static boolean compileAndExecute(String sourceFilename, boolean verbose) {
+	public static boolean compileAndExecute(String sourceFilename, boolean verbose, boolean memoise,
+			boolean profile, boolean optimise, PrintSink sink, Target target) {
 		try {			
+			if(target == Target.VM) {
+				// The bytecode is cached alongside the source file, hence
+				// parsing and checking can be skipped when run again.
+				VirtualMachine vm = new VirtualMachine();
+				vm.setPrintSink(sink);
+				vm.run(compileToBytecode(sourceFilename, optimise));
+				return true;
+			}
 
-			WhileCompiler compiler = new WhileCompiler(sourceFilename);
+			WhileCompiler compiler = new WhileCompiler(sourceFilename, optimise);
 
 			// First, compile the source file
 			WhileFile ast = compiler.compile();
 			
 			// Second, execute it!
-			//new Interpreter().run(ast);
-			
-			String classFilename = sourceFilename.replace(".while", ".class");
-			new ClassFileWriter(classFilename).write(ast);
-			Class testClass = Class.forName(classFilename.replace(".class", ""));
-			Method m = testClass.getMethod("main");
-			m.invoke(null);
+			switch(target) {
+			case INTERPRETER:
+			case TIERED:
+				Interpreter interpreter = new Interpreter();
+				interpreter.setPrintSink(sink);
+				if(memoise) {
+					interpreter.enableMemoisation(MEMO_CAPACITY);
+				}
+				if(target == Target.TIERED) {
+					interpreter.enableTieredCompilation(TIERED_THRESHOLD);
+				}
+				Profiler profiler = profile ? new Profiler(ast) : null;
+				interpreter.setProfiler(profiler);
+				try {
+					interpreter.run(ast);
+				} finally {
+					if(memoise) {
+						System.err.println(interpreter.getMemoCache());
+					}
+					if(profile) {
+						writeProfile(profiler, sourceFilename);
+					}
+					if(verbose && target == Target.TIERED) {
+						System.err.println(interpreter.getTieredCompiler());
+					}
+				}
+				break;
+			case CLOSURES:
+				ClosureInterpreter closures = new ClosureInterpreter();
+				closures.setPrintSink(sink);
+				closures.run(ast);
+				break;
+			case JVM:
+				String classFilename = sourceFilename.replace(".while", ".class");
+				new ClassFileWriter(classFilename).write(ast);
+				Class testClass = Class.forName(classFilename.replace(".class", ""));
+				Method m = testClass.getMethod("main");
+				m.invoke(null);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown target : " + target);
+			}
 			
 		} catch (SyntaxError e) {
 			// Catch a syntax error which has occurred during one of the
@@ -118,6 +257,56 @@ public class Main {
 		return true;
 	}
 
+	/**
+	 * Print a hot-spot report for a profiled program, and dump the full profile
+	 * in a machine-readable form alongside the source file.
+	 *
+	 * @param profiler
+	 * @param sourceFilename
+	 * @throws IOException
+	 */
+	private static void writeProfile(Profiler profiler, String sourceFilename) throws IOException {
+		profiler.report(System.err, PROFILE_REPORT_SIZE);
+		String profileFilename = sourceFilename.replaceAll("\\.while$", "") + ".profile";
+		try (PrintStream out = new PrintStream(new FileOutputStream(profileFilename))) {
+			profiler.dump(out);
+		}
+		System.err.println("profile written to " + profileFilename);
+	}
+
+	/**
+	 * Get the bytecode for a given while source file. If a bytecode file for
+	 * the source file exists and is more recent, then it is used directly.
+	 * Otherwise, the source file is compiled and the bytecode file is
+	 * (re)written. Optimised bytecode is cached in a separate file.
+	 *
+	 * @param sourceFilename
+	 *            Filename of while source file to be compiled.
+	 * @param optimise
+	 *            Flag indicating whether or not the program should be optimised.
+	 * @return
+	 * @throws IOException
+	 */
+	private static Bytecode.Program compileToBytecode(String sourceFilename, boolean optimise) throws IOException {
+		File source = new File(sourceFilename);
+		String extension = optimise ? ".opt.wlbc" : ".wlbc";
+		File binary = new File(sourceFilename.replaceAll("\\.while$", "") + extension);
+		if (binary.lastModified() > source.lastModified()) {
+			try (InputStream in = new FileInputStream(binary)) {
+				return Bytecode.read(in);
+			} catch (IOException e) {
+				// Fall through and recompile, since the cached bytecode is
+				// unreadable.
+			}
+		}
+		WhileFile ast = new WhileCompiler(sourceFilename, optimise).compile();
+		Bytecode.Program program = new BytecodeGenerator().generate(ast);
+		try (OutputStream out = new FileOutputStream(binary)) {
+			Bytecode.write(program, out);
+		}
+		return program;
+	}
+
 	/**
 	 * Print out information regarding command-line arguments
 	 *
@@ -125,7 +314,16 @@ public class Main {
 	public static void usage() {
 		String[][] info = { 
 				{ "version", "Print version information" },
-				{ "verbose", "Print detailed information on what the compiler is doing" } 
+				{ "verbose", "Print detailed information on what the compiler is doing" },
+				{ "interpreter", "Execute programs using the AST interpreter" },
+				{ "tiered", "Execute programs using the AST interpreter, compiling hot methods to JVM bytecode" },
+				{ "closures", "Execute programs using the closure-compiled interpreter" },
+				{ "vm", "Execute programs using the bytecode virtual machine" },
+				{ "jvm", "Execute programs by compiling them to JVM bytecode (default)" },
+				{ "optimise", "Optimise programs before executing them" },
+				{ "memoise", "Execute programs using the AST interpreter, memoising calls to pure functions" },
+				{ "buffer <n>", "Hold back at most n characters of printed output (0 writes each line immediately)" },
+				{ "profile", "Execute programs using the AST interpreter, and report where time is spent" } 
 				};
 
 		System.out.println("usage: wlc <options> <source-files>");
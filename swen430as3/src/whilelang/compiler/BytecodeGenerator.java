@@ -0,0 +1,681 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import static whilelang.util.Bytecode.*;
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.WhileFile;
+import whilelang.util.Bytecode;
+import whilelang.util.FrameLayout;
+import whilelang.util.Pair;
+
+/**
+ * <p>
+ * Responsible for lowering a (type-checked) While source file into the
+ * register-based instruction set described by <code>Bytecode</code>. The
+ * registers of each method begin with the slots of its frame layout (so
+ * parameters and locals never need to be moved), followed by temporaries.
+ * Temporaries are allocated in a stack-like fashion and released at the end of
+ * each statement.
+ * </p>
+ * <p>
+ * The deep clones which the <code>Interpreter</code> performs to maintain value
+ * semantics are made explicit here (<code>COPY</code>, <code>STORE</code>,
+ * <code>PUTFIELD</code> and <code>CALL</code>). A copy is omitted only when
+ * assigning a value which cannot be shared, such as the result of an
+ * arithmetic operation.
+ * </p>
+ */
+public class BytecodeGenerator {
+	private WhileFile file;
+
+	/**
+	 * Maps each method name to its index in the generated program.
+	 */
+	private HashMap<String, Integer> functions;
+
+	/**
+	 * The constant pool shared by all methods.
+	 */
+	private ArrayList<Object> constants;
+
+	// Per-method state
+	private int[] code;
+	private int size;
+	private int registers;
+	private int maxRegisters;
+	private ArrayList<Label> breakTargets;
+	private ArrayList<Label> continueTargets;
+
+	public Bytecode.Program generate(WhileFile wf) {
+		this.file = wf;
+		this.functions = new HashMap<String, Integer>();
+		this.constants = new ArrayList<Object>();
+		ArrayList<WhileFile.MethodDecl> methods = new ArrayList<WhileFile.MethodDecl>();
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.MethodDecl) {
+				functions.put(decl.name(), methods.size());
+				methods.add((WhileFile.MethodDecl) decl);
+			}
+		}
+		Bytecode.Function[] fns = new Bytecode.Function[methods.size()];
+		for (int i = 0; i != fns.length; ++i) {
+			fns[i] = generate(methods.get(i));
+		}
+		return new Bytecode.Program(constants.toArray(), fns);
+	}
+
+	private Bytecode.Function generate(WhileFile.MethodDecl method) {
+		FrameLayout layout = FrameLayout.resolve(method);
+		this.code = new int[64];
+		this.size = 0;
+		this.registers = layout.size();
+		this.maxRegisters = registers;
+		this.breakTargets = new ArrayList<Label>();
+		this.continueTargets = new ArrayList<Label>();
+		generate(method.getBody());
+		// Falling off the end of a method is an implicit return
+		emit(RETURNVOID);
+		return new Bytecode.Function(method.getName(), method.getParameters().size(), maxRegisters,
+				Arrays.copyOf(code, size));
+	}
+
+	// =========================================================================
+	// Statements
+	// =========================================================================
+
+	private void generate(List<Stmt> block) {
+		for (Stmt s : block) {
+			// Temporaries do not live beyond the statement which uses them
+			int mark = registers;
+			generate(s);
+			registers = mark;
+		}
+	}
+
+	private void generate(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			generate((Stmt.Assert) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			generate((Stmt.Print) stmt);
+		} else if (stmt instanceof Stmt.Assign) {
+			generate((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			generate((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			generate((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			generate((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Break) {
+			jump(top(breakTargets), JUMP);
+		} else if (stmt instanceof Stmt.Continue) {
+			jump(top(continueTargets), JUMP);
+		} else if (stmt instanceof Stmt.IfElse) {
+			generate((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			generate((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			generate((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			// The returned value (if any) is discarded
+			generate((Expr.Invoke) stmt, -1);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+		}
+	}
+
+	private void generate(Stmt.Assert stmt) {
+		emit(ASSERT, operand(stmt.getExpr()));
+	}
+
+	private void generate(Stmt.Print stmt) {
+		emit(PRINT, operand(stmt.getExpr()));
+	}
+
+	private void generate(Stmt.Assign stmt) {
+		Expr lhs = stmt.getLhs();
+		if (lhs instanceof Expr.Variable) {
+			assign(FrameLayout.slotOf((Expr.Variable) lhs), stmt.getRhs());
+		} else if (lhs instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
+			int src = operand(ra.getSource());
+			int rhs = operand(stmt.getRhs());
+			emit(PUTFIELD, src, constant(ra.getName()), rhs);
+		} else if (lhs instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lhs;
+			int src = operand(io.getSource());
+			int idx = operand(io.getIndex());
+			int rhs = operand(stmt.getRhs());
+			emit(STORE, src, idx, rhs);
+		} else {
+			internalFailure("unknown lval encountered (" + lhs + ")", file.filename, stmt);
+		}
+	}
+
+	private void generate(Stmt.For stmt) {
+		Label body = new Label();
+		Label test = new Label();
+		Label increment = new Label();
+		Label exit = new Label();
+		generate(stmt.getDeclaration());
+		// The loop is rotated, such that each iteration executes only a single
+		// (conditional) branch.
+		jump(test, JUMP);
+		bind(body);
+		loop(stmt.getBody(), exit, increment);
+		bind(increment);
+		generate(stmt.getIncrement());
+		bind(test);
+		branch(stmt.getCondition(), true, body);
+		bind(exit);
+	}
+
+	private void generate(Stmt.While stmt) {
+		Label body = new Label();
+		Label test = new Label();
+		Label exit = new Label();
+		jump(test, JUMP);
+		bind(body);
+		loop(stmt.getBody(), exit, test);
+		bind(test);
+		branch(stmt.getCondition(), true, body);
+		bind(exit);
+	}
+
+	private void loop(List<Stmt> body, Label breakTarget, Label continueTarget) {
+		breakTargets.add(breakTarget);
+		continueTargets.add(continueTarget);
+		generate(body);
+		breakTargets.remove(breakTargets.size() - 1);
+		continueTargets.remove(continueTargets.size() - 1);
+	}
+
+	private void generate(Stmt.IfElse stmt) {
+		Label falseBranch = new Label();
+		branch(stmt.getCondition(), false, falseBranch);
+		generate(stmt.getTrueBranch());
+		if (stmt.getFalseBranch().isEmpty()) {
+			bind(falseBranch);
+		} else {
+			Label exit = new Label();
+			jump(exit, JUMP);
+			bind(falseBranch);
+			generate(stmt.getFalseBranch());
+			bind(exit);
+		}
+	}
+
+	private void generate(Stmt.Switch stmt) {
+		List<Stmt.Case> cases = stmt.getCases();
+		int value = operand(stmt.getExpr());
+		int tmp = allocate(1);
+		// First, test each case in turn. The first one which matches
+		// determines where execution enters the sequence of case bodies.
+		Label[] bodies = new Label[cases.size()];
+		for (int i = 0; i != bodies.length; ++i) {
+			Expr e = cases.get(i).getValue();
+			bodies[i] = new Label();
+			if (e == null) {
+				// default case
+				jump(bodies[i], JUMP);
+			} else {
+				generate(e, tmp);
+				jump(bodies[i], IFEQ, value, tmp);
+			}
+		}
+		Label exit = new Label();
+		jump(exit, JUMP);
+		// Second, lay out the case bodies one after the other so that falling
+		// through from one case to the next comes for free.
+		breakTargets.add(exit);
+		for (int i = 0; i != bodies.length; ++i) {
+			bind(bodies[i]);
+			generate(cases.get(i).getBody());
+		}
+		breakTargets.remove(breakTargets.size() - 1);
+		bind(exit);
+	}
+
+	private void generate(Stmt.Return stmt) {
+		if (stmt.getExpr() instanceof Expr.Invoke) {
+			// A call in tail position replaces the current activation, hence
+			// the stack does not grow.
+			Expr.Invoke e = (Expr.Invoke) stmt.getExpr();
+			int index = function(e);
+			int first = evaluateAll(e.getArguments());
+			emit(TAILCALL, index, first, e.getArguments().size());
+		} else if (stmt.getExpr() != null) {
+			emit(RETURN, operand(stmt.getExpr()));
+		} else {
+			emit(RETURNVOID);
+		}
+	}
+
+	private void generate(Stmt.VariableDeclaration stmt) {
+		// Definite assignment ensures an uninitialised variable is never read
+		if (stmt.getExpr() != null) {
+			assign(FrameLayout.slotOf(stmt), stmt.getExpr());
+		}
+	}
+
+	/**
+	 * Assign an expression to a given variable slot. A deep clone is required
+	 * to preserve value semantics, unless the value produced cannot be shared
+	 * with anything else.
+	 *
+	 * @param slot
+	 * @param rhs
+	 */
+	private void assign(int slot, Expr rhs) {
+		if (rhs instanceof Expr.Literal || rhs instanceof Expr.Binary || rhs instanceof Expr.Unary) {
+			generate(rhs, slot);
+		} else {
+			emit(COPY, slot, operand(rhs));
+		}
+	}
+
+	// =========================================================================
+	// Conditions
+	// =========================================================================
+
+	/**
+	 * Generate code which branches to a given target when the condition
+	 * evaluates to a given outcome, and otherwise falls through. Comparisons
+	 * are lowered directly into compare-and-branch instructions.
+	 *
+	 * @param condition
+	 * @param outcome
+	 * @param target
+	 */
+	private void branch(Expr condition, boolean outcome, Label target) {
+		if (condition instanceof Expr.Literal && ((Expr.Literal) condition).getValue() instanceof Boolean) {
+			if ((Boolean) ((Expr.Literal) condition).getValue() == outcome) {
+				jump(target, JUMP);
+			}
+		} else if (condition instanceof Expr.Unary && ((Expr.Unary) condition).getOp() == Expr.UOp.NOT) {
+			branch(((Expr.Unary) condition).getExpr(), !outcome, target);
+		} else if (condition instanceof Expr.Binary) {
+			branch((Expr.Binary) condition, outcome, target);
+		} else {
+			jump(target, outcome ? IFTRUE : IFFALSE, operand(condition));
+		}
+	}
+
+	private void branch(Expr.Binary condition, boolean outcome, Label target) {
+		Expr lhs = condition.getLhs();
+		Expr rhs = condition.getRhs();
+		switch (condition.getOp()) {
+		case AND:
+			if (outcome) {
+				Label skip = new Label();
+				branch(lhs, false, skip);
+				branch(rhs, true, target);
+				bind(skip);
+			} else {
+				branch(lhs, false, target);
+				branch(rhs, false, target);
+			}
+			return;
+		case OR:
+			if (outcome) {
+				branch(lhs, true, target);
+				branch(rhs, true, target);
+			} else {
+				Label skip = new Label();
+				branch(lhs, true, skip);
+				branch(rhs, false, target);
+				bind(skip);
+			}
+			return;
+		case LT:
+		case GTEQ:
+			if (isLengthOf(rhs)) {
+				// Superinstruction for the common loop condition i < |xs|
+				boolean lessThan = (condition.getOp() == Expr.BOp.LT) == outcome;
+				int a = operand(lhs);
+				int b = operand(((Expr.Unary) rhs).getExpr());
+				jump(target, lessThan ? IFLTLEN : IFGELEN, a, b);
+				return;
+			}
+			break;
+		default:
+			break;
+		}
+		int opcode = branchOpcode(condition.getOp(), outcome);
+		if (opcode < 0) {
+			jump(target, outcome ? IFTRUE : IFFALSE, operand(condition));
+		} else {
+			int a = operand(lhs);
+			int b = operand(rhs);
+			jump(target, opcode, a, b);
+		}
+	}
+
+	private static boolean isLengthOf(Expr e) {
+		return e instanceof Expr.Unary && ((Expr.Unary) e).getOp() == Expr.UOp.LENGTHOF;
+	}
+
+	private static int branchOpcode(Expr.BOp op, boolean outcome) {
+		switch (op) {
+		case EQ:
+			return outcome ? IFEQ : IFNE;
+		case NEQ:
+			return outcome ? IFNE : IFEQ;
+		case LT:
+			return outcome ? IFLT : IFGE;
+		case LTEQ:
+			return outcome ? IFLE : IFGT;
+		case GT:
+			return outcome ? IFGT : IFLE;
+		case GTEQ:
+			return outcome ? IFGE : IFLT;
+		default:
+			return -1;
+		}
+	}
+
+	// =========================================================================
+	// Expressions
+	// =========================================================================
+
+	/**
+	 * Get a register holding the value of a given expression. Variables are
+	 * read directly from their slot, whilst anything else is evaluated into a
+	 * fresh temporary.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private int operand(Expr expr) {
+		if (expr instanceof Expr.Variable) {
+			return FrameLayout.slotOf((Expr.Variable) expr);
+		} else {
+			int target = allocate(1);
+			generate(expr, target);
+			return target;
+		}
+	}
+
+	/**
+	 * Generate code which evaluates a given expression into a given target
+	 * register. The target is only written by the final instruction, hence it
+	 * may safely be a variable which the expression itself reads.
+	 *
+	 * @param expr
+	 * @param target
+	 */
+	private void generate(Expr expr, int target) {
+		if (expr instanceof Expr.Binary) {
+			generate((Expr.Binary) expr, target);
+		} else if (expr instanceof Expr.Literal) {
+			generate((Expr.Literal) expr, target);
+		} else if (expr instanceof Expr.Invoke) {
+			generate((Expr.Invoke) expr, target);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			int src = operand(e.getSource());
+			int idx = operand(e.getIndex());
+			emit(LOAD, target, src, idx);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			int value = operand(e.getValue());
+			int count = operand(e.getSize());
+			emit(GENARRAY, target, value, count);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			List<Expr> elements = ((Expr.ArrayInitialiser) expr).getArguments();
+			int first = evaluateAll(elements);
+			emit(NEWARRAY, target, first, elements.size());
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			int src = operand(e.getSource());
+			emit(GETFIELD, target, src, constant(e.getName()));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			generate((Expr.RecordConstructor) expr, target);
+		} else if (expr instanceof Expr.Unary) {
+			generate((Expr.Unary) expr, target);
+		} else if (expr instanceof Expr.Variable) {
+			int slot = FrameLayout.slotOf((Expr.Variable) expr);
+			if (slot != target) {
+				emit(MOVE, target, slot);
+			}
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+
+	private void generate(Expr.Binary expr, int target) {
+		Expr lhs = expr.getLhs();
+		Expr rhs = expr.getRhs();
+		switch (expr.getOp()) {
+		case AND:
+		case OR: {
+			// Short-circuiting operators are evaluated into a temporary, as the
+			// target may be read by the right-hand side.
+			int tmp = allocate(1);
+			Label exit = new Label();
+			generate(lhs, tmp);
+			jump(exit, expr.getOp() == Expr.BOp.AND ? IFFALSE : IFTRUE, tmp);
+			generate(rhs, tmp);
+			bind(exit);
+			emit(MOVE, target, tmp);
+			return;
+		}
+		case ADD:
+			if (isIntLiteral(rhs)) {
+				// Superinstruction for e.g. i = i + 1
+				emit(ADDI, target, operand(lhs), intLiteral(rhs));
+				return;
+			} else if (isIntLiteral(lhs)) {
+				emit(ADDI, target, operand(rhs), intLiteral(lhs));
+				return;
+			}
+			break;
+		case SUB:
+			if (isIntLiteral(rhs)) {
+				emit(ADDI, target, operand(lhs), -intLiteral(rhs));
+				return;
+			}
+			break;
+		default:
+			break;
+		}
+		int a = operand(lhs);
+		int b = operand(rhs);
+		emit(binaryOpcode(expr), target, a, b);
+	}
+
+	private int binaryOpcode(Expr.Binary expr) {
+		switch (expr.getOp()) {
+		case ADD:
+			return ADD;
+		case SUB:
+			return SUB;
+		case MUL:
+			return MUL;
+		case DIV:
+			return DIV;
+		case REM:
+			return REM;
+		case EQ:
+			return EQ;
+		case NEQ:
+			return NE;
+		case LT:
+			return LT;
+		case LTEQ:
+			return LE;
+		case GT:
+			return GT;
+		case GTEQ:
+			return GE;
+		default:
+			internalFailure("unknown binary expression encountered (" + expr + ")", file.filename, expr);
+			return -1;
+		}
+	}
+
+	private static boolean isIntLiteral(Expr e) {
+		return e instanceof Expr.Literal && ((Expr.Literal) e).getValue() instanceof Integer;
+	}
+
+	private static int intLiteral(Expr e) {
+		return (Integer) ((Expr.Literal) e).getValue();
+	}
+
+	private void generate(Expr.Literal expr, int target) {
+		Object value = expr.getValue();
+		if (value instanceof String) {
+			// Strings are arrays, hence a fresh one is needed every time
+			emit(STRING, target, constant(value));
+		} else {
+			emit(CONST, target, constant(value));
+		}
+	}
+
+	private void generate(Expr.Invoke expr, int target) {
+		int index = function(expr);
+		List<Expr> arguments = expr.getArguments();
+		int first = evaluateAll(arguments);
+		emit(CALL, target, index, first, arguments.size());
+	}
+
+	private int function(Expr.Invoke expr) {
+		Integer index = functions.get(expr.getName());
+		if (index == null) {
+			internalFailure("unknown function encountered (" + expr.getName() + ")", file.filename, expr);
+		}
+		return index;
+	}
+
+	private void generate(Expr.RecordConstructor expr, int target) {
+		List<Pair<String, Expr>> fields = expr.getFields();
+		String[] names = new String[fields.size()];
+		int first = allocate(fields.size());
+		for (int i = 0; i != names.length; ++i) {
+			names[i] = fields.get(i).first();
+			generate(fields.get(i).second(), first + i);
+		}
+		// Field names are never shared, since arrays are compared by identity
+		constants.add(names);
+		emit(NEWRECORD, target, constants.size() - 1, first);
+	}
+
+	private void generate(Expr.Unary expr, int target) {
+		int operand = operand(expr.getExpr());
+		switch (expr.getOp()) {
+		case NOT:
+			emit(NOT, target, operand);
+			break;
+		case NEG:
+			emit(NEG, target, operand);
+			break;
+		case LENGTHOF:
+			emit(LENGTH, target, operand);
+			break;
+		default:
+			internalFailure("unknown unary expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+
+	/**
+	 * Evaluate a list of expressions into consecutive registers, returning the
+	 * first.
+	 *
+	 * @param exprs
+	 * @return
+	 */
+	private int evaluateAll(List<Expr> exprs) {
+		int first = allocate(exprs.size());
+		for (int i = 0; i != exprs.size(); ++i) {
+			generate(exprs.get(i), first + i);
+		}
+		return first;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+
+	/**
+	 * Represents a (possibly not yet known) position in the code array. Jumps
+	 * to an unbound label are patched once it is bound.
+	 */
+	private static final class Label {
+		private int position = -1;
+		private final ArrayList<Integer> uses = new ArrayList<Integer>();
+	}
+
+	private int allocate(int n) {
+		int r = registers;
+		registers += n;
+		maxRegisters = Math.max(maxRegisters, registers);
+		return r;
+	}
+
+	private int constant(Object value) {
+		int index = constants.indexOf(value);
+		if (index < 0) {
+			index = constants.size();
+			constants.add(value);
+		}
+		return index;
+	}
+
+	private static Label top(ArrayList<Label> targets) {
+		return targets.get(targets.size() - 1);
+	}
+
+	private void emit(int... words) {
+		if (size + words.length > code.length) {
+			code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+		}
+		System.arraycopy(words, 0, code, size, words.length);
+		size += words.length;
+	}
+
+	/**
+	 * Emit a jump instruction to a given target, which becomes its final
+	 * operand.
+	 *
+	 * @param target
+	 * @param words
+	 *            The opcode followed by any other operands.
+	 */
+	private void jump(Label target, int... words) {
+		if (target.position < 0) {
+			target.uses.add(size + words.length);
+		}
+		emit(words);
+		emit(target.position);
+	}
+
+	private void bind(Label label) {
+		label.position = size;
+		for (int use : label.uses) {
+			code[use] = size;
+		}
+		label.uses.clear();
+	}
+}
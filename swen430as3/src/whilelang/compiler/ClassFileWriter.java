@@ -52,13 +52,91 @@ public class ClassFileWriter {
 	 * @throws FileNotFoundException
 	 */
 	public ClassFileWriter(String classFile) throws FileNotFoundException {
-		writer = new jasm.io.ClassFileWriter(new FileOutputStream(classFile));
+		this(new FileOutputStream(classFile));
+	}
+
+	/**
+	 * Construct a ClassFileWriter which will write the compiled class to a
+	 * given stream (e.g. so that it can be loaded without going to disk).
+	 *
+	 * @param output
+	 */
+	public ClassFileWriter(OutputStream output) {
+		writer = new jasm.io.ClassFileWriter(output);
 		declaredTypes = new HashMap<String,Type>();
 		methodTypes = new HashMap<String,JvmType.Function>();
 	}
 
 	public void write(WhileFile sourceFile) throws IOException {
 		String moduleName = new File(sourceFile.filename).getName().replace(".while","");
+		write(sourceFile, moduleName, null);
+	}
+
+	/**
+	 * Write a class of a given name containing only some of the methods
+	 * declared in a While file. Since each method is translated into a static
+	 * method which invokes others in the same class, every method invoked by
+	 * one included must be included as well.
+	 *
+	 * @param sourceFile
+	 * @param className
+	 * @param methods
+	 *            The names of the methods to include, or <code>null</code> to
+	 *            include all of them.
+	 * @throws IOException
+	 */
+	public void write(WhileFile sourceFile, String className, Set<String> methods) throws IOException {
+		write(sourceFile, className, methods, Collections.<Loop>emptyList());
+	}
+
+	/**
+	 * Describes a loop to be translated into a method of its own, such that
+	 * execution of the loop can be transferred into that method part way
+	 * through (i.e. on-stack replacement). The method accepts a single
+	 * <code>Object[]</code> holding the value of each variable declared
+	 * outside the loop and used within it. The loop starts by checking its
+	 * condition (hence, the declaration of a <code>for</code> loop is not
+	 * executed). Once the loop exits, the final value of each variable is
+	 * written back into the array. The loop must not return from its
+	 * enclosing method.
+	 */
+	public static final class Loop {
+		private final String name;
+		private final Stmt loop;
+		private final List<Pair<Type,String>> variables;
+
+		/**
+		 * @param name
+		 *            The name of the generated method
+		 * @param loop
+		 *            Either a <code>while</code> or <code>for</code> loop
+		 * @param variables
+		 *            The type and name of each variable held in the array, in
+		 *            order.
+		 */
+		public Loop(String name, Stmt loop, List<Pair<Type,String>> variables) {
+			this.name = name;
+			this.loop = loop;
+			this.variables = variables;
+		}
+	}
+
+	/**
+	 * Write a class of a given name containing only some of the methods
+	 * declared in a While file, and a method for each of a given list of
+	 * loops. Every method invoked by one included (or by a loop) must be
+	 * included as well.
+	 *
+	 * @param sourceFile
+	 * @param className
+	 * @param methods
+	 *            The names of the methods to include, or <code>null</code> to
+	 *            include all of them.
+	 * @param loops
+	 * @throws IOException
+	 */
+	public void write(WhileFile sourceFile, String className, Set<String> methods, List<Loop> loops)
+			throws IOException {
 		// Modifiers for class
 		List<Modifier> modifiers = Arrays.asList(Modifier.ACC_PUBLIC, Modifier.ACC_FINAL);
 		// List of interfaces implemented by class
@@ -66,7 +144,7 @@ public class ClassFileWriter {
 		// Base class for this class
 		JvmType.Clazz superClass = JvmTypes.JAVA_LANG_OBJECT;
 		// The class name for this class
-		JvmType.Clazz owner = new JvmType.Clazz(moduleName);
+		JvmType.Clazz owner = new JvmType.Clazz(className);
 		// Create the class!
 		ClassFile cf = new ClassFile(CLASS_VERSION, owner, superClass, implemented, modifiers);
 		// Add an attribute to the generated class file which indicates the
@@ -78,6 +156,9 @@ public class ClassFileWriter {
 		// have no meaning on the JVM.
 		for(WhileFile.Decl d : sourceFile.declarations) {
 			if(d instanceof WhileFile.MethodDecl) {
+				if(methods != null && !methods.contains(d.name())) {
+					continue;
+				}
 				ClassFile.Method m = translate((WhileFile.MethodDecl) d, owner);
 				cf.methods().add(m);
 			} else if(d instanceof WhileFile.TypeDecl) {
@@ -86,6 +167,10 @@ public class ClassFileWriter {
 				declaredTypes.put(td.getName(), td.getType());
 			}
 		}
+		for(Loop loop : loops) {
+			cf.methods().add(translate(loop, owner));
+		}
+		cf.methods().add(translateDeepClone(owner));
 		// Finally, write the generated classfile to disk
 		writer.write(cf);
 	}
@@ -103,8 +188,11 @@ public class ClassFileWriter {
 		// Construct method object
 		ClassFile.Method cm = new ClassFile.Method(method.name(), ft, modifiers);
 		// Generate bytecodes representing method body
-		Context context = new Context(owner,constructMethodEnvironment(method));
+		Context context = new Context(owner,method,freshLabel(),constructMethodEnvironment(method));
 		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		// Mark the start of the method, as recursive calls in tail position
+		// jump back to here.
+		bytecodes.add(new Bytecode.Label(context.getEntryLabel()));
 		translate(method.getBody(),context,bytecodes);
 		// Handle methods with missing return statements, as these need a
 		// bytecode
@@ -121,6 +209,53 @@ public class ClassFileWriter {
 		return cm;
 	}
 
+	/**
+	 * Translate a given loop into a ClassFile method, which transfers the
+	 * values of variables in and out through an array (see <code>Loop</code>).
+	 *
+	 * @param loop
+	 * @param owner
+	 * @return
+	 */
+	private ClassFile.Method translate(Loop loop, JvmType.Clazz owner) {
+		List<Modifier> modifiers = Arrays.asList(Modifier.ACC_PUBLIC, Modifier.ACC_STATIC);
+		JvmType.Function ft = new JvmType.Function(JvmTypes.VOID, OBJECT_ARRAY);
+		ClassFile.Method cm = new ClassFile.Method(loop.name, ft, modifiers);
+		Context context = new Context(owner,null,freshLabel(),new HashMap<String,Integer>());
+		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		// The array occupies the first register, and cannot clash with a
+		// variable name.
+		int array = context.declareRegister("$variables");
+		// Load each variable from the array into its own register
+		for(int i=0;i!=loop.variables.size();++i) {
+			Pair<Type,String> v = loop.variables.get(i);
+			int register = context.declareRegister(v.second());
+			bytecodes.add(new Bytecode.Load(array, OBJECT_ARRAY));
+			bytecodes.add(new Bytecode.LoadConst(i));
+			bytecodes.add(new Bytecode.ArrayLoad(OBJECT_ARRAY));
+			addReadConversion(v.first(),bytecodes);
+			bytecodes.add(new Bytecode.Store(register, toJvmType(v.first())));
+		}
+		if(loop.loop instanceof Stmt.For) {
+			translateLoop((Stmt.For) loop.loop, context, bytecodes);
+		} else {
+			translate((Stmt.While) loop.loop, context, bytecodes);
+		}
+		// Write the final value of each variable back into the array
+		for(int i=0;i!=loop.variables.size();++i) {
+			Pair<Type,String> v = loop.variables.get(i);
+			bytecodes.add(new Bytecode.Load(array, OBJECT_ARRAY));
+			bytecodes.add(new Bytecode.LoadConst(i));
+			bytecodes.add(new Bytecode.Load(context.getRegister(v.second()), toJvmType(v.first())));
+			boxAsNecessary(v.first(),bytecodes);
+			bytecodes.add(new Bytecode.ArrayStore(OBJECT_ARRAY));
+		}
+		bytecodes.add(new Bytecode.Return(null));
+		jasm.attributes.Code code = new jasm.attributes.Code(bytecodes, Collections.<jasm.attributes.Code.Handler>emptyList(), cm);
+		cm.attributes().add(code);
+		return cm;
+	}
+
 	/**
 	 * Translate a list of statements in the While language into a series of
 	 * bytecodes which implement their behaviour. The result indicates whether
@@ -241,7 +376,18 @@ public class ClassFileWriter {
 	private void translate(Stmt.For stmt, Context context, List<Bytecode> bytecodes) {
 		//set up for
 		translate(stmt.getDeclaration(),context,bytecodes);
+		translateLoop(stmt,context,bytecodes);
+	}
 
+	/**
+	 * Translate a for loop, starting from the check of its condition (i.e.
+	 * assuming its declaration has already been executed).
+	 *
+	 * @param stmt
+	 * @param context
+	 * @param bytecodes
+	 */
+	private void translateLoop(Stmt.For stmt, Context context, List<Bytecode> bytecodes) {
 		String trueLabel, exitLabel,conditionLabel,endIterationLabel;
 		conditionLabel = freshLabel()+"_conditional";
 		endIterationLabel = freshLabel()+"_increment";
@@ -358,7 +504,9 @@ public class ClassFileWriter {
 
 	private void translate(Stmt.Return stmt, Context context, List<Bytecode> bytecodes) {
 		Expr expr = stmt.getExpr();
-		if(expr != null) {
+		if(isTailRecursive(expr, context)) {
+			translateTailCall((Expr.Invoke) expr, context, bytecodes);
+		} else if(expr != null) {
 			// Determine type of returned expression
 			Attribute.Type attr = expr.attribute(Attribute.Type.class);
 			// Translate returned expression
@@ -371,6 +519,48 @@ public class ClassFileWriter {
 		}
 	}
 
+	/**
+	 * Check whether a returned expression is a call to the enclosing method
+	 * itself, which can then be translated without a JVM method invocation.
+	 *
+	 * @param expr
+	 * @param context
+	 * @return
+	 */
+	private boolean isTailRecursive(Expr expr, Context context) {
+		return expr instanceof Expr.Invoke
+				&& ((Expr.Invoke) expr).getName().equals(context.getMethod().getName());
+	}
+
+	/**
+	 * Translate a recursive call in tail position. Since the current frame is
+	 * no longer needed, the arguments simply replace the parameters and
+	 * execution jumps back to the start of the method. Thus, the JVM stack
+	 * does not grow.
+	 *
+	 * @param expr
+	 * @param context
+	 * @param bytecodes
+	 */
+	private void translateTailCall(Expr.Invoke expr, Context context, List<Bytecode> bytecodes) {
+		List<Expr> arguments = expr.getArguments();
+		List<WhileFile.Parameter> parameters = context.getMethod().getParameters();
+		// First, evaluate all arguments before any parameter is overwritten,
+		// since they may refer to the parameters.
+		for(int i=0;i!=arguments.size();++i) {
+			Expr e =  arguments.get(i);
+			translate(e,context,bytecodes);
+			Attribute.Type attr = e.attribute(Attribute.Type.class);
+			cloneAsNecessary(toJvmType(attr.type),context,bytecodes);
+		}
+		// Second, store them into the parameters in reverse order
+		for(int i=parameters.size()-1;i>=0;--i) {
+			WhileFile.Parameter p = parameters.get(i);
+			bytecodes.add(new Bytecode.Store(context.getRegister(p.getName()), toJvmType(p.getType())));
+		}
+		bytecodes.add(new Bytecode.Goto(context.getEntryLabel()));
+	}
+
 	private void translate(Stmt.Switch stmt, Context context, List<Bytecode> bytecodes) {
 
 //		print_byte_info(new JvmType.Int(),context,bytecodes);
@@ -475,7 +665,7 @@ public class ClassFileWriter {
 			Expr.Variable var = (Expr.Variable) lhs;
 			//load the rhs
 			translate(rhs, context, bytecodes);
-			cloneAsNecessary(rhsType,bytecodes);
+			cloneAsNecessary(rhsType,context,bytecodes);
 			int register = context.getRegister(var.getName());
 			bytecodes.add(new Bytecode.Store(register, rhsType));
 		}else if(lhs instanceof Expr.IndexOf){
@@ -487,6 +677,7 @@ public class ClassFileWriter {
 			translate(expr.getIndex(),context,bytecodes);
 			//value
 			translate(rhs,context,bytecodes);
+			cloneAsNecessary(rhsType,context,bytecodes);
 			//convert to object
 			boxAsNecessary(attr.type,bytecodes);
 
@@ -505,11 +696,6 @@ public class ClassFileWriter {
 			translate(access.getSource(),context,bytecodes);
 
 			putInHashMap(access.getName(),rhs,context,bytecodes);
-			//load the rhs
-			translate(rhs, context, bytecodes);
-			cloneAsNecessary(rhsType,bytecodes);
-
-
 		} else {
 			throw new IllegalArgumentException("unknown lval encountered: "+lhs.toString());
 		}
@@ -636,6 +822,8 @@ public class ClassFileWriter {
 		//convert to object
 		//FIXME added this line to literal but not sure if correct
 		boxAsNecessary(t,bytecodes);
+		// The element must not alias the value it was read from
+		cloneAsNecessary(toJvmType(t),context,bytecodes);
 		JvmType.Function boxMethodType =
 				new JvmType.Function(new JvmType.Primitive.Bool(), JvmTypes.JAVA_LANG_OBJECT);
 
@@ -851,7 +1039,7 @@ public class ClassFileWriter {
 			translate(e,context,bytecodes);
 			Attribute.Type attr = e.attribute(Attribute.Type.class);
 			JvmType arg_type = toJvmType(attr.type);
-			cloneAsNecessary(arg_type,bytecodes);
+			cloneAsNecessary(arg_type,context,bytecodes);
 		}
 		bytecodes.add(new Bytecode.Invoke(context.getEnclosingClass(), expr.getName(), type, STATIC));
 	}
@@ -884,7 +1072,7 @@ public class ClassFileWriter {
 		Type t = attr.type;
 		//convert  to object
 		boxAsNecessary(t,bytecodes);
-		cloneAsNecessary(toJvmType(t),bytecodes);
+		cloneAsNecessary(toJvmType(t),context,bytecodes);
 
 		JvmType.Function boxMethodType =
 				new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT, JvmTypes.JAVA_LANG_OBJECT,JvmTypes.JAVA_LANG_OBJECT);
@@ -1020,17 +1208,127 @@ public class ClassFileWriter {
 	 * @param bytecodes
 	 *            The list of bytecodes being accumulated
 	 */
-	private void cloneAsNecessary(JvmType type, List<Bytecode> bytecodes) {
+	private void cloneAsNecessary(JvmType type, Context context, List<Bytecode> bytecodes) {
 		if(type instanceof JvmType.Primitive || type == JvmTypes.JAVA_LANG_STRING) {
 			// no need to do anything in the case of a primitive type
 		} else {
-			// Invoke the clone function on the datatype in question
-			JvmType.Function ft = new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT);
-			bytecodes.add(new Bytecode.Invoke((JvmType.Reference) type, "clone", ft, Bytecode.InvokeMode.VIRTUAL));
+			// Perform a deep clone, since a shallow clone (i.e. clone()) would
+			// leave any nested arrays or records aliased.
+			bytecodes.add(new Bytecode.Invoke(context.getEnclosingClass(), DEEP_CLONE, DEEP_CLONE_TYPE, STATIC));
 			bytecodes.add(new Bytecode.CheckCast(type));
 		}
 	}
 
+	/**
+	 * Construct the method which deep clones a value, as invoked by
+	 * <code>cloneAsNecessary()</code>. This is generated into every class,
+	 * such that the class can be run without any of the compiler's classes.
+	 * Lists (<code>ArrayList</code>) and records (<code>HashMap</code>) are
+	 * copied, and their elements cloned in place; other values are immutable
+	 * and returned as is.
+	 *
+	 * @param owner
+	 *            The class being generated
+	 * @return
+	 */
+	private ClassFile.Method translateDeepClone(JvmType.Clazz owner) {
+		List<Modifier> modifiers = Arrays.asList(Modifier.ACC_PRIVATE, Modifier.ACC_STATIC);
+		ClassFile.Method cm = new ClassFile.Method(DEEP_CLONE, DEEP_CLONE_TYPE, modifiers);
+		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		// Registers hold the value, its copy, then the loop index or iterator,
+		// and then the current entry.
+		String notList = freshLabel();
+		String notRecord = freshLabel();
+		String listLoop = freshLabel();
+		String listEnd = freshLabel();
+		String recordLoop = freshLabel();
+		String recordEnd = freshLabel();
+		// Lists
+		bytecodes.add(new Bytecode.Load(0, JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.InstanceOf(JAVA_UTIL_ARRAYLIST));
+		bytecodes.add(new Bytecode.If(Bytecode.IfMode.EQ, notList));
+		bytecodes.add(new Bytecode.New(JAVA_UTIL_ARRAYLIST));
+		bytecodes.add(new Bytecode.Dup(JAVA_UTIL_ARRAYLIST));
+		bytecodes.add(new Bytecode.Load(0, JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.CheckCast(JAVA_UTIL_COLLECTION));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYLIST, "<init>",
+				new JvmType.Function(JvmTypes.VOID, JAVA_UTIL_COLLECTION), Bytecode.InvokeMode.SPECIAL));
+		bytecodes.add(new Bytecode.Store(1, JAVA_UTIL_ARRAYLIST));
+		bytecodes.add(new Bytecode.LoadConst(0));
+		bytecodes.add(new Bytecode.Store(2, new JvmType.Int()));
+		bytecodes.add(new Bytecode.Label(listLoop));
+		bytecodes.add(new Bytecode.Load(2, new JvmType.Int()));
+		bytecodes.add(new Bytecode.Load(1, JAVA_UTIL_ARRAYLIST));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYLIST, "size", new JvmType.Function(new JvmType.Int()),
+				VIRTUAL));
+		bytecodes.add(new Bytecode.IfCmp(Bytecode.IfCmp.GE, new JvmType.Int(), listEnd));
+		bytecodes.add(new Bytecode.Load(1, JAVA_UTIL_ARRAYLIST));
+		bytecodes.add(new Bytecode.Load(2, new JvmType.Int()));
+		bytecodes.add(new Bytecode.Load(1, JAVA_UTIL_ARRAYLIST));
+		bytecodes.add(new Bytecode.Load(2, new JvmType.Int()));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYLIST, "get",
+				new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT, new JvmType.Int()), VIRTUAL));
+		bytecodes.add(new Bytecode.Invoke(owner, DEEP_CLONE, DEEP_CLONE_TYPE, STATIC));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYLIST, "set",
+				new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT, new JvmType.Int(), JvmTypes.JAVA_LANG_OBJECT),
+				VIRTUAL));
+		bytecodes.add(new Bytecode.Pop(JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.Iinc(2, 1));
+		bytecodes.add(new Bytecode.Goto(listLoop));
+		bytecodes.add(new Bytecode.Label(listEnd));
+		bytecodes.add(new Bytecode.Load(1, JAVA_UTIL_ARRAYLIST));
+		bytecodes.add(new Bytecode.Return(JvmTypes.JAVA_LANG_OBJECT));
+		// Records
+		bytecodes.add(new Bytecode.Label(notList));
+		bytecodes.add(new Bytecode.Load(0, JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.InstanceOf(JAVA_UTIL_HASHMAP));
+		bytecodes.add(new Bytecode.If(Bytecode.IfMode.EQ, notRecord));
+		bytecodes.add(new Bytecode.New(JAVA_UTIL_HASHMAP));
+		bytecodes.add(new Bytecode.Dup(JAVA_UTIL_HASHMAP));
+		bytecodes.add(new Bytecode.Load(0, JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.CheckCast(JAVA_UTIL_MAP));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_HASHMAP, "<init>",
+				new JvmType.Function(JvmTypes.VOID, JAVA_UTIL_MAP), Bytecode.InvokeMode.SPECIAL));
+		bytecodes.add(new Bytecode.Store(1, JAVA_UTIL_HASHMAP));
+		bytecodes.add(new Bytecode.Load(1, JAVA_UTIL_HASHMAP));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_HASHMAP, "entrySet", new JvmType.Function(JAVA_UTIL_SET),
+				VIRTUAL));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_SET, "iterator", new JvmType.Function(JAVA_UTIL_ITERATOR),
+				Bytecode.InvokeMode.INTERFACE));
+		bytecodes.add(new Bytecode.Store(2, JAVA_UTIL_ITERATOR));
+		bytecodes.add(new Bytecode.Label(recordLoop));
+		bytecodes.add(new Bytecode.Load(2, JAVA_UTIL_ITERATOR));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ITERATOR, "hasNext", new JvmType.Function(new JvmType.Bool()),
+				Bytecode.InvokeMode.INTERFACE));
+		bytecodes.add(new Bytecode.If(Bytecode.IfMode.EQ, recordEnd));
+		bytecodes.add(new Bytecode.Load(2, JAVA_UTIL_ITERATOR));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ITERATOR, "next", new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT),
+				Bytecode.InvokeMode.INTERFACE));
+		bytecodes.add(new Bytecode.CheckCast(JAVA_UTIL_MAP_ENTRY));
+		bytecodes.add(new Bytecode.Store(3, JAVA_UTIL_MAP_ENTRY));
+		// Replacing the value of an entry does not disturb the iteration
+		bytecodes.add(new Bytecode.Load(3, JAVA_UTIL_MAP_ENTRY));
+		bytecodes.add(new Bytecode.Load(3, JAVA_UTIL_MAP_ENTRY));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_MAP_ENTRY, "getValue",
+				new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT), Bytecode.InvokeMode.INTERFACE));
+		bytecodes.add(new Bytecode.Invoke(owner, DEEP_CLONE, DEEP_CLONE_TYPE, STATIC));
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_MAP_ENTRY, "setValue",
+				new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT, JvmTypes.JAVA_LANG_OBJECT),
+				Bytecode.InvokeMode.INTERFACE));
+		bytecodes.add(new Bytecode.Pop(JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.Goto(recordLoop));
+		bytecodes.add(new Bytecode.Label(recordEnd));
+		bytecodes.add(new Bytecode.Load(1, JAVA_UTIL_HASHMAP));
+		bytecodes.add(new Bytecode.Return(JvmTypes.JAVA_LANG_OBJECT));
+		// Everything else
+		bytecodes.add(new Bytecode.Label(notRecord));
+		bytecodes.add(new Bytecode.Load(0, JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.Return(JvmTypes.JAVA_LANG_OBJECT));
+		jasm.attributes.Code code = new jasm.attributes.Code(bytecodes, Collections.<jasm.attributes.Code.Handler>emptyList(), cm);
+		cm.attributes().add(code);
+		return cm;
+	}
+
 	/**
 	 * Box the element on top of the stack, if it is of an appropriate type
 	 * (i.e. is not a primitive).
@@ -1253,6 +1551,17 @@ public class ClassFileWriter {
 	private static final JvmType.Clazz JAVA_UTIL_HASHMAP = new JvmType.Clazz("java.util","HashMap");
 	private static final JvmType.Clazz JAVA_UTIL_COLLECTION = new JvmType.Clazz("java.util","Collection");
 	private static final JvmType.Clazz JAVA_UTIL_COLLECTIONS = new JvmType.Clazz("java.util","Collections");
+	private static final JvmType.Array OBJECT_ARRAY = new JvmType.Array(JvmTypes.JAVA_LANG_OBJECT);
+	private static final JvmType.Clazz JAVA_UTIL_MAP = new JvmType.Clazz("java.util","Map");
+	private static final JvmType.Clazz JAVA_UTIL_MAP_ENTRY = new JvmType.Clazz("java.util","Map$Entry");
+	private static final JvmType.Clazz JAVA_UTIL_SET = new JvmType.Clazz("java.util","Set");
+	private static final JvmType.Clazz JAVA_UTIL_ITERATOR = new JvmType.Clazz("java.util","Iterator");
+
+	// The method generated into each class to deep clone a value. This cannot
+	// clash with a While method, since no While type is translated as Object.
+	private static final String DEEP_CLONE = "$deepClone";
+	private static final JvmType.Function DEEP_CLONE_TYPE = new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT,
+			JvmTypes.JAVA_LANG_OBJECT);
 
 	/**
 	 * Provides useful contextual information which passed down through the
@@ -1268,6 +1577,12 @@ public class ClassFileWriter {
 		 */
 		private final JvmType.Clazz enclosingClass;
 
+		/**
+		 * The method being translated, and the label marking its start.
+		 */
+		private final WhileFile.MethodDecl method;
+		private final String entryLabel;
+
 		/**
 		 * Maps each declared variable to a jvm register index
 		 */
@@ -1277,14 +1592,19 @@ public class ClassFileWriter {
 
 
 
-		public Context(JvmType.Clazz enclosingClass, Map<String,Integer> environment) {
+		public Context(JvmType.Clazz enclosingClass, WhileFile.MethodDecl method, String entryLabel,
+				Map<String,Integer> environment) {
 			this.enclosingClass = enclosingClass;
+			this.method = method;
+			this.entryLabel = entryLabel;
 			this.environment = environment;
 			this.loopManagement = new Stack<>();
 		}
 
 		public Context(Context context) {
 			this.enclosingClass = context.enclosingClass;
+			this.method = context.method;
+			this.entryLabel = context.entryLabel;
 			this.environment = new HashMap<String,Integer>(context.environment);
 			this.loopManagement = new Stack<>();
 		}
@@ -1298,6 +1618,24 @@ public class ClassFileWriter {
 			return enclosingClass;
 		}
 
+		/**
+		 * Get the method being translated in this context.
+		 *
+		 * @return
+		 */
+		public WhileFile.MethodDecl getMethod() {
+			return method;
+		}
+
+		/**
+		 * Get the label marking the start of the method being translated.
+		 *
+		 * @return
+		 */
+		public String getEntryLabel() {
+			return entryLabel;
+		}
+
 		/**
 		 * Declare a new variable in the given context. This basically allocated
 		 * the given variable to the next available register slot.
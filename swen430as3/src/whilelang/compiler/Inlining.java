@@ -0,0 +1,781 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.EffectAnalysis;
+import whilelang.util.Pair;
+
+/**
+ * <p>
+ * Responsible for replacing calls to small functions with the bodies of those
+ * functions. For example, given <code>int max(int a, int b)</code>, the
+ * statement <code>int m = max(x, y + 1);</code> becomes:
+ * </p>
+ *
+ * <pre>
+ * int m;
+ * int b$1 = y + 1;
+ * if(x > b$1) { m = x; } else { m = b$1; }
+ * </pre>
+ *
+ * <p>
+ * The locals of an inlined function are renamed apart from those of its
+ * caller (using a character which cannot occur in source identifiers). Since
+ * values are passed by value, a parameter is only declared as a copy of its
+ * argument when the function assigns to it (in whole or part), or when the
+ * argument is not simply a variable or constant. Otherwise, the argument is
+ * substituted directly for the parameter.
+ * </p>
+ *
+ * <p>
+ * A call is inlined where it forms a statement, or the whole initialiser,
+ * right-hand side or return value of one. A call nested within an expression
+ * is first moved into a temporary variable declared before the statement,
+ * provided nothing evaluated before it in that statement could fail (and so
+ * be reordered with any effects of the call). Calls in loop conditions, and
+ * in the declaration or increment of a <code>for</code> loop, are not
+ * inlined. Except where a call is returned directly, its function must return
+ * only from the ends of blocks outside of loops and switches, so that each
+ * <code>return</code> can be turned into an assignment.
+ * </p>
+ *
+ * <p>
+ * Functions are processed in callee-first order, so that the body inlined is
+ * one which has itself been transformed. Recursive functions are never
+ * inlined, and neither are functions whose body exceeds a given size (counted
+ * in statements and expressions).
+ * </p>
+ */
+public class Inlining extends Transformer {
+	/**
+	 * The maximum size of a function which may be inlined.
+	 */
+	private final int maxSize;
+
+	/**
+	 * Maps each function to its declaration, which is the transformed
+	 * declaration once this is available.
+	 */
+	private HashMap<String, WhileFile.MethodDecl> methods;
+
+	/**
+	 * The functions which may (directly or indirectly) invoke themselves.
+	 */
+	private Set<String> recursive;
+
+	/**
+	 * Caches the size of each function, once it has been transformed.
+	 */
+	private HashMap<String, Integer> sizes;
+
+	/**
+	 * Used to construct names which are unique within the file.
+	 */
+	private int fresh;
+
+	/**
+	 * The names of the variables declared within the function being
+	 * transformed, including those introduced by inlining.
+	 */
+	private Set<String> names;
+
+	/**
+	 * The number of calls inlined.
+	 */
+	private int inlined;
+
+	public Inlining(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the number of calls which were inlined.
+	 *
+	 * @return
+	 */
+	public int getInlined() {
+		return inlined;
+	}
+
+	@Override
+	public WhileFile transform(WhileFile wf) {
+		this.file = wf;
+		EffectAnalysis effects = new EffectAnalysis();
+		effects.pureFunctions(wf);
+		Map<String, Set<String>> calls = effects.callGraph();
+		methods = new HashMap<String, WhileFile.MethodDecl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				methods.put(declaration.name(), (WhileFile.MethodDecl) declaration);
+			}
+		}
+		sizes = new HashMap<String, Integer>();
+		recursive = new HashSet<String>();
+		for (String name : methods.keySet()) {
+			if (reaches(name, name, calls, new HashSet<String>())) {
+				recursive.add(name);
+			}
+		}
+		HashSet<String> visited = new HashSet<String>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				transform(declaration.name(), calls, visited);
+			}
+		}
+		ArrayList<WhileFile.Decl> declarations = new ArrayList<WhileFile.Decl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				declarations.add(methods.get(declaration.name()));
+			} else {
+				declarations.add(declaration);
+			}
+		}
+		return new WhileFile(wf.filename, declarations);
+	}
+
+	/**
+	 * Transform a given function, having first transformed the functions it
+	 * invokes.
+	 *
+	 * @param name
+	 * @param calls
+	 *            The functions directly invoked by each function.
+	 * @param visited
+	 *            The functions which have already been (or are being)
+	 *            transformed.
+	 */
+	private void transform(String name, Map<String, Set<String>> calls, Set<String> visited) {
+		if (!visited.add(name)) {
+			return;
+		}
+		for (String callee : calls.get(name)) {
+			if (methods.containsKey(callee)) {
+				transform(callee, calls, visited);
+			}
+		}
+		methods.put(name, transform(methods.get(name)));
+	}
+
+	@Override
+	public WhileFile.MethodDecl transform(WhileFile.MethodDecl method) {
+		names = declaredNames(method);
+		return super.transform(method);
+	}
+
+	@Override
+	public void transform(Stmt stmt, List<Stmt> output) {
+		if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() instanceof Expr.Invoke && canInline((Expr.Invoke) s.getExpr(), false)) {
+				output.add(new Stmt.VariableDeclaration(s.getType(), s.getName(), null, attributes(s)));
+				Expr.Variable target = new Expr.Variable(s.getName(), attributes(s.getExpr()));
+				inline((Expr.Invoke) s.getExpr(), target, output);
+				return;
+			}
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			if (s.getLhs() instanceof Expr.Variable && s.getRhs() instanceof Expr.Invoke
+					&& canInline((Expr.Invoke) s.getRhs(), false)) {
+				inline((Expr.Invoke) s.getRhs(), (Expr.Variable) s.getLhs(), output);
+				return;
+			}
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			if (s.getExpr() instanceof Expr.Invoke && canInline((Expr.Invoke) s.getExpr(), true)) {
+				// The body is inlined as it is, such that it returns from the
+				// caller directly.
+				output.addAll(instantiate((Expr.Invoke) s.getExpr(), output));
+				inlined++;
+				return;
+			}
+		} else if (stmt instanceof Expr.Invoke) {
+			if (canInline((Expr.Invoke) stmt, false)) {
+				inline((Expr.Invoke) stmt, null, output);
+				return;
+			}
+		}
+		super.transform(hoist(stmt, output), output);
+	}
+
+	/**
+	 * Inline a given call, such that its result is assigned to a given
+	 * variable (or discarded, if this is <code>null</code>).
+	 *
+	 * @param call
+	 * @param target
+	 * @param output
+	 */
+	private void inline(Expr.Invoke call, Expr.Variable target, List<Stmt> output) {
+		List<Stmt> body = instantiate(call, output);
+		output.addAll(assignReturns(body, target));
+		inlined++;
+	}
+
+	/**
+	 * Construct a copy of the body of the function invoked by a given call,
+	 * whose locals are renamed apart from those of the caller and whose
+	 * parameters are bound to the arguments of the call. The declarations of
+	 * any parameters which must be copied are appended onto a given list.
+	 *
+	 * @param call
+	 * @param output
+	 * @return
+	 */
+	private List<Stmt> instantiate(Expr.Invoke call, List<Stmt> output) {
+		WhileFile.MethodDecl callee = methods.get(call.getName());
+		Set<String> mutated = new HashSet<String>();
+		assigned(callee.getBody(), mutated);
+		HashMap<String, Expr> bindings = new HashMap<String, Expr>();
+		for (int i = 0; i != callee.getParameters().size(); ++i) {
+			WhileFile.Parameter p = callee.getParameters().get(i);
+			Expr argument = call.getArguments().get(i);
+			if (!mutated.contains(p.getName())
+					&& (argument instanceof Expr.Variable || ConstantPropagation.constant(argument) != null)) {
+				bindings.put(p.getName(), argument);
+			} else {
+				String name = freshName(p.getName());
+				// The argument may itself contain calls to be inlined
+				transform(new Stmt.VariableDeclaration(p.getType(), name, argument, attributes(call)), output);
+				bindings.put(p.getName(), new Expr.Variable(name, attributes(argument)));
+			}
+		}
+		return new Renamer(bindings).transform(callee.getBody());
+	}
+
+	/**
+	 * Replace every <code>return</code> in an instantiated function body by an
+	 * assignment to a given variable. Where a return occurs within an
+	 * <code>if</code> statement, the statements following it are moved into
+	 * whichever branches can complete normally.
+	 *
+	 * @param block
+	 * @param target
+	 *            The variable assigned, or <code>null</code> if the result is
+	 *            discarded.
+	 * @return
+	 */
+	private List<Stmt> assignReturns(List<Stmt> block, Expr.Variable target) {
+		ArrayList<Stmt> result = new ArrayList<Stmt>();
+		for (int i = 0; i != block.size(); ++i) {
+			Stmt stmt = block.get(i);
+			if (stmt instanceof Stmt.Return) {
+				Expr value = ((Stmt.Return) stmt).getExpr();
+				if (target != null) {
+					Expr.Variable lhs = new Expr.Variable(target.getName(), attributes(target));
+					result.add(new Stmt.Assign(lhs, value, attributes(stmt)));
+				} else if (value != null && !isSafe(value)) {
+					// The result must still be evaluated, in case this fails
+					Type type = typeOf(value);
+					result.add(new Stmt.VariableDeclaration(type, freshName("result"), value, attributes(stmt)));
+				}
+				return result;
+			} else if (stmt instanceof Stmt.IfElse && containsReturn(stmt)) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				List<Stmt> rest = block.subList(i + 1, block.size());
+				List<Stmt> trueBranch = s.getTrueBranch();
+				List<Stmt> falseBranch = s.getFalseBranch();
+				if (!alwaysReturns(trueBranch)) {
+					trueBranch = concat(trueBranch, rest);
+				}
+				if (!alwaysReturns(falseBranch)) {
+					// Nodes cannot be shared, hence the copy
+					falseBranch = concat(falseBranch, new Transformer(true) {}.transform(rest));
+				}
+				result.add(new Stmt.IfElse(s.getCondition(), assignReturns(trueBranch, target),
+						assignReturns(falseBranch, target), attributes(s)));
+				return result;
+			} else {
+				result.add(stmt);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Move each call nested within the expressions of a given statement which
+	 * can be inlined into a temporary variable, appending the statements which
+	 * compute it onto a given list. Statements which contain blocks of their
+	 * own are not affected, other than the condition of an <code>if</code> or
+	 * <code>switch</code>.
+	 *
+	 * @param stmt
+	 * @param output
+	 * @return
+	 */
+	private Stmt hoist(Stmt stmt, List<Stmt> output) {
+		Hoister h = new Hoister(output);
+		if (stmt instanceof Stmt.Assert) {
+			Stmt.Assert s = (Stmt.Assert) stmt;
+			Expr e = h.hoist(s.getExpr());
+			return e == s.getExpr() ? s : new Stmt.Assert(e, attributes(s));
+		} else if (stmt instanceof Stmt.Print) {
+			Stmt.Print s = (Stmt.Print) stmt;
+			Expr e = h.hoist(s.getExpr());
+			return e == s.getExpr() ? s : new Stmt.Print(e, attributes(s));
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			h.safe = isSafeTarget(s.getLhs());
+			Expr e = h.hoist(s.getRhs());
+			return e == s.getRhs() ? s : new Stmt.Assign(s.getLhs(), e, attributes(s));
+		} else if (stmt instanceof Stmt.Return && ((Stmt.Return) stmt).getExpr() != null) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			Expr e = h.hoist(s.getExpr());
+			return e == s.getExpr() ? s : new Stmt.Return(e, attributes(s));
+		} else if (stmt instanceof Stmt.VariableDeclaration && ((Stmt.VariableDeclaration) stmt).getExpr() != null) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			Expr e = h.hoist(s.getExpr());
+			return e == s.getExpr() ? s : new Stmt.VariableDeclaration(s.getType(), s.getName(), e, attributes(s));
+		} else if (stmt instanceof Expr.Invoke) {
+			return (Stmt) h.hoist((Expr) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			Expr e = h.hoist(s.getCondition());
+			return e == s.getCondition() ? s
+					: new Stmt.IfElse(e, s.getTrueBranch(), s.getFalseBranch(), attributes(s));
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			Expr e = h.hoist(s.getExpr());
+			return e == s.getExpr() ? s : new Stmt.Switch(e, s.getCases(), attributes(s));
+		}
+		return stmt;
+	}
+
+	/**
+	 * Moves calls out of an expression, visiting its subexpressions in the
+	 * order they are evaluated.
+	 */
+	private class Hoister {
+		private final List<Stmt> output;
+
+		/**
+		 * Indicates whether nothing evaluated so far could fail.
+		 */
+		private boolean safe = true;
+
+		public Hoister(List<Stmt> output) {
+			this.output = output;
+		}
+
+		public Expr hoist(Expr expr) {
+			if (expr instanceof Expr.Binary) {
+				Expr.Binary e = (Expr.Binary) expr;
+				Expr lhs = hoist(e.getLhs());
+				Expr rhs = e.getRhs();
+				if (e.getOp() == Expr.BOp.AND || e.getOp() == Expr.BOp.OR) {
+					// The right-hand side is evaluated conditionally
+					safe &= isSafe(rhs);
+				} else {
+					rhs = hoist(rhs);
+					safe &= e.getOp() != Expr.BOp.DIV && e.getOp() != Expr.BOp.REM;
+				}
+				if (lhs == e.getLhs() && rhs == e.getRhs()) {
+					return e;
+				}
+				return new Expr.Binary(e.getOp(), lhs, rhs, attributes(e));
+			} else if (expr instanceof Expr.Unary) {
+				Expr.Unary e = (Expr.Unary) expr;
+				Expr operand = hoist(e.getExpr());
+				return operand == e.getExpr() ? e : new Expr.Unary(e.getOp(), operand, attributes(e));
+			} else if (expr instanceof Expr.IndexOf) {
+				Expr.IndexOf e = (Expr.IndexOf) expr;
+				Expr source = hoist(e.getSource());
+				Expr index = hoist(e.getIndex());
+				safe = false;
+				if (source == e.getSource() && index == e.getIndex()) {
+					return e;
+				}
+				return new Expr.IndexOf(source, index, attributes(e));
+			} else if (expr instanceof Expr.ArrayGenerator) {
+				Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+				Expr value = hoist(e.getValue());
+				Expr size = hoist(e.getSize());
+				safe = false;
+				if (value == e.getValue() && size == e.getSize()) {
+					return e;
+				}
+				return new Expr.ArrayGenerator(value, size, attributes(e));
+			} else if (expr instanceof Expr.ArrayInitialiser) {
+				Expr.ArrayInitialiser e = (Expr.ArrayInitialiser) expr;
+				List<Expr> arguments = hoist(e.getArguments());
+				return arguments == e.getArguments() ? e : new Expr.ArrayInitialiser(arguments, attributes(e));
+			} else if (expr instanceof Expr.RecordAccess) {
+				Expr.RecordAccess e = (Expr.RecordAccess) expr;
+				Expr source = hoist(e.getSource());
+				return source == e.getSource() ? e : new Expr.RecordAccess(source, e.getName(), attributes(e));
+			} else if (expr instanceof Expr.RecordConstructor) {
+				Expr.RecordConstructor e = (Expr.RecordConstructor) expr;
+				ArrayList<Pair<String, Expr>> fields = new ArrayList<Pair<String, Expr>>();
+				boolean changed = false;
+				for (Pair<String, Expr> field : e.getFields()) {
+					Expr value = hoist(field.second());
+					changed |= value != field.second();
+					fields.add(new Pair<String, Expr>(field.first(), value));
+				}
+				return changed ? new Expr.RecordConstructor(fields, attributes(e)) : e;
+			} else if (expr instanceof Expr.Invoke) {
+				Expr.Invoke e = (Expr.Invoke) expr;
+				List<Expr> arguments = hoist(e.getArguments());
+				Expr.Invoke call = arguments == e.getArguments() ? e
+						: new Expr.Invoke(e.getName(), arguments, attributes(e));
+				if (safe && canInline(call, false)) {
+					String name = freshName(call.getName());
+					output.add(new Stmt.VariableDeclaration(typeOf(call), name, null, attributes(call)));
+					Expr.Variable target = new Expr.Variable(name, attributes(call));
+					inline(call, target, output);
+					return new Expr.Variable(name, attributes(call));
+				}
+				safe = false;
+				return call;
+			} else {
+				return expr;
+			}
+		}
+
+		private List<Expr> hoist(List<Expr> exprs) {
+			ArrayList<Expr> result = new ArrayList<Expr>();
+			boolean changed = false;
+			for (Expr e : exprs) {
+				Expr r = hoist(e);
+				changed |= r != e;
+				result.add(r);
+			}
+			return changed ? result : exprs;
+		}
+	}
+
+	/**
+	 * Copies a block of statements from an inlined function, renaming each
+	 * local variable to a fresh name and replacing each parameter by the
+	 * expression it is bound to.
+	 */
+	private class Renamer extends Transformer {
+		private final Map<String, Expr> bindings;
+		private final HashMap<String, String> names = new HashMap<String, String>();
+
+		public Renamer(Map<String, Expr> bindings) {
+			super(true);
+			this.bindings = bindings;
+			this.file = Inlining.this.file;
+		}
+
+		@Override
+		public Stmt transform(Stmt.VariableDeclaration stmt) {
+			String name = freshName(stmt.getName());
+			Expr expr = stmt.getExpr() == null ? null : transform(stmt.getExpr());
+			names.put(stmt.getName(), name);
+			return new Stmt.VariableDeclaration(stmt.getType(), name, expr, attributes(stmt));
+		}
+
+		@Override
+		public Expr.LVal transformLVal(Expr.LVal lval) {
+			if (lval instanceof Expr.Variable) {
+				return (Expr.LVal) transform((Expr.Variable) lval);
+			}
+			return super.transformLVal(lval);
+		}
+
+		@Override
+		public Expr transform(Expr.Variable expr) {
+			Expr binding = bindings.get(expr.getName());
+			if (binding instanceof Expr.Variable) {
+				return new Expr.Variable(((Expr.Variable) binding).getName(), attributes(expr));
+			} else if (binding != null) {
+				return new Expr.Literal(((Expr.Literal) binding).getValue(), attributes(expr));
+			}
+			return new Expr.Variable(names.get(expr.getName()), attributes(expr));
+		}
+	}
+
+	/**
+	 * Determine whether a given call can be inlined.
+	 *
+	 * @param call
+	 * @param returned
+	 *            Indicates whether the result of the call is returned
+	 *            directly.
+	 * @return
+	 */
+	private boolean canInline(Expr.Invoke call, boolean returned) {
+		WhileFile.MethodDecl callee = methods.get(call.getName());
+		if (callee == null || recursive.contains(callee.getName()) || size(callee) > maxSize) {
+			return false;
+		} else if (returned) {
+			return true;
+		}
+		return returnsAtEnds(callee.getBody())
+				&& (callee.getRet() instanceof Type.Void || alwaysReturns(callee.getBody()));
+	}
+
+	/**
+	 * Construct a fresh name for a variable, based on the name it has in the
+	 * source. This differs from the name of every variable in the function
+	 * being transformed, including those introduced by other passes.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private String freshName(String name) {
+		int index = name.indexOf('$');
+		if (index >= 0) {
+			name = name.substring(0, index);
+		}
+		String result;
+		do {
+			result = name + "$" + (++fresh);
+		} while (!names.add(result));
+		return result;
+	}
+
+	/**
+	 * Determine the size of a given function, as the number of statements and
+	 * expressions it contains.
+	 *
+	 * @param method
+	 * @return
+	 */
+	private int size(WhileFile.MethodDecl method) {
+		Integer size = sizes.get(method.getName());
+		if (size != null) {
+			return size;
+		}
+		final int[] count = new int[1];
+		new Transformer() {
+			@Override
+			public Stmt transform(Stmt stmt) {
+				count[0]++;
+				return super.transform(stmt);
+			}
+
+			@Override
+			public Expr transform(Expr expr) {
+				count[0]++;
+				return super.transform(expr);
+			}
+		}.transform(file, method);
+		sizes.put(method.getName(), count[0]);
+		return count[0];
+	}
+
+	/**
+	 * Determine whether an expression can be evaluated without failing, and
+	 * without calling any function.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean isSafe(Expr expr) {
+		if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+			return true;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return e.getOp() != Expr.BOp.DIV && e.getOp() != Expr.BOp.REM && isSafe(e.getLhs())
+					&& isSafe(e.getRhs());
+		} else if (expr instanceof Expr.Unary) {
+			return isSafe(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.RecordAccess) {
+			return isSafe(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				if (!isSafe(e)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> field : ((Expr.RecordConstructor) expr).getFields()) {
+				if (!isSafe(field.second())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether the target of an assignment can be evaluated without
+	 * failing. An element assigned may be out of bounds, but this is not
+	 * checked until after the right-hand side is evaluated.
+	 *
+	 * @param lval
+	 * @return
+	 */
+	private static boolean isSafeTarget(Expr.LVal lval) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) lval;
+			return isSafe(e.getIndex()) && isPath(e.getSource());
+		}
+		return isPath(lval);
+	}
+
+	private static boolean isPath(Expr expr) {
+		if (expr instanceof Expr.RecordAccess) {
+			return isPath(((Expr.RecordAccess) expr).getSource());
+		}
+		return expr instanceof Expr.Variable;
+	}
+
+	/**
+	 * Determine whether every <code>return</code> in a given block is at the
+	 * end of a block, which is either the given block or a branch of an
+	 * <code>if</code> statement at the end of one.
+	 *
+	 * @param block
+	 * @return
+	 */
+	private static boolean returnsAtEnds(List<Stmt> block) {
+		for (Stmt stmt : block) {
+			if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				if (!returnsAtEnds(s.getTrueBranch()) || !returnsAtEnds(s.getFalseBranch())) {
+					return false;
+				}
+			} else if (!(stmt instanceof Stmt.Return) && containsReturn(stmt)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean containsReturn(List<Stmt> block) {
+		for (Stmt stmt : block) {
+			if (containsReturn(stmt)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean containsReturn(Stmt stmt) {
+		if (stmt instanceof Stmt.Return) {
+			return true;
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return containsReturn(s.getTrueBranch()) || containsReturn(s.getFalseBranch());
+		} else if (stmt instanceof Stmt.While) {
+			return containsReturn(((Stmt.While) stmt).getBody());
+		} else if (stmt instanceof Stmt.For) {
+			return containsReturn(((Stmt.For) stmt).getBody());
+		} else if (stmt instanceof Stmt.Switch) {
+			for (Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+				if (containsReturn(c.getBody())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether every path through a given block ends in a
+	 * <code>return</code>, considering only <code>if</code> statements.
+	 *
+	 * @param block
+	 * @return
+	 */
+	private static boolean alwaysReturns(List<Stmt> block) {
+		for (Stmt stmt : block) {
+			if (stmt instanceof Stmt.Return) {
+				return true;
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				if (alwaysReturns(s.getTrueBranch()) && alwaysReturns(s.getFalseBranch())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine the variables assigned (in whole or part) within a given block.
+	 *
+	 * @param block
+	 * @param assigned
+	 */
+	private static void assigned(List<Stmt> block, Set<String> assigned) {
+		for (Stmt stmt : block) {
+			assigned(stmt, assigned);
+		}
+	}
+
+	private static void assigned(Stmt stmt, Set<String> assigned) {
+		if (stmt instanceof Stmt.Assign) {
+			Expr lhs = ((Stmt.Assign) stmt).getLhs();
+			while (!(lhs instanceof Expr.Variable)) {
+				lhs = lhs instanceof Expr.IndexOf ? ((Expr.IndexOf) lhs).getSource()
+						: ((Expr.RecordAccess) lhs).getSource();
+			}
+			assigned.add(((Expr.Variable) lhs).getName());
+		} else if (stmt instanceof Stmt.IfElse) {
+			assigned(((Stmt.IfElse) stmt).getTrueBranch(), assigned);
+			assigned(((Stmt.IfElse) stmt).getFalseBranch(), assigned);
+		} else if (stmt instanceof Stmt.While) {
+			assigned(((Stmt.While) stmt).getBody(), assigned);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			if (s.getIncrement() != null) {
+				assigned(s.getIncrement(), assigned);
+			}
+			assigned(s.getBody(), assigned);
+		} else if (stmt instanceof Stmt.Switch) {
+			for (Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+				assigned(c.getBody(), assigned);
+			}
+		}
+	}
+
+	/**
+	 * Determine whether a function may (directly or indirectly) invoke a given
+	 * function.
+	 *
+	 * @param from
+	 * @param to
+	 * @param calls
+	 * @param visited
+	 * @return
+	 */
+	private static boolean reaches(String from, String to, Map<String, Set<String>> calls, Set<String> visited) {
+		Set<String> callees = calls.get(from);
+		if (callees == null || !visited.add(from)) {
+			return false;
+		}
+		for (String callee : callees) {
+			if (callee.equals(to) || reaches(callee, to, calls, visited)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Stmt> concat(List<Stmt> l1, List<Stmt> l2) {
+		ArrayList<Stmt> result = new ArrayList<Stmt>(l1);
+		result.addAll(l2);
+		return result;
+	}
+}
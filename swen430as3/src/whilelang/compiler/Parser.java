@@ -176,6 +176,10 @@ public class Parser {
 		}
 
 		match(")");
+		// Declare the method before parsing its body, so that it can call
+		// itself recursively.
+		userDefinedMethods.put(name.text, new WhileFile.MethodDecl(name.text, returnType, parameters,
+				Collections.<Stmt>emptyList()));
 		List<Stmt> stmts = parseStatementBlock(context);
 		WhileFile.MethodDecl m = new WhileFile.MethodDecl(name.text, returnType, parameters, stmts, sourceAttr(start, index - 1));
 		userDefinedMethods.put(name.text,m);
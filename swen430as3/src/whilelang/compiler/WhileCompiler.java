@@ -32,10 +32,38 @@ import whilelang.ast.WhileFile;
  *
  */
 public class WhileCompiler {
+	/**
+	 * The maximum number of steps taken in evaluating a call at compile time,
+	 * and the maximum number of specialised functions created (see
+	 * <code>PartialEvaluation</code>).
+	 */
+	private static final long STEP_LIMIT = 100000;
+	private static final int MAX_SPECIALISATIONS = 16;
+
+	/**
+	 * The maximum size of a function which is inlined (see
+	 * <code>Inlining</code>).
+	 */
+	private static final int MAX_INLINE_SIZE = 40;
+
 	private File srcFile;
+	private boolean optimise;
 	
 	public WhileCompiler(String filename) {
+		this(filename, false);
+	}
+
+	/**
+	 * Construct a compiler for a given source file, which optionally
+	 * optimises the resulting AST. An optimised AST has the same behaviour as
+	 * the original, and is accepted by every backend.
+	 *
+	 * @param filename
+	 * @param optimise
+	 */
+	public WhileCompiler(String filename, boolean optimise) {
 		this.srcFile = new File(filename);
+		this.optimise = optimise;
 	}
 	
 	public WhileFile compile() throws IOException {
@@ -52,6 +80,18 @@ public class WhileCompiler {
 
 		// Fourth, definite assignment
 		new DefiniteAssignment().check(ast);
+
+		// Fifth, optimisation
+		if(optimise) {
+			ast = new ConstantPropagation().transform(ast);
+			ast = new PartialEvaluation(STEP_LIMIT, MAX_SPECIALISATIONS).transform(ast);
+			// Calls moved out of loop conditions can then be inlined
+			ast = new LoopInvariantCodeMotion().transform(ast);
+			ast = new Inlining(MAX_INLINE_SIZE).transform(ast);
+			// Calls replaced by their results, or by bodies into which constant
+			// arguments are substituted, may enable further folding
+			ast = new ConstantPropagation().transform(ast);
+		}
 		
 		// Done
 		return ast;
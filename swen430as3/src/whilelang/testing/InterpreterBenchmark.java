@@ -0,0 +1,154 @@
+package whilelang.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.BytecodeGenerator;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.Bytecode;
+import whilelang.util.ClosureInterpreter;
+import whilelang.util.Interpreter;
+import whilelang.util.VirtualMachine;
+
+/**
+ * A simple benchmark harness for the interpreter. Every While file found in a
+ * given directory is compiled once, and then executed repeatedly. Timing is
+ * repeated over several rounds and the best average time per execution is
+ * reported for each file, along with the total over all files. Output produced
+ * by the programs themselves is discarded whilst timing. The
+ * <code>-closures</code> option selects the closure-compiled engine in place
+ * of the AST interpreter, whilst <code>-vm</code> selects the bytecode virtual
+ * machine (where lowering to bytecode is not timed). The <code>-boxed</code>
+ * option disables the unboxed evaluation of <code>int</code> and
+ * <code>bool</code> expressions in the AST interpreter. Otherwise, the number
+ * of allocations this avoids in a single run of each file is also reported.
+ * The <code>-memoise</code> option enables the memoisation of pure functions
+ * in the AST interpreter, and reports the cache hits and misses of a single
+ * run.
+ *
+ * <pre>
+ * java whilelang.testing.InterpreterBenchmark [-closures|-vm|-boxed] [-memoise] [-iterations n] [-warmup n] [-rounds n] [dir]
+ * </pre>
+ */
+public class InterpreterBenchmark {
+	private static final String WHILE_SRC_DIR = "tests/valid/".replace('/', File.separatorChar);
+	private static final int MEMO_CAPACITY = 10000;
+
+	private static boolean closures = false;
+	private static boolean vm = false;
+	private static boolean boxed = false;
+	private static boolean memoise = false;
+	private static long boxesAvoided = 0;
+	private static long hits = 0;
+	private static long misses = 0;
+
+	public static void main(String[] args) throws IOException {
+		int iterations = 2000;
+		int warmup = 500;
+		int rounds = 5;
+		String dir = WHILE_SRC_DIR;
+
+		for (int i = 0; i != args.length; ++i) {
+			if (args[i].equals("-iterations")) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-warmup")) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-rounds")) {
+				rounds = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-closures")) {
+				closures = true;
+			} else if (args[i].equals("-vm")) {
+				vm = true;
+			} else if (args[i].equals("-boxed")) {
+				boxed = true;
+			} else if (args[i].equals("-memoise")) {
+				memoise = true;
+			} else {
+				dir = args[i];
+			}
+		}
+
+		// First, compile every test file up front
+		File[] files = new File(dir).listFiles();
+		Arrays.sort(files);
+		List<String> names = new ArrayList<String>();
+		List<WhileFile> programs = new ArrayList<WhileFile>();
+		for (File f : files) {
+			if (f.isFile() && f.getName().endsWith(".while")) {
+				names.add(f.getName());
+				programs.add(new WhileCompiler(f.getPath()).compile());
+			}
+		}
+
+		// Second, warm up and time each program in turn
+		PrintStream out = System.out;
+		PrintStream sink = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		long total = 0;
+		long avoided = 0;
+		long totalHits = 0;
+		long totalMisses = 0;
+		for (int i = 0; i != programs.size(); ++i) {
+			WhileFile program = programs.get(i);
+			System.setOut(sink);
+			try {
+				run(program, warmup);
+				long time = Long.MAX_VALUE;
+				for (int r = 0; r != rounds; ++r) {
+					long start = System.nanoTime();
+					run(program, iterations);
+					time = Math.min(time, System.nanoTime() - start);
+				}
+				total += time;
+				boxesAvoided = hits = misses = 0;
+				run(program, 1);
+				avoided += boxesAvoided;
+				totalHits += hits;
+				totalMisses += misses;
+				System.setOut(out);
+				out.printf("%-32s %10.2f us%n", names.get(i), time / (iterations * 1000.0));
+			} finally {
+				System.setOut(out);
+			}
+		}
+		out.printf("%-32s %10.2f ms%n", "TOTAL (" + iterations + " runs)", total / 1000000.0);
+		if (!vm && !closures && !boxed) {
+			out.printf("%-32s %10d%n", "BOXES AVOIDED (1 run)", avoided);
+		}
+		if (!vm && !closures && memoise) {
+			out.printf("%-32s %10d%n", "MEMO HITS (1 run)", totalHits);
+			out.printf("%-32s %10d%n", "MEMO MISSES (1 run)", totalMisses);
+		}
+	}
+
+	private static void run(WhileFile program, int count) {
+		Bytecode.Program bytecode = vm ? new BytecodeGenerator().generate(program) : null;
+		for (int i = 0; i != count; ++i) {
+			if (vm) {
+				new VirtualMachine().run(bytecode);
+			} else if (closures) {
+				new ClosureInterpreter().run(program);
+			} else {
+				Interpreter interpreter = new Interpreter(!boxed);
+				if (memoise) {
+					interpreter.enableMemoisation(MEMO_CAPACITY);
+				}
+				interpreter.run(program);
+				boxesAvoided += interpreter.getBoxesAvoided();
+				if (memoise) {
+					hits += interpreter.getMemoCache().getHits();
+					misses += interpreter.getMemoCache().getMisses();
+				}
+			}
+		}
+	}
+}
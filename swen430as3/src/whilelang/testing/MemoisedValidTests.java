@@ -0,0 +1,101 @@
+package whilelang.testing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.Interpreter;
+import whilelang.util.SyntaxError;
+
+@RunWith(Parameterized.class)
+public class MemoisedValidTests {
+	private static final String WHILE_SRC_DIR = "tests/valid/".replace('/', File.separatorChar);
+
+	// A small cache, such that entries are evicted as well
+	private static final int MEMO_CAPACITY = 64;
+
+	private final String testName;
+
+	public MemoisedValidTests(String testName) {
+		this.testName = testName;
+	}
+
+	// Here we enumerate all available test cases.
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> testcases = new ArrayList<>();
+		for (File f : new File(WHILE_SRC_DIR).listFiles()) {
+			if (f.isFile()) {
+				String name = f.getName();
+				if (name.endsWith(".while")) {
+					// Get rid of ".while" extension
+					String testName = name.substring(0, name.length() - 6);
+					testcases.add(new Object[] { testName });
+				}
+			}
+		}
+		// Sort the result by filename
+		Collections.sort(testcases, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] o1, Object[] o2) {
+				return ((String) o1[0]).compareTo((String) o2[0]);
+			}
+		});
+		return testcases;
+	}
+
+	@Test
+	public void valid() throws IOException {
+		runTest(this.testName);
+	}
+
+	/**
+	 * Run a given source file on the interpreter with memoisation enabled. The
+	 * output produced must match that of the interpreter alone. Calls in tail
+	 * position to memoised functions must not grow the stack either (e.g. see
+	 * Method_Valid_4).
+	 *
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void runTest(String testname) throws IOException {
+		try {
+			WhileCompiler compiler = new WhileCompiler(WHILE_SRC_DIR + testname + ".while");
+			WhileFile ast = compiler.compile();
+			String expected = captureOutput(() -> new Interpreter().run(ast));
+			Interpreter interpreter = new Interpreter();
+			interpreter.enableMemoisation(MEMO_CAPACITY);
+			String actual = captureOutput(() -> interpreter.run(ast));
+			assertEquals(expected, actual);
+		} catch (SyntaxError e) {
+			e.outputSourceError(System.err);
+			throw e;
+		}
+	}
+
+	private static String captureOutput(Runnable runnable) {
+		PrintStream out = System.out;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(bytes));
+		try {
+			runnable.run();
+		} finally {
+			System.setOut(out);
+		}
+		return bytes.toString();
+	}
+}
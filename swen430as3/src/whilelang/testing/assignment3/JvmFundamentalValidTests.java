@@ -52,6 +52,7 @@ public class JvmFundamentalValidTests extends AbstractJvmValidTests {
 					"Method_Valid_1",
 					"Method_Valid_2",
 					"Method_Valid_3",
+					"Method_Valid_4",
 					"Remainder_Valid_1"
 	};
 
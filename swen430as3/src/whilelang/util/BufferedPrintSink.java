@@ -0,0 +1,95 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A print sink which accumulates output in a buffer, and writes it to its
+ * target in one go when the buffer is full or the sink is flushed. This avoids
+ * the cost of writing (and synchronising on) the target for every line, which
+ * otherwise dominates programs that print a lot. The target can be any
+ * <code>Appendable</code>, such as a <code>PrintStream</code> or a
+ * <code>StringBuilder</code> for capturing the output.
+ */
+public final class BufferedPrintSink implements PrintSink {
+	/**
+	 * The default number of characters held back before being written.
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	private final Appendable target;
+	private final int capacity;
+	private final ValueFormatter formatter;
+
+	/**
+	 * Construct a sink which writes to the standard output, as it is at the
+	 * time the sink is flushed.
+	 */
+	public BufferedPrintSink() {
+		this(null, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Construct a sink which writes to a given target, holding back at most
+	 * a given number of characters. A capacity of zero writes every line
+	 * immediately.
+	 *
+	 * @param target
+	 *            The target to write to, or <code>null</code> for the
+	 *            standard output.
+	 * @param capacity
+	 */
+	public BufferedPrintSink(Appendable target, int capacity) {
+		this.target = target;
+		this.capacity = capacity;
+		// Values are formatted straight into the buffer. A value which is
+		// larger than the buffer is written out in pieces, rather than being
+		// held in memory all at once.
+		this.formatter = new ValueFormatter(capacity > 0 ? capacity : Integer.MAX_VALUE) {
+			@Override
+			protected void overflow() {
+				flush();
+			}
+		};
+	}
+
+	@Override
+	public void println(Object value) {
+		formatter.append(value);
+		formatter.buffer.append(System.lineSeparator());
+		if (formatter.buffer.length() >= capacity) {
+			flush();
+		}
+	}
+
+	@Override
+	public void flush() {
+		Appendable out = target == null ? System.out : target;
+		try {
+			out.append(formatter.buffer);
+			if (out instanceof Flushable) {
+				((Flushable) out).flush();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		formatter.buffer.setLength(0);
+	}
+}
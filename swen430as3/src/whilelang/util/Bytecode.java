@@ -0,0 +1,369 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Describes the register-based instruction set executed by the
+ * <code>VirtualMachine</code>. Every method is lowered to a flat
+ * <code>int[]</code> array of code, where each instruction is an opcode
+ * followed immediately by its operands. Operands are either register indices,
+ * constant pool indices, function indices or absolute jump targets (i.e.
+ * offsets into the code array). Registers hold ordinary runtime values (see
+ * <code>Values</code>), where the first registers of a method are the slots of
+ * its frame layout, followed by any temporaries.
+ * </p>
+ * <p>
+ * A number of superinstructions are provided for common patterns, such as
+ * <code>i = i + 1</code> (<code>ADDI</code>) and the loop condition
+ * <code>i < |xs|</code> (<code>IFLTLEN</code>). Conditions are generally
+ * lowered directly into compare-and-branch instructions, rather than
+ * materialising a boolean first.
+ * </p>
+ *
+ * @see whilelang.compiler.BytecodeGenerator
+ * @see VirtualMachine
+ */
+public final class Bytecode {
+
+	private Bytecode() {
+	}
+
+	// =========================================================================
+	// Instruction Set
+	// =========================================================================
+
+	/** <code>CONST d k</code>: <code>d = constants[k]</code> */
+	public static final int CONST = 0;
+	/** <code>STRING d k</code>: <code>d</code> = a fresh array from string constant <code>k</code> */
+	public static final int STRING = 1;
+	/** <code>MOVE d s</code>: <code>d = s</code> */
+	public static final int MOVE = 2;
+	/** <code>COPY d s</code>: <code>d</code> = a deep clone of <code>s</code> */
+	public static final int COPY = 3;
+	/** <code>ADD d a b</code>: <code>d = a + b</code> */
+	public static final int ADD = 4;
+	/** <code>SUB d a b</code>: <code>d = a - b</code> */
+	public static final int SUB = 5;
+	/** <code>MUL d a b</code>: <code>d = a * b</code> */
+	public static final int MUL = 6;
+	/** <code>DIV d a b</code>: <code>d = a / b</code> */
+	public static final int DIV = 7;
+	/** <code>REM d a b</code>: <code>d = a % b</code> */
+	public static final int REM = 8;
+	/** <code>ADDI d a i</code>: <code>d = a + i</code>, where <code>i</code> is an immediate */
+	public static final int ADDI = 9;
+	/** <code>NEG d a</code>: <code>d = -a</code> */
+	public static final int NEG = 10;
+	/** <code>NOT d a</code>: <code>d = !a</code> */
+	public static final int NOT = 11;
+	/** <code>EQ d a b</code>: <code>d = a == b</code> */
+	public static final int EQ = 12;
+	/** <code>NE d a b</code>: <code>d = a != b</code> */
+	public static final int NE = 13;
+	/** <code>LT d a b</code>: <code>d = a < b</code> */
+	public static final int LT = 14;
+	/** <code>LE d a b</code>: <code>d = a <= b</code> */
+	public static final int LE = 15;
+	/** <code>GT d a b</code>: <code>d = a > b</code> */
+	public static final int GT = 16;
+	/** <code>GE d a b</code>: <code>d = a >= b</code> */
+	public static final int GE = 17;
+	/** <code>LENGTH d a</code>: <code>d = |a|</code> */
+	public static final int LENGTH = 18;
+	/** <code>NEWARRAY d r n</code>: <code>d = [r, r+1, ..., r+n-1]</code> */
+	public static final int NEWARRAY = 19;
+	/** <code>GENARRAY d v n</code>: <code>d = [v; n]</code> */
+	public static final int GENARRAY = 20;
+	/** <code>LOAD d a i</code>: <code>d = a[i]</code> */
+	public static final int LOAD = 21;
+	/** <code>STORE a i s</code>: <code>a[i]</code> = a deep clone of <code>s</code> */
+	public static final int STORE = 22;
+	/** <code>NEWRECORD d k r</code>: <code>d = {f0: r, f1: r+1, ...}</code> for field names <code>constants[k]</code> */
+	public static final int NEWRECORD = 23;
+	/** <code>GETFIELD d a k</code>: <code>d = a.f</code> for field name <code>constants[k]</code> */
+	public static final int GETFIELD = 24;
+	/** <code>PUTFIELD a k s</code>: <code>a.f</code> = a deep clone of <code>s</code> */
+	public static final int PUTFIELD = 25;
+	/** <code>JUMP t</code>: continue at <code>t</code> */
+	public static final int JUMP = 26;
+	/** <code>IFTRUE a t</code>: continue at <code>t</code> if <code>a</code> holds */
+	public static final int IFTRUE = 27;
+	/** <code>IFFALSE a t</code>: continue at <code>t</code> unless <code>a</code> holds */
+	public static final int IFFALSE = 28;
+	/** <code>IFEQ a b t</code>: continue at <code>t</code> if <code>a == b</code> */
+	public static final int IFEQ = 29;
+	/** <code>IFNE a b t</code>: continue at <code>t</code> if <code>a != b</code> */
+	public static final int IFNE = 30;
+	/** <code>IFLT a b t</code>: continue at <code>t</code> if <code>a < b</code> */
+	public static final int IFLT = 31;
+	/** <code>IFLE a b t</code>: continue at <code>t</code> if <code>a <= b</code> */
+	public static final int IFLE = 32;
+	/** <code>IFGT a b t</code>: continue at <code>t</code> if <code>a > b</code> */
+	public static final int IFGT = 33;
+	/** <code>IFGE a b t</code>: continue at <code>t</code> if <code>a >= b</code> */
+	public static final int IFGE = 34;
+	/** <code>IFLTLEN a b t</code>: continue at <code>t</code> if <code>a < |b|</code> */
+	public static final int IFLTLEN = 35;
+	/** <code>IFGELEN a b t</code>: continue at <code>t</code> if <code>a >= |b|</code> */
+	public static final int IFGELEN = 36;
+	/** <code>CALL d f r n</code>: <code>d = f(r, r+1, ..., r+n-1)</code>, where <code>d</code> may be <code>-1</code> */
+	public static final int CALL = 37;
+	/** <code>RETURN a</code>: return <code>a</code> from the enclosing function */
+	public static final int RETURN = 38;
+	/** <code>RETURNVOID</code>: return from the enclosing function */
+	public static final int RETURNVOID = 39;
+	/** <code>PRINT a</code>: print <code>a</code> */
+	public static final int PRINT = 40;
+	/** <code>ASSERT a</code>: fail unless <code>a</code> holds */
+	public static final int ASSERT = 41;
+	/** <code>TAILCALL f r n</code>: return <code>f(r, r+1, ..., r+n-1)</code>, reusing the current activation */
+	public static final int TAILCALL = 42;
+
+	// =========================================================================
+	// Code Format
+	// =========================================================================
+
+	/**
+	 * A single method which has been lowered into bytecode.
+	 */
+	public static final class Function {
+		public final String name;
+		/**
+		 * The number of parameters, which occupy the first registers.
+		 */
+		public final int parameters;
+		/**
+		 * The total number of registers (i.e. the size of a frame).
+		 */
+		public final int registers;
+		public final int[] code;
+
+		public Function(String name, int parameters, int registers, int[] code) {
+			this.name = name;
+			this.parameters = parameters;
+			this.registers = registers;
+			this.code = code;
+		}
+	}
+
+	/**
+	 * A complete program, consisting of a shared constant pool and every
+	 * function. Functions are referred to by their index in this program.
+	 */
+	public static final class Program {
+		public final Object[] constants;
+		public final Function[] functions;
+
+		public Program(Object[] constants, Function[] functions) {
+			this.constants = constants;
+			this.functions = functions;
+		}
+
+		/**
+		 * Get the function with the given name, or <code>null</code> if there
+		 * is none.
+		 *
+		 * @param name
+		 * @return
+		 */
+		public Function get(String name) {
+			for (Function f : functions) {
+				if (f.name.equals(name)) {
+					return f;
+				}
+			}
+			return null;
+		}
+	}
+
+	// =========================================================================
+	// Serialisation
+	// =========================================================================
+
+	private static final int MAGIC = 0x574C4243; // "WLBC"
+	// Must be incremented whenever the instruction set (or its encoding)
+	// changes, such that files written by an older version are not misread.
+	// Version 2 added TAILCALL.
+	private static final int VERSION = 2;
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_BOOL = 1;
+	private static final int TAG_INT = 2;
+	private static final int TAG_CHAR = 3;
+	private static final int TAG_STRING = 4;
+	private static final int TAG_ARRAY = 5;
+	private static final int TAG_RECORD = 6;
+	private static final int TAG_NAMES = 7;
+
+	/**
+	 * Write a given program to an output stream, such that it can be read back
+	 * using <code>read()</code> without parsing or checking the source again.
+	 *
+	 * @param program
+	 * @param output
+	 * @throws IOException
+	 */
+	public static void write(Program program, OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(output);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(program.constants.length);
+		for (Object constant : program.constants) {
+			writeConstant(constant, out);
+		}
+		out.writeInt(program.functions.length);
+		for (Function f : program.functions) {
+			out.writeUTF(f.name);
+			out.writeInt(f.parameters);
+			out.writeInt(f.registers);
+			out.writeInt(f.code.length);
+			for (int c : f.code) {
+				out.writeInt(c);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Read a program from an input stream, as previously written by
+	 * <code>write()</code>.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 *             If the stream is not a (compatible) bytecode file.
+	 */
+	public static Program read(InputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("invalid bytecode file");
+		} else if (in.readInt() != VERSION) {
+			throw new IOException("incompatible bytecode version");
+		}
+		Object[] constants = new Object[in.readInt()];
+		for (int i = 0; i != constants.length; ++i) {
+			constants[i] = readConstant(in);
+		}
+		Function[] functions = new Function[in.readInt()];
+		for (int i = 0; i != functions.length; ++i) {
+			String name = in.readUTF();
+			int parameters = in.readInt();
+			int registers = in.readInt();
+			int[] code = new int[in.readInt()];
+			for (int j = 0; j != code.length; ++j) {
+				code[j] = in.readInt();
+			}
+			functions[i] = new Function(name, parameters, registers, code);
+		}
+		return new Program(constants, functions);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void writeConstant(Object constant, DataOutputStream out) throws IOException {
+		if (constant == null) {
+			out.writeByte(TAG_NULL);
+		} else if (constant instanceof Boolean) {
+			out.writeByte(TAG_BOOL);
+			out.writeBoolean((Boolean) constant);
+		} else if (constant instanceof Integer) {
+			out.writeByte(TAG_INT);
+			out.writeInt((Integer) constant);
+		} else if (constant instanceof Character) {
+			out.writeByte(TAG_CHAR);
+			out.writeChar((Character) constant);
+		} else if (constant instanceof String) {
+			out.writeByte(TAG_STRING);
+			out.writeUTF((String) constant);
+		} else if (constant instanceof ArrayList) {
+			ArrayList<Object> l = (ArrayList<Object>) constant;
+			out.writeByte(TAG_ARRAY);
+			out.writeInt(l.size());
+			for (Object o : l) {
+				writeConstant(o, out);
+			}
+		} else if (constant instanceof HashMap) {
+			HashMap<String, Object> m = (HashMap<String, Object>) constant;
+			out.writeByte(TAG_RECORD);
+			out.writeInt(m.size());
+			for (Map.Entry<String, Object> e : m.entrySet()) {
+				out.writeUTF(e.getKey());
+				writeConstant(e.getValue(), out);
+			}
+		} else if (constant instanceof String[]) {
+			String[] names = (String[]) constant;
+			out.writeByte(TAG_NAMES);
+			out.writeInt(names.length);
+			for (String n : names) {
+				out.writeUTF(n);
+			}
+		} else {
+			throw new IllegalArgumentException("unknown constant encountered (" + constant + ")");
+		}
+	}
+
+	private static Object readConstant(DataInputStream in) throws IOException {
+		int tag = in.readByte();
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+		case TAG_BOOL:
+			return in.readBoolean();
+		case TAG_INT:
+			return in.readInt();
+		case TAG_CHAR:
+			return in.readChar();
+		case TAG_STRING:
+			return in.readUTF();
+		case TAG_ARRAY: {
+			int n = in.readInt();
+			ArrayList<Object> l = new ArrayList<Object>(n);
+			for (int i = 0; i != n; ++i) {
+				l.add(readConstant(in));
+			}
+			return l;
+		}
+		case TAG_RECORD: {
+			int n = in.readInt();
+			HashMap<String, Object> m = new HashMap<String, Object>();
+			for (int i = 0; i != n; ++i) {
+				String field = in.readUTF();
+				m.put(field, readConstant(in));
+			}
+			return m;
+		}
+		case TAG_NAMES: {
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i != names.length; ++i) {
+				names[i] = in.readUTF();
+			}
+			return names;
+		}
+		default:
+			throw new IOException("invalid constant tag (" + tag + ")");
+		}
+	}
+}
@@ -0,0 +1,806 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.WhileFile;
+
+/**
+ * <p>
+ * An alternative execution engine for WhileLang programs. Rather than walking
+ * the Abstract Syntax Tree on every execution step (as the
+ * <code>Interpreter</code> does), a type-checked <code>WhileFile</code> is first
+ * converted into a tree of executable nodes. There is one kind of node for each
+ * kind of statement and expression, and one for each binary operator.
+ * Everything which can be decided before execution begins is bound into the
+ * nodes as they are built: operators, invoked methods, field names and the
+ * frame slot of every variable. Thus, executing a node never needs to inspect
+ * the AST.
+ * </p>
+ * <p>
+ * The observable behaviour is identical to that of the
+ * <code>Interpreter</code>, since both engines share the same runtime value
+ * representation (see <code>Values</code>).
+ * </p>
+ */
+public class ClosureInterpreter {
+	private WhileFile file;
+	private HashMap<String, Function> functions;
+
+	/**
+	 * Receives the output of print statements.
+	 */
+	private PrintSink sink = new BufferedPrintSink();
+
+	/**
+	 * Send the output of print statements to a given sink, rather than the
+	 * standard output. The sink is flushed whenever the program finishes.
+	 *
+	 * @param sink
+	 */
+	public void setPrintSink(PrintSink sink) {
+		this.sink = sink;
+	}
+
+	public void run(WhileFile wf) {
+		compile(wf).run();
+	}
+
+	/**
+	 * Convert a given source file into its executable form, without running
+	 * it. The returned program can be run any number of times.
+	 *
+	 * @param wf
+	 *            The (type-checked) source file to convert.
+	 * @return
+	 */
+	public Runnable compile(WhileFile wf) {
+		this.file = wf;
+		this.functions = new HashMap<String, Function>();
+		// First, create an empty function for every method. This allows
+		// invocations to be bound before the body of the invoked method has
+		// itself been converted.
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) decl;
+				functions.put(md.getName(), new Function(md));
+			}
+		}
+		// Second, convert the body of every method. The frame layout must be
+		// resolved first, as this determines the slot of every variable.
+		for (Function f : functions.values()) {
+			f.frameSize = FrameLayout.resolve(f.method).size();
+			f.body = build(f.method.getBody());
+		}
+		// Finally, pick the main method (if one exits)
+		final Function main = functions.get("main");
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (main != null) {
+					try {
+						main.invoke();
+					} finally {
+						sink.flush();
+					}
+				} else {
+					System.out.println("Cannot find a main() function");
+				}
+			}
+		};
+	}
+
+	// =========================================================================
+	// Runtime
+	// =========================================================================
+
+	/**
+	 * Signals that a <code>break</code> statement was executed.
+	 */
+	private static final Object BREAK_CONSTANT = new Object() {};
+
+	/**
+	 * Signals that a <code>continue</code> statement was executed.
+	 */
+	private static final Object CONTINUE_CONSTANT = new Object() {};
+
+	/**
+	 * Used to indicate that a function has returned without a value, or that a
+	 * variable has been declared without being initialised.
+	 */
+	private static final Object EMPTY = Collections.EMPTY_SET;
+
+	/**
+	 * An executable statement. Executing a statement returns
+	 * <code>null</code> if execution should continue with the next statement.
+	 * Otherwise, it returns either a break or continue constant, or the value
+	 * being returned from the enclosing function.
+	 */
+	private static abstract class Code {
+		public abstract Object execute(Object[] frame);
+	}
+
+	/**
+	 * An executable expression, which evaluates to a runtime value.
+	 */
+	private static abstract class Node {
+		public abstract Object evaluate(Object[] frame);
+	}
+
+	/**
+	 * A method whose body has been converted into executable form.
+	 */
+	private static final class Function {
+		private final WhileFile.MethodDecl method;
+		private Code[] body;
+		private int frameSize;
+
+		public Function(WhileFile.MethodDecl method) {
+			this.method = method;
+		}
+
+		public Object invoke(Object... arguments) {
+			Object[] frame = new Object[frameSize];
+			System.arraycopy(arguments, 0, frame, 0, arguments.length);
+			return call(this, frame);
+		}
+	}
+
+	/**
+	 * Represents a call in tail position which is yet to be executed. This is
+	 * returned from the body of the calling function, and then executed in its
+	 * place such that the stack does not grow.
+	 */
+	private static final class TailCall {
+		private final Function function;
+		private final Object[] frame;
+
+		public TailCall(Function function, Object[] frame) {
+			this.function = function;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Execute the body of a given function in a given frame, followed by any
+	 * calls it makes in tail position.
+	 *
+	 * @param function
+	 * @param frame
+	 * @return
+	 */
+	private static Object call(Function function, Object[] frame) {
+		while (true) {
+			Object r = execute(function.body, frame);
+			if (r instanceof TailCall) {
+				function = ((TailCall) r).function;
+				frame = ((TailCall) r).frame;
+			} else {
+				return r;
+			}
+		}
+	}
+
+	private static Object execute(Code[] block, Object[] frame) {
+		for (int i = 0; i != block.length; ++i) {
+			Object r = block[i].execute(frame);
+			if (r != null) {
+				return r;
+			}
+		}
+		return null;
+	}
+
+	// =========================================================================
+	// Statements
+	// =========================================================================
+
+	private Code[] build(List<Stmt> block) {
+		Code[] codes = new Code[block.size()];
+		for (int i = 0; i != codes.length; ++i) {
+			codes[i] = build(block.get(i));
+		}
+		return codes;
+	}
+
+	private Code build(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			return build((Stmt.Assert) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			return build((Stmt.Print) stmt);
+		} else if (stmt instanceof Stmt.Assign) {
+			return build((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			return build((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			return build((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			return build((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Break) {
+			return BREAK;
+		} else if (stmt instanceof Stmt.Continue) {
+			return CONTINUE;
+		} else if (stmt instanceof Stmt.IfElse) {
+			return build((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			return build((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return build((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			final Node invoke = build((Expr.Invoke) stmt);
+			return new Code() {
+				@Override
+				public Object execute(Object[] frame) {
+					// The returned value (if any) is discarded
+					invoke.evaluate(frame);
+					return null;
+				}
+			};
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	private Code build(Stmt.Assert stmt) {
+		final Node condition = build(stmt.getExpr());
+		return new Code() {
+			@Override
+			public Object execute(Object[] frame) {
+				if (!(Boolean) condition.evaluate(frame)) {
+					throw new RuntimeException("assertion failure");
+				}
+				return null;
+			}
+		};
+	}
+
+	private Code build(Stmt.Print stmt) {
+		final Node expr = build(stmt.getExpr());
+		return new Code() {
+			@Override
+			public Object execute(Object[] frame) {
+				sink.println(expr.evaluate(frame));
+				return null;
+			}
+		};
+	}
+
+	private Code build(Stmt.Assign stmt) {
+		Expr lhs = stmt.getLhs();
+		final Node rhs = build(stmt.getRhs());
+		if (lhs instanceof Expr.Variable) {
+			final int slot = FrameLayout.slotOf((Expr.Variable) lhs);
+			return new Code() {
+				@Override
+				public Object execute(Object[] frame) {
+					frame[slot] = Values.deepClone(rhs.evaluate(frame));
+					return null;
+				}
+			};
+		} else if (lhs instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
+			final Node source = build(ra.getSource());
+			final String field = ra.getName();
+			return new Code() {
+				@SuppressWarnings("unchecked")
+				@Override
+				public Object execute(Object[] frame) {
+					HashMap<String, Object> src = (HashMap<String, Object>) source.evaluate(frame);
+					src.put(field, Values.deepClone(rhs.evaluate(frame)));
+					return null;
+				}
+			};
+		} else if (lhs instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lhs;
+			final Node source = build(io.getSource());
+			final Node index = build(io.getIndex());
+			return new Code() {
+				@SuppressWarnings("unchecked")
+				@Override
+				public Object execute(Object[] frame) {
+					ArrayList<Object> src = (ArrayList<Object>) source.evaluate(frame);
+					int idx = (Integer) index.evaluate(frame);
+					src.set(idx, Values.deepClone(rhs.evaluate(frame)));
+					return null;
+				}
+			};
+		} else {
+			internalFailure("unknown lval encountered (" + lhs + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	private Code build(Stmt.For stmt) {
+		final Code declaration = build(stmt.getDeclaration());
+		final Node condition = build(stmt.getCondition());
+		final Code increment = build(stmt.getIncrement());
+		final Code[] body = build(stmt.getBody());
+		return new Code() {
+			@Override
+			public Object execute(Object[] frame) {
+				declaration.execute(frame);
+				while ((Boolean) condition.evaluate(frame)) {
+					Object ret = ClosureInterpreter.execute(body, frame);
+					if (ret == BREAK_CONSTANT) {
+						break;
+					} else if (ret != null && ret != CONTINUE_CONSTANT) {
+						return ret;
+					}
+					increment.execute(frame);
+				}
+				return null;
+			}
+		};
+	}
+
+	private Code build(Stmt.While stmt) {
+		final Node condition = build(stmt.getCondition());
+		final Code[] body = build(stmt.getBody());
+		return new Code() {
+			@Override
+			public Object execute(Object[] frame) {
+				while ((Boolean) condition.evaluate(frame)) {
+					Object ret = ClosureInterpreter.execute(body, frame);
+					if (ret == BREAK_CONSTANT) {
+						break;
+					} else if (ret != null && ret != CONTINUE_CONSTANT) {
+						return ret;
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	private Code build(Stmt.IfElse stmt) {
+		final Node condition = build(stmt.getCondition());
+		final Code[] trueBranch = build(stmt.getTrueBranch());
+		final Code[] falseBranch = build(stmt.getFalseBranch());
+		return new Code() {
+			@Override
+			public Object execute(Object[] frame) {
+				if ((Boolean) condition.evaluate(frame)) {
+					return ClosureInterpreter.execute(trueBranch, frame);
+				} else {
+					return ClosureInterpreter.execute(falseBranch, frame);
+				}
+			}
+		};
+	}
+
+	private static final Code BREAK = new Code() {
+		@Override
+		public Object execute(Object[] frame) {
+			return BREAK_CONSTANT;
+		}
+	};
+
+	private static final Code CONTINUE = new Code() {
+		@Override
+		public Object execute(Object[] frame) {
+			return CONTINUE_CONSTANT;
+		}
+	};
+
+	private Code build(Stmt.Switch stmt) {
+		final Node expr = build(stmt.getExpr());
+		List<Stmt.Case> cases = stmt.getCases();
+		// A null value indicates the default case
+		final Node[] values = new Node[cases.size()];
+		final Code[][] bodies = new Code[cases.size()][];
+		for (int i = 0; i != values.length; ++i) {
+			Stmt.Case c = cases.get(i);
+			values[i] = c.getValue() == null ? null : build(c.getValue());
+			bodies[i] = build(c.getBody());
+		}
+		return new Code() {
+			@Override
+			public Object execute(Object[] frame) {
+				boolean fallThru = false;
+				Object value = expr.evaluate(frame);
+				for (int i = 0; i != values.length; ++i) {
+					Node e = values[i];
+					if (fallThru || e == null || value.equals(e.evaluate(frame))) {
+						Object ret = ClosureInterpreter.execute(bodies[i], frame);
+						if (ret == BREAK_CONSTANT) {
+							break;
+						} else if (ret != null) {
+							return ret;
+						}
+						fallThru = true;
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	private Code build(Stmt.Return stmt) {
+		if (stmt.getExpr() == null) {
+			return new Code() {
+				@Override
+				public Object execute(Object[] frame) {
+					return EMPTY;
+				}
+			};
+		} else if (stmt.getExpr() instanceof Expr.Invoke) {
+			final Expr.Invoke invoke = (Expr.Invoke) stmt.getExpr();
+			final Function fun = functions.get(invoke.getName());
+			final Node[] arguments = buildAll(invoke.getArguments());
+			return new Code() {
+				@Override
+				public Object execute(Object[] frame) {
+					return new TailCall(fun, arguments(fun, arguments, frame));
+				}
+			};
+		} else {
+			final Node expr = build(stmt.getExpr());
+			return new Code() {
+				@Override
+				public Object execute(Object[] frame) {
+					return expr.evaluate(frame);
+				}
+			};
+		}
+	}
+
+	private Code build(Stmt.VariableDeclaration stmt) {
+		final int slot = FrameLayout.slotOf(stmt);
+		if (stmt.getExpr() == null) {
+			return new Code() {
+				@Override
+				public Object execute(Object[] frame) {
+					frame[slot] = EMPTY;
+					return null;
+				}
+			};
+		} else {
+			final Node expr = build(stmt.getExpr());
+			return new Code() {
+				@Override
+				public Object execute(Object[] frame) {
+					frame[slot] = Values.deepClone(expr.evaluate(frame));
+					return null;
+				}
+			};
+		}
+	}
+
+	// =========================================================================
+	// Expressions
+	// =========================================================================
+
+	private Node build(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return build((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Literal) {
+			return build((Expr.Literal) expr);
+		} else if (expr instanceof Expr.Invoke) {
+			return build((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			return build((Expr.IndexOf) expr);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			return build((Expr.ArrayGenerator) expr);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			return build((Expr.ArrayInitialiser) expr);
+		} else if (expr instanceof Expr.RecordAccess) {
+			return build((Expr.RecordAccess) expr);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			return build((Expr.RecordConstructor) expr);
+		} else if (expr instanceof Expr.Unary) {
+			return build((Expr.Unary) expr);
+		} else if (expr instanceof Expr.Variable) {
+			return build((Expr.Variable) expr);
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+			return null;
+		}
+	}
+
+	private Node build(Expr.Binary expr) {
+		final Node lhs = build(expr.getLhs());
+		final Node rhs = build(expr.getRhs());
+
+		switch (expr.getOp()) {
+		case AND:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Boolean) lhs.evaluate(frame)) && ((Boolean) rhs.evaluate(frame));
+				}
+			};
+		case OR:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Boolean) lhs.evaluate(frame)) || ((Boolean) rhs.evaluate(frame));
+				}
+			};
+		case ADD:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) + ((Integer) rhs.evaluate(frame));
+				}
+			};
+		case SUB:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) - ((Integer) rhs.evaluate(frame));
+				}
+			};
+		case MUL:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) * ((Integer) rhs.evaluate(frame));
+				}
+			};
+		case DIV:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) / ((Integer) rhs.evaluate(frame));
+				}
+			};
+		case REM:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) % ((Integer) rhs.evaluate(frame));
+				}
+			};
+		case EQ:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return lhs.evaluate(frame).equals(rhs.evaluate(frame));
+				}
+			};
+		case NEQ:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return !lhs.evaluate(frame).equals(rhs.evaluate(frame));
+				}
+			};
+		case LT:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) < ((Integer) rhs.evaluate(frame));
+				}
+			};
+		case LTEQ:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) <= ((Integer) rhs.evaluate(frame));
+				}
+			};
+		case GT:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) > ((Integer) rhs.evaluate(frame));
+				}
+			};
+		case GTEQ:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((Integer) lhs.evaluate(frame)) >= ((Integer) rhs.evaluate(frame));
+				}
+			};
+		}
+
+		internalFailure("unknown binary expression encountered (" + expr + ")", file.filename, expr);
+		return null;
+	}
+
+	private Node build(Expr.Literal expr) {
+		final Object value = expr.getValue();
+		if (value instanceof String) {
+			// Strings are represented as arrays of integers. A fresh array must
+			// be created on every evaluation, since it may be updated.
+			final String s = (String) value;
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					ArrayList<Integer> list = new ArrayList<Integer>(s.length());
+					for (int i = 0; i != s.length(); ++i) {
+						list.add((int) s.charAt(i));
+					}
+					return list;
+				}
+			};
+		} else {
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return value;
+				}
+			};
+		}
+	}
+
+	private Node build(Expr.Invoke expr) {
+		final Function fun = functions.get(expr.getName());
+		final Node[] arguments = buildAll(expr.getArguments());
+		if (fun.method.getParameters().size() != arguments.length) {
+			throw new RuntimeException("invalid number of arguments supplied to execution of function \""
+					+ fun.method.getName() + "\"");
+		}
+		return new Node() {
+			@Override
+			public Object evaluate(Object[] frame) {
+				return call(fun, arguments(fun, arguments, frame));
+			}
+		};
+	}
+
+	/**
+	 * Evaluate the arguments of a call directly into the callee's frame, where
+	 * parameters occupy the first slots.
+	 *
+	 * @param fun
+	 * @param arguments
+	 * @param frame
+	 * @return
+	 */
+	private static Object[] arguments(Function fun, Node[] arguments, Object[] frame) {
+		Object[] callee = new Object[fun.frameSize];
+		for (int i = 0; i != arguments.length; ++i) {
+			callee[i] = Values.deepClone(arguments[i].evaluate(frame));
+		}
+		return callee;
+	}
+
+	private Node build(Expr.IndexOf expr) {
+		final Node source = build(expr.getSource());
+		final Node index = build(expr.getIndex());
+		return new Node() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object evaluate(Object[] frame) {
+				ArrayList<Object> src = (ArrayList<Object>) source.evaluate(frame);
+				return src.get((Integer) index.evaluate(frame));
+			}
+		};
+	}
+
+	private Node build(Expr.ArrayGenerator expr) {
+		final Node value = build(expr.getValue());
+		final Node size = build(expr.getSize());
+		return new Node() {
+			@Override
+			public Object evaluate(Object[] frame) {
+				Object v = value.evaluate(frame);
+				int n = (Integer) size.evaluate(frame);
+				ArrayList<Object> ls = new ArrayList<Object>(Math.max(n, 0));
+				for (int i = 0; i < n; ++i) {
+					ls.add(v);
+				}
+				return ls;
+			}
+		};
+	}
+
+	private Node build(Expr.ArrayInitialiser expr) {
+		final Node[] elements = buildAll(expr.getArguments());
+		return new Node() {
+			@Override
+			public Object evaluate(Object[] frame) {
+				ArrayList<Object> ls = new ArrayList<Object>(elements.length);
+				for (int i = 0; i != elements.length; ++i) {
+					ls.add(elements[i].evaluate(frame));
+				}
+				return ls;
+			}
+		};
+	}
+
+	private Node build(Expr.RecordAccess expr) {
+		final Node source = build(expr.getSource());
+		final String field = expr.getName();
+		return new Node() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object evaluate(Object[] frame) {
+				return ((HashMap<String, Object>) source.evaluate(frame)).get(field);
+			}
+		};
+	}
+
+	private Node build(Expr.RecordConstructor expr) {
+		List<Pair<String, Expr>> fields = expr.getFields();
+		final String[] names = new String[fields.size()];
+		final Node[] values = new Node[fields.size()];
+		for (int i = 0; i != names.length; ++i) {
+			names[i] = fields.get(i).first();
+			values[i] = build(fields.get(i).second());
+		}
+		return new Node() {
+			@Override
+			public Object evaluate(Object[] frame) {
+				HashMap<String, Object> rs = new HashMap<String, Object>();
+				for (int i = 0; i != names.length; ++i) {
+					rs.put(names[i], values[i].evaluate(frame));
+				}
+				return rs;
+			}
+		};
+	}
+
+	private Node build(Expr.Unary expr) {
+		final Node operand = build(expr.getExpr());
+		switch (expr.getOp()) {
+		case NOT:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return !((Boolean) operand.evaluate(frame));
+				}
+			};
+		case NEG:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return -((Integer) operand.evaluate(frame));
+				}
+			};
+		case LENGTHOF:
+			return new Node() {
+				@Override
+				public Object evaluate(Object[] frame) {
+					return ((ArrayList<?>) operand.evaluate(frame)).size();
+				}
+			};
+		}
+
+		internalFailure("unknown unary expression encountered (" + expr + ")", file.filename, expr);
+		return null;
+	}
+
+	private Node build(Expr.Variable expr) {
+		final int slot = FrameLayout.slotOf(expr);
+		return new Node() {
+			@Override
+			public Object evaluate(Object[] frame) {
+				return frame[slot];
+			}
+		};
+	}
+
+	private Node[] buildAll(List<Expr> exprs) {
+		Node[] nodes = new Node[exprs.size()];
+		for (int i = 0; i != nodes.length; ++i) {
+			nodes[i] = build(exprs.get(i));
+		}
+		return nodes;
+	}
+}
@@ -0,0 +1,542 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * <p>
+ * Provides copy-on-write arrays and records, which allow value semantics to be
+ * preserved without eagerly cloning a compound value every time it is
+ * assigned or passed as an argument. Instead, storing a value in a second
+ * place simply marks it as <i>shared</i>, which takes constant time. A shared
+ * value is never modified again. Rather, it is copied (shallowly) on the
+ * first update made through an lval which reaches it.
+ * </p>
+ * <p>
+ * The shared flag is never cleared, even when all but one of the holders have
+ * gone. This is conservative, but costs at most one copy more than necessary.
+ * Any plain <code>ArrayList</code> or <code>HashMap</code> (e.g. a constant
+ * produced by the parser) is treated as permanently shared.
+ * </p>
+ * <p>
+ * Arrays whose static element type is <code>int</code> or <code>bool</code>
+ * are stored densely (see <code>IntArray</code> and <code>BoolArray</code>),
+ * whilst <code>Array</code> is the fallback for compound elements. All of them
+ * are <code>List</code>s, hence printing and equality do not depend on which
+ * representation was chosen.
+ * </p>
+ */
+public final class CopyOnWrite {
+
+	private CopyOnWrite() {
+	}
+
+	/**
+	 * An array value which can be shared between several holders.
+	 */
+	public static final class Array extends ArrayList<Object> {
+		private static final long serialVersionUID = 1L;
+		private boolean shared;
+
+		public Array() {
+		}
+
+		public Array(int capacity) {
+			super(capacity);
+		}
+
+		public Array(Collection<?> elements) {
+			super(elements);
+		}
+	}
+
+	/**
+	 * An array of <code>int</code> values, stored in an <code>int[]</code>
+	 * rather than as a list of boxed values. Since a character literal has type
+	 * <code>int</code> but evaluates to a <code>Character</code>, any element
+	 * which was stored as a <code>Character</code> is recorded as such, so that
+	 * it is read back unchanged.
+	 */
+	public static final class IntArray extends AbstractList<Object> implements RandomAccess {
+		private final int[] data;
+		private BitSet chars;
+		private boolean shared;
+		/**
+		 * Caches whether this array is printed as a string, or is
+		 * <code>null</code> if this is not known (see <code>isPrintable()</code>).
+		 * It is reset by every update.
+		 */
+		private Boolean printable;
+
+		public IntArray(int[] data) {
+			this.data = data;
+		}
+
+		private IntArray(IntArray array) {
+			this.data = array.data.clone();
+			this.chars = array.chars == null ? null : (BitSet) array.chars.clone();
+			this.printable = array.printable;
+		}
+
+		/**
+		 * Construct an array of integers from the characters of a given
+		 * string.
+		 *
+		 * @param s
+		 * @return
+		 */
+		public static IntArray valueOf(String s) {
+			int[] data = new int[s.length()];
+			for (int i = 0; i != data.length; ++i) {
+				data[i] = s.charAt(i);
+			}
+			return new IntArray(data);
+		}
+
+		@Override
+		public int size() {
+			return data.length;
+		}
+
+		@Override
+		public Object get(int index) {
+			if (chars != null && chars.get(index)) {
+				return (char) data[index];
+			}
+			return data[index];
+		}
+
+		/**
+		 * Get a given element without boxing it.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public int getInt(int index) {
+			if (chars != null && chars.get(index)) {
+				throw new ClassCastException("character element used as an integer");
+			}
+			return data[index];
+		}
+
+		@Override
+		public Object set(int index, Object element) {
+			Object old = get(index);
+			printable = null;
+			if (element instanceof Character) {
+				if (chars == null) {
+					chars = new BitSet();
+				}
+				data[index] = (Character) element;
+				chars.set(index);
+			} else {
+				data[index] = (Integer) element;
+				if (chars != null) {
+					chars.clear(index);
+				}
+			}
+			return old;
+		}
+
+		/**
+		 * Update a given element without boxing it.
+		 *
+		 * @param index
+		 * @param element
+		 */
+		public void setInt(int index, int element) {
+			data[index] = element;
+			printable = null;
+			if (chars != null) {
+				chars.clear(index);
+			}
+		}
+
+		/**
+		 * Check whether every element is an integer (i.e. not a character)
+		 * representing a printable ASCII character, in which case the array
+		 * is printed as a string. The result is cached until the array is next
+		 * updated, since the same array is often printed repeatedly.
+		 *
+		 * @return
+		 */
+		public boolean isPrintable() {
+			if (printable == null) {
+				printable = (chars == null || chars.isEmpty()) && allBetween(32, 126);
+			}
+			return printable;
+		}
+
+		private boolean allBetween(int min, int max) {
+			for (int d : data) {
+				if (d < min || d > max) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * An array of <code>bool</code> values, stored in a
+	 * <code>boolean[]</code> rather than as a list of boxed values.
+	 */
+	public static final class BoolArray extends AbstractList<Object> implements RandomAccess {
+		private final boolean[] data;
+		private boolean shared;
+
+		public BoolArray(boolean[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int size() {
+			return data.length;
+		}
+
+		@Override
+		public Object get(int index) {
+			return data[index];
+		}
+
+		/**
+		 * Get a given element without boxing it.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public boolean getBool(int index) {
+			return data[index];
+		}
+
+		@Override
+		public Object set(int index, Object element) {
+			boolean old = data[index];
+			data[index] = (Boolean) element;
+			return old;
+		}
+	}
+
+	/**
+	 * Construct an array value with the given elements, using a dense
+	 * representation where the elements permit it.
+	 *
+	 * @param elements
+	 * @param elementType
+	 *            The kind of element, as determined from the static type of
+	 *            the array (i.e. <code>Integer.class</code>,
+	 *            <code>Boolean.class</code> or <code>null</code> for anything
+	 *            else).
+	 * @return
+	 */
+	public static List<Object> newArray(Object[] elements, Class<?> elementType) {
+		if (elementType == Integer.class && allInstanceOf(elements, Integer.class)) {
+			int[] data = new int[elements.length];
+			for (int i = 0; i != data.length; ++i) {
+				data[i] = (Integer) elements[i];
+			}
+			return new IntArray(data);
+		} else if (elementType == Boolean.class && allInstanceOf(elements, Boolean.class)) {
+			boolean[] data = new boolean[elements.length];
+			for (int i = 0; i != data.length; ++i) {
+				data[i] = (Boolean) elements[i];
+			}
+			return new BoolArray(data);
+		} else {
+			Array array = new Array(elements.length);
+			for (Object e : elements) {
+				array.add(share(e));
+			}
+			return array;
+		}
+	}
+
+	/**
+	 * Construct an array value containing a given value repeated a given
+	 * number of times, using a dense representation where the value permits
+	 * it.
+	 *
+	 * @param value
+	 * @param size
+	 * @param elementType
+	 *            The kind of element, as for <code>newArray(Object[],Class)</code>.
+	 * @return
+	 */
+	public static List<Object> newArray(Object value, int size, Class<?> elementType) {
+		size = Math.max(size, 0);
+		if (elementType == Integer.class && value instanceof Integer) {
+			int[] data = new int[size];
+			if ((Integer) value != 0) {
+				Arrays.fill(data, (Integer) value);
+			}
+			return new IntArray(data);
+		} else if (elementType == Boolean.class && value instanceof Boolean) {
+			boolean[] data = new boolean[size];
+			if ((Boolean) value) {
+				Arrays.fill(data, true);
+			}
+			return new BoolArray(data);
+		} else {
+			Array array = new Array(size);
+			share(value);
+			for (int i = 0; i < size; ++i) {
+				array.add(value);
+			}
+			return array;
+		}
+	}
+
+	private static boolean allInstanceOf(Object[] elements, Class<?> kind) {
+		for (Object e : elements) {
+			if (!kind.isInstance(e)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A record value which can be shared between several holders. The fields
+	 * are stored in an array, according to a fixed layout (see
+	 * <code>RecordLayout</code>). Records remain <code>Map</code>s, such that
+	 * they can be printed and compared with any other record as before.
+	 */
+	public static final class Record extends AbstractMap<String, Object> {
+		private final RecordLayout layout;
+		private final Object[] values;
+		private boolean shared;
+
+		public Record(RecordLayout layout) {
+			this.layout = layout;
+			this.values = new Object[layout.size()];
+		}
+
+		private Record(Record record) {
+			this.layout = record.layout;
+			this.values = record.values.clone();
+		}
+
+		public RecordLayout getLayout() {
+			return layout;
+		}
+
+		/**
+		 * Get the value of the field at a given index in this record's layout.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public Object getAt(int index) {
+			return values[index];
+		}
+
+		/**
+		 * Set the value of the field at a given index in this record's layout.
+		 *
+		 * @param index
+		 * @param value
+		 */
+		public void setAt(int index, Object value) {
+			values[index] = value;
+		}
+
+		@Override
+		public int size() {
+			return values.length;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return layout.indexOf(key) >= 0;
+		}
+
+		@Override
+		public Object get(Object key) {
+			int index = layout.indexOf(key);
+			return index < 0 ? null : values[index];
+		}
+
+		@Override
+		public Object put(String key, Object value) {
+			int index = layout.indexOf(key);
+			if (index < 0) {
+				throw new IllegalArgumentException("unknown field: " + key);
+			}
+			Object old = values[index];
+			values[index] = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Record && ((Record) o).layout == layout) {
+				return Arrays.equals(values, ((Record) o).values);
+			}
+			return super.equals(o);
+		}
+
+		@Override
+		public int hashCode() {
+			return super.hashCode();
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public int size() {
+					return values.length;
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new Iterator<Map.Entry<String, Object>>() {
+						private int index = 0;
+
+						@Override
+						public boolean hasNext() {
+							return index < values.length;
+						}
+
+						@Override
+						public Map.Entry<String, Object> next() {
+							if (index >= values.length) {
+								throw new NoSuchElementException();
+							}
+							String field = layout.getField(index);
+							Object value = values[index++];
+							return new AbstractMap.SimpleImmutableEntry<String, Object>(field, value);
+						}
+					};
+				}
+			};
+		}
+	}
+
+	/**
+	 * Mark a given value as shared, because it is about to be stored somewhere
+	 * else as well. This replaces a deep clone of the value.
+	 *
+	 * @param o
+	 * @return The value itself.
+	 */
+	public static Object share(Object o) {
+		if (o instanceof Array) {
+			((Array) o).shared = true;
+		} else if (o instanceof IntArray) {
+			((IntArray) o).shared = true;
+		} else if (o instanceof BoolArray) {
+			((BoolArray) o).shared = true;
+		} else if (o instanceof Record) {
+			((Record) o).shared = true;
+		}
+		return o;
+	}
+
+	/**
+	 * Convert the value of a literal (e.g. a <code>String</code> or a constant
+	 * produced by the parser) into the representation used here. The result is
+	 * marked as shared, hence it is never updated in place and can be returned
+	 * by every evaluation of the literal.
+	 *
+	 * @param o
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object constant(Object o) {
+		if (o instanceof String) {
+			o = IntArray.valueOf((String) o);
+		} else if (o instanceof List) {
+			List<Object> l = (List<Object>) o;
+			Object[] elements = new Object[l.size()];
+			for (int i = 0; i != elements.length; ++i) {
+				elements[i] = constant(l.get(i));
+			}
+			Class<?> kind = elements.length == 0 ? null : elements[0].getClass();
+			o = newArray(elements, kind);
+		} else if (o instanceof Map) {
+			Map<String, Object> m = (Map<String, Object>) o;
+			Record r = new Record(RecordLayout.of(m.keySet()));
+			for (Map.Entry<String, Object> e : m.entrySet()) {
+				r.put(e.getKey(), constant(e.getValue()));
+			}
+			o = r;
+		}
+		return share(o);
+	}
+
+	/**
+	 * Get a version of a given value which can be safely updated in place.
+	 * This is the value itself if it is not shared. Otherwise, it is a
+	 * shallow copy whose elements (or fields) thereby become shared.
+	 *
+	 * @param o
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object writable(Object o) {
+		if (o instanceof Array && !((Array) o).shared) {
+			return o;
+		} else if (o instanceof Record) {
+			Record r = (Record) o;
+			if (!r.shared) {
+				return r;
+			}
+			Record copy = new Record(r);
+			for (Object v : copy.values) {
+				share(v);
+			}
+			return copy;
+		} else if (o instanceof IntArray) {
+			IntArray a = (IntArray) o;
+			return a.shared ? new IntArray(a) : a;
+		} else if (o instanceof BoolArray) {
+			BoolArray a = (BoolArray) o;
+			return a.shared ? new BoolArray(a.data.clone()) : a;
+		} else if (o instanceof ArrayList) {
+			Array copy = new Array((ArrayList<Object>) o);
+			for (int i = 0; i != copy.size(); ++i) {
+				share(copy.get(i));
+			}
+			return copy;
+		} else if (o instanceof HashMap) {
+			HashMap<String, Object> m = (HashMap<String, Object>) o;
+			Record copy = new Record(RecordLayout.of(m.keySet()));
+			for (Map.Entry<String, Object> e : m.entrySet()) {
+				copy.put(e.getKey(), share(e.getValue()));
+			}
+			return copy;
+		} else {
+			// other values are immutable
+			return o;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.HashMap;
+import java.util.List;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.WhileFile;
+
+/**
+ * <p>
+ * Describes the layout of the stack frame for a given method. Every parameter
+ * and local variable declared in the method is allocated a fixed slot index,
+ * such that the method can be executed using an <code>Object[]</code> frame
+ * rather than a map from variable names to values.
+ * </p>
+ * <p>
+ * Resolution walks the method body once, attaching a <code>Slot</code>
+ * attribute to every variable declaration and variable access. Parameters
+ * always occupy the first slots, in the order they are declared. Every
+ * distinct variable name is given exactly one slot, which mirrors how the
+ * interpreter has always treated a frame (i.e. as a flat mapping from names
+ * to values). The layout itself is attached to the method declaration, so
+ * resolution only happens once per method.
+ * </p>
+ */
+public final class FrameLayout implements Attribute {
+
+	/**
+	 * Represents the frame slot allocated to a given variable declaration or
+	 * variable access.
+	 */
+	public static final class Slot implements Attribute {
+		/**
+		 * The index of this slot within the enclosing frame.
+		 */
+		public final int index;
+
+		public Slot(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + index;
+		}
+	}
+
+	/**
+	 * Maps each variable name to its allocated slot.
+	 */
+	private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+	private FrameLayout() {
+	}
+
+	/**
+	 * Get the number of slots required for a frame of this layout.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	 * Get the slot allocated for a given variable name, or <code>-1</code> if
+	 * no such variable is declared in this method.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public int slotOf(String name) {
+		Integer slot = slots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Construct a new (empty) frame for this layout.
+	 *
+	 * @return
+	 */
+	public Object[] newFrame() {
+		return new Object[slots.size()];
+	}
+
+	/**
+	 * Determine the slot allocated for a given variable access, as determined
+	 * when the enclosing method was resolved.
+	 *
+	 * @param var
+	 * @return
+	 */
+	public static int slotOf(Expr.Variable var) {
+		return var.attribute(Slot.class).index;
+	}
+
+	/**
+	 * Determine the slot allocated for a given variable declaration, as
+	 * determined when the enclosing method was resolved.
+	 *
+	 * @param decl
+	 * @return
+	 */
+	public static int slotOf(Stmt.VariableDeclaration decl) {
+		return decl.attribute(Slot.class).index;
+	}
+
+	/**
+	 * Get the frame layout for a given method, resolving it first if this has
+	 * not already been done.
+	 *
+	 * @param method
+	 * @return
+	 */
+	public static FrameLayout resolve(WhileFile.MethodDecl method) {
+		FrameLayout layout = method.attribute(FrameLayout.class);
+		if (layout == null) {
+			layout = new FrameLayout();
+			for (WhileFile.Parameter p : method.getParameters()) {
+				layout.allocate(p.getName());
+			}
+			layout.resolve(method.getBody());
+			method.attributes().add(layout);
+		}
+		return layout;
+	}
+
+	private int allocate(String name) {
+		Integer slot = slots.get(name);
+		if (slot == null) {
+			slot = slots.size();
+			slots.put(name, slot);
+		}
+		return slot;
+	}
+
+	private void resolve(List<Stmt> block) {
+		for (Stmt s : block) {
+			resolve(s);
+		}
+	}
+
+	private void resolve(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			resolve(((Stmt.Assert) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Print) {
+			resolve(((Stmt.Print) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			resolve(s.getLhs());
+			resolve(s.getRhs());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			resolve(s.getDeclaration());
+			resolve(s.getCondition());
+			resolve(s.getIncrement());
+			resolve(s.getBody());
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			resolve(s.getCondition());
+			resolve(s.getBody());
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			resolve(s.getExpr());
+			for (Stmt.Case c : s.getCases()) {
+				resolve(c.getBody());
+			}
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			resolve(s.getCondition());
+			resolve(s.getTrueBranch());
+			resolve(s.getFalseBranch());
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			if (s.getExpr() != null) {
+				resolve(s.getExpr());
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() != null) {
+				resolve(s.getExpr());
+			}
+			s.attributes().add(0, new Slot(allocate(s.getName())));
+		} else if (stmt instanceof Expr.Invoke) {
+			resolve((Expr) stmt);
+		}
+		// Break and Continue have nothing to resolve
+	}
+
+	private void resolve(Expr expr) {
+		if (expr instanceof Expr.Variable) {
+			Expr.Variable e = (Expr.Variable) expr;
+			e.attributes().add(0, new Slot(allocate(e.getName())));
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			resolve(e.getLhs());
+			resolve(e.getRhs());
+		} else if (expr instanceof Expr.Unary) {
+			resolve(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			resolve(e.getSource());
+			resolve(e.getIndex());
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			resolve(e.getValue());
+			resolve(e.getSize());
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				resolve(e);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			resolve(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> f : ((Expr.RecordConstructor) expr).getFields()) {
+				resolve(f.second());
+			}
+		} else if (expr instanceof Expr.Invoke) {
+			for (Expr e : ((Expr.Invoke) expr).getArguments()) {
+				resolve(e);
+			}
+		}
+		// Literals have nothing to resolve
+	}
+}
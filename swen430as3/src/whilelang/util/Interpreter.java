@@ -20,14 +20,18 @@ package whilelang.util;
 
 import static whilelang.util.SyntaxError.internalFailure;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import whilelang.ast.Attribute;
 import whilelang.ast.Expr;
 import whilelang.ast.Stmt;
+import whilelang.ast.Type;
 import whilelang.ast.WhileFile;
 
 /**
@@ -43,24 +47,219 @@ public class Interpreter {
 	private HashMap<String, WhileFile.Decl> declarations;
 	private WhileFile file;
 
+	/**
+	 * The maximum number of steps which a call to <code>invoke()</code> may
+	 * take, or zero if there is no limit. Executing a block takes one step, and
+	 * allocating or copying an array takes one step for each element.
+	 */
+	private long stepLimit;
+
+	/**
+	 * The number of steps taken by the current call to <code>invoke()</code>.
+	 */
+	private long steps;
+
+	/**
+	 * Indicates whether <code>int</code> and <code>bool</code> expressions are
+	 * evaluated without boxing intermediate results, as directed by the types
+	 * inferred by the type checker.
+	 */
+	private final boolean unboxed;
+
+	/**
+	 * Counts the intermediate <code>int</code> results which were not boxed,
+	 * and which would have required an allocation if they were (i.e. they lie
+	 * outside the range cached by <code>Integer.valueOf()</code>).
+	 */
+	private long boxesAvoided;
+
+	/**
+	 * Caches the results of calls to pure functions, or <code>null</code> if
+	 * memoisation is not enabled.
+	 */
+	private MemoCache memo;
+
+	/**
+	 * The names of those functions whose calls can be memoised (see
+	 * <code>EffectAnalysis</code>).
+	 */
+	private Set<String> pure = Collections.emptySet();
+
+	/**
+	 * Records the execution of each statement and method, or is
+	 * <code>null</code> if profiling is not enabled.
+	 */
+	private Profiler profiler;
+
+	/**
+	 * Compiles frequently executed methods into JVM bytecode, or is
+	 * <code>null</code> if tiered execution is not enabled.
+	 */
+	private TieredCompiler tiered;
+
+	/**
+	 * The tiered compilation threshold, or zero if not enabled.
+	 */
+	private int tieredThreshold;
+
+	/**
+	 * Counts the executions of the method currently being interpreted, or is
+	 * <code>null</code> if tiered execution is not enabled.
+	 */
+	private TieredCompiler.Counter counter;
+
+	/**
+	 * Receives the output of print statements.
+	 */
+	private PrintSink sink = new BufferedPrintSink();
+
+	public Interpreter() {
+		this(true);
+	}
+
+	public Interpreter(boolean unboxed) {
+		this.unboxed = unboxed;
+	}
+
+	/**
+	 * Get the number of allocations avoided by evaluating <code>int</code>
+	 * expressions without boxing, since this interpreter was created.
+	 *
+	 * @return
+	 */
+	public long getBoxesAvoided() {
+		return boxesAvoided;
+	}
+
+	/**
+	 * Enable the memoisation of calls to pure functions, retaining at most a
+	 * given number of results.
+	 *
+	 * @param capacity
+	 */
+	public void enableMemoisation(int capacity) {
+		memo = new MemoCache(capacity);
+	}
+
+	/**
+	 * Get the cache used to memoise calls to pure functions, or
+	 * <code>null</code> if memoisation is not enabled.
+	 *
+	 * @return
+	 */
+	public MemoCache getMemoCache() {
+		return memo;
+	}
+
+	/**
+	 * Record the execution of each statement and method with a given profiler.
+	 *
+	 * @param profiler
+	 */
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Enable tiered execution, where a method is compiled into JVM bytecode
+	 * once its number of invocations plus loop iterations reaches a given
+	 * threshold (see <code>TieredCompiler</code>). Statements executed as
+	 * bytecode are not seen by any profiler.
+	 *
+	 * @param threshold
+	 */
+	public void enableTieredCompilation(int threshold) {
+		tieredThreshold = threshold;
+	}
+
+	/**
+	 * Get the compiler used for tiered execution in the most recent run, or
+	 * <code>null</code> if tiered execution is not enabled.
+	 *
+	 * @return
+	 */
+	public TieredCompiler getTieredCompiler() {
+		return tiered;
+	}
+
+	/**
+	 * Send the output of print statements to a given sink, rather than the
+	 * standard output. The sink is flushed when the program finishes.
+	 *
+	 * @param sink
+	 */
+	public void setPrintSink(PrintSink sink) {
+		this.sink = sink;
+	}
+
 	public void run(WhileFile wf) {
 		// First, initialise the map of declaration names to their bodies.
-		declarations = new HashMap<String,WhileFile.Decl>();
-		for(WhileFile.Decl decl : wf.declarations) {
-			declarations.put(decl.name(), decl);
+		initialise(wf);
+		if(memo != null) {
+			pure = new EffectAnalysis().pureFunctions(wf);
+		}
+		if(tieredThreshold > 0) {
+			tiered = new TieredCompiler(wf, tieredThreshold);
 		}
-		this.file = wf;
 
 		// Second, pick the main method (if one exits) and execute it
 		WhileFile.Decl main = declarations.get("main");
 		if(main instanceof WhileFile.MethodDecl) {
 			WhileFile.MethodDecl fd = (WhileFile.MethodDecl) main;
-			execute(fd);
+			try {
+				execute(fd);
+			} finally {
+				sink.flush();
+			}
 		} else {
 			System.out.println("Cannot find a main() function");
 		}
 	}
 
+	/**
+	 * Limit the number of steps which may be taken by each subsequent call to
+	 * <code>invoke()</code>. Since every loop iteration and function call
+	 * executes a block, and every array element allocated or copied is counted,
+	 * this bounds both the time and the memory taken by any call, even one
+	 * which would not terminate. A limit of zero means no limit is imposed.
+	 *
+	 * @param limit
+	 */
+	public void setStepLimit(long limit) {
+		this.stepLimit = limit;
+	}
+
+	/**
+	 * Execute a given function of a source file on given argument values,
+	 * returning its result. This is used to evaluate calls at compile time (see
+	 * <code>PartialEvaluation</code>). An exception is thrown if the function
+	 * fails (e.g. an assertion does not hold), or if the step limit is
+	 * exceeded.
+	 *
+	 * @param wf
+	 *            The source file declaring the function.
+	 * @param name
+	 *            The name of the function to execute.
+	 * @param arguments
+	 *            Array of argument values.
+	 * @return
+	 */
+	public Object invoke(WhileFile wf, String name, Object... arguments) {
+		if(file != wf) {
+			initialise(wf);
+		}
+		steps = 0;
+		return execute((WhileFile.MethodDecl) declarations.get(name), arguments);
+	}
+
+	private void initialise(WhileFile wf) {
+		declarations = new HashMap<String,WhileFile.Decl>();
+		for(WhileFile.Decl decl : wf.declarations) {
+			declarations.put(decl.name(), decl);
+		}
+		this.file = wf;
+	}
+
 	/**
 	 * Execute a given function with the given argument values. If the number of
 	 * arguments is incorrect, then an exception is thrown.
@@ -79,19 +278,139 @@ public class Interpreter {
 							+ function.getName() + "\"");
 		}
 
-		// Second, construct the stack frame in which this function will
-		// execute.
-		HashMap<String,Object> frame = new HashMap<String,Object>();
-		for(int i=0;i!=arguments.length;++i) {
-			WhileFile.Parameter parameter = function.getParameters().get(i);
-			frame.put(parameter.getName(),arguments[i]);
+		// Second, execute the function body! A call in tail position is
+		// returned to here rather than being executed by the caller, such
+		// that the stack does not grow.
+		TieredCompiler.Counter caller = counter;
+		// The memoised functions called in tail position, whose result is that
+		// of the final call.
+		ArrayDeque<TailCall> pending = null;
+		while(true) {
+			Object r;
+			if(tiered != null) {
+				counter = tiered.counter(function);
+				r = tiered.invoke(counter, arguments);
+				if(r != TieredCompiler.INTERPRET) {
+					counter = caller;
+					return r;
+				}
+			}
+			// Construct the stack frame in which the function will execute.
+			// Parameters always occupy the first slots of the frame.
+			Object[] frame = FrameLayout.resolve(function).newFrame();
+			System.arraycopy(arguments, 0, frame, 0, arguments.length);
+			try {
+				if(profiler != null) {
+					profiler.enter(function);
+					try {
+						r = execute(function.getBody(),frame);
+					} finally {
+						profiler.exit();
+					}
+				} else {
+					r = execute(function.getBody(),frame);
+				}
+			} finally {
+				counter = caller;
+			}
+			if(r instanceof TailCall) {
+				TailCall call = (TailCall) r;
+				function = call.function;
+				arguments = call.arguments;
+				if(isMemoised(function)) {
+					Object result = memo.get(function.getName(), arguments);
+					if(result != null) {
+						return memoise(pending, result);
+					}
+					if(pending == null) {
+						pending = new ArrayDeque<TailCall>();
+					} else if(pending.size() == memo.getCapacity()) {
+						// The earliest calls would be evicted anyway
+						pending.removeFirst();
+					}
+					pending.addLast(call);
+				}
+			} else {
+				return memoise(pending, r);
+			}
+		}
+	}
+
+	/**
+	 * Determine whether calls to a given function are memoised.
+	 *
+	 * @param function
+	 * @return
+	 */
+	private boolean isMemoised(WhileFile.MethodDecl function) {
+		return pure.contains(function.getName()) && !(function.getRet() instanceof Type.Void);
+	}
+
+	/**
+	 * Record the result of a chain of tail calls as that of each memoised call
+	 * in the chain.
+	 *
+	 * @param pending
+	 *            The memoised calls, or <code>null</code> if there are none.
+	 * @param result
+	 * @return
+	 */
+	private Object memoise(ArrayDeque<TailCall> pending, Object result) {
+		if(pending == null) {
+			return result;
+		}
+		// The result may be returned to many callers, hence it must be
+		// shared as well.
+		result = CopyOnWrite.share(result);
+		for(TailCall call : pending) {
+			memo.put(call.function.getName(), call.arguments, result);
 		}
+		return result;
+	}
+
+	/**
+	 * Signals that a call to <code>invoke()</code> has exceeded the step limit.
+	 * No stack trace is recorded, as this is never needed.
+	 */
+	public static final class StepLimitExceeded extends RuntimeException {
+		private static final long serialVersionUID = 1L;
 
-		// Third, execute the function body!
-		return execute(function.getBody(),frame);
+		private StepLimitExceeded() {
+			super("step limit exceeded", null, false, false);
+		}
 	}
 
-	private Object execute(List<Stmt> block, HashMap<String,Object> frame) {
+	/**
+	 * Account for a given number of steps taken by the current call to
+	 * <code>invoke()</code>. This is done before the work is performed, so that
+	 * (for example) an array too large to allocate is never attempted.
+	 *
+	 * @param cost
+	 */
+	private void charge(long cost) {
+		steps += cost;
+		if(stepLimit != 0 && steps > stepLimit) {
+			throw new StepLimitExceeded();
+		}
+	}
+
+	/**
+	 * Represents a call in tail position which is yet to be executed. This is
+	 * returned from the body of the calling function, and then executed in its
+	 * place.
+	 */
+	private static final class TailCall {
+		private final WhileFile.MethodDecl function;
+		private final Object[] arguments;
+
+		private TailCall(WhileFile.MethodDecl function, Object[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+	}
+
+	private Object execute(List<Stmt> block, Object[] frame) {
+		charge(1);
 		for(int i=0;i!=block.size();i=i+1) {
 			Object r = execute(block.get(i),frame);
 			if(r != null) {
@@ -107,10 +426,22 @@ public class Interpreter {
 	 * @param stmt
 	 *            Statement to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
+	 *            Stack frame holding the current value of each variable slot.
 	 * @return
 	 */
-	private Object execute(Stmt stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt stmt, Object[] frame) {
+		if(profiler != null) {
+			profiler.enter(stmt);
+			try {
+				return dispatch(stmt, frame);
+			} finally {
+				profiler.exit();
+			}
+		}
+		return dispatch(stmt, frame);
+	}
+
+	private Object dispatch(Stmt stmt, Object[] frame) {
 		if(stmt instanceof Stmt.Assert) {
 			return execute((Stmt.Assert) stmt,frame);
 		} else if(stmt instanceof Stmt.Print) {
@@ -134,50 +465,53 @@ public class Interpreter {
 		} else if(stmt instanceof Stmt.VariableDeclaration) {
 			return execute((Stmt.VariableDeclaration) stmt,frame);
 		} else if(stmt instanceof Expr.Invoke) {
-			return execute((Expr.Invoke) stmt,frame);
+			// The returned value (if any) is discarded when a method is invoked
+			// as a statement; it must not be mistaken for a return.
+			execute((Expr.Invoke) stmt,frame);
+			return null;
 		} else {
 			internalFailure("unknown statement encountered (" + stmt + ")", file.filename,stmt);
 			return null;
 		}
 	}
 
-	private Object execute(Stmt.Assert stmt, HashMap<String,Object> frame) {
-		boolean b = (Boolean) execute(stmt.getExpr(),frame);
+	private Object execute(Stmt.Assert stmt, Object[] frame) {
+		boolean b = executeBool(stmt.getExpr(),frame);
 		if(!b) {
 			throw new RuntimeException("assertion failure");
 		}
 		return null;
 	}
 	
-	private Object execute(Stmt.Print stmt, HashMap<String,Object> frame) {
-		System.out.println(toString(execute(stmt.getExpr(),frame)));
+	private Object execute(Stmt.Print stmt, Object[] frame) {
+		sink.println(execute(stmt.getExpr(),frame));
 		return null;
 	}
 
 	@SuppressWarnings("unchecked")
-	private Object execute(Stmt.Assign stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.Assign stmt, Object[] frame) {
 		Expr lhs = stmt.getLhs();
 		if(lhs instanceof Expr.Variable) {
 			Expr.Variable ev = (Expr.Variable) lhs;
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			frame.put(ev.getName(),deepClone(rhs));
+			// The value is now held in (at least) two places, so must be
+			// shared to ensure the value semantics used in While are preserved.
+			frame[FrameLayout.slotOf(ev)] = CopyOnWrite.share(rhs);
 		} else if(lhs instanceof Expr.RecordAccess) {
 			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
-			Map<String,Object> src = (Map<String, Object>) execute(ra.getSource(),frame);
+			Map<String,Object> src = (Map<String, Object>) update(ra.getSource(),frame);
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			src.put(ra.getName(), deepClone(rhs));
+			putField(ra, src, CopyOnWrite.share(rhs));
 		} else if(lhs instanceof Expr.IndexOf) {
 			Expr.IndexOf io = (Expr.IndexOf) lhs;
-			ArrayList<Object> src = (ArrayList<Object>) execute(io.getSource(),frame);
+			List<Object> src = (List<Object>) update(io.getSource(),frame);
 			Integer idx = (Integer) execute(io.getIndex(),frame);
-			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			src.set(idx,deepClone(rhs));
+			if(src instanceof CopyOnWrite.IntArray && isAlwaysInteger(stmt.getRhs())) {
+				((CopyOnWrite.IntArray) src).setInt(idx, executeInt(stmt.getRhs(),frame));
+			} else {
+				Object rhs = execute(stmt.getRhs(),frame);
+				src.set(idx,CopyOnWrite.share(rhs));
+			}
 		} else {
 			internalFailure("unknown lval encountered (" + lhs + ")", file.filename,stmt);
 		}
@@ -185,9 +519,64 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Stmt.For stmt, HashMap<String,Object> frame) {
+	/**
+	 * Evaluate the source of an lval which is about to be updated. Every
+	 * compound value along the path from the variable being updated is made
+	 * writable first (see <code>CopyOnWrite</code>), such that the update
+	 * cannot be observed through any other holder of a shared value.
+	 *
+	 * @param lval
+	 *            The array or record being updated.
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private Object update(Expr lval, Object[] frame) {
+		if(lval instanceof Expr.Variable) {
+			int slot = FrameLayout.slotOf((Expr.Variable) lval);
+			Object value = writable(frame[slot]);
+			frame[slot] = value;
+			return value;
+		} else if(lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			Map<String,Object> src = (Map<String, Object>) update(ra.getSource(),frame);
+			Object value = writable(getField(ra, src));
+			putField(ra, src, value);
+			return value;
+		} else if(lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			List<Object> src = (List<Object>) update(io.getSource(),frame);
+			int idx = (Integer) execute(io.getIndex(),frame);
+			Object value = writable(src.get(idx));
+			src.set(idx, value);
+			return value;
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")", file.filename,lval);
+			return null;
+		}
+	}
+
+	/**
+	 * Obtain a version of a given value which may be updated in place, as for
+	 * <code>CopyOnWrite.writable()</code>, counting any array copied against
+	 * the step limit.
+	 *
+	 * @param o
+	 * @return
+	 */
+	private Object writable(Object o) {
+		Object value = CopyOnWrite.writable(o);
+		if(value != o && value instanceof List) {
+			charge(((List<?>) value).size());
+		}
+		return value;
+	}
+
+	private Object execute(Stmt.For stmt, Object[] frame) {
 		execute(stmt.getDeclaration(),frame);
-		while((Boolean) execute(stmt.getCondition(),frame)) {
+		int iterations = 0;
+		while(executeBool(stmt.getCondition(),frame)) {
 			Object ret = execute(stmt.getBody(),frame);
 			if(ret == BREAK_CONSTANT) {
 				break;
@@ -197,12 +586,17 @@ public class Interpreter {
 				return ret;
 			}
 			execute(stmt.getIncrement(),frame);
+			if(counter != null && isHotLoop(stmt, ++iterations, frame)) {
+				// The loop has been completed in compiled code
+				break;
+			}
 		}
 		return null;
 	}
 
-	private Object execute(Stmt.While stmt, HashMap<String,Object> frame) {
-		while((Boolean) execute(stmt.getCondition(),frame)) {
+	private Object execute(Stmt.While stmt, Object[] frame) {
+		int iterations = 0;
+		while(executeBool(stmt.getCondition(),frame)) {
 			Object ret = execute(stmt.getBody(),frame);
 			if(ret == BREAK_CONSTANT) {
 				break;
@@ -211,12 +605,37 @@ public class Interpreter {
 			} else if(ret != null) {
 				return ret;
 			}
+			if(counter != null && isHotLoop(stmt, ++iterations, frame)) {
+				// The loop has been completed in compiled code
+				break;
+			}
 		}
 		return null;
 	}
 
-	private Object execute(Stmt.IfElse stmt, HashMap<String,Object> frame) {
-		boolean condition = (Boolean) execute(stmt.getCondition(),frame);
+	/**
+	 * Record a back-edge of a loop when tiered execution is enabled. Once the
+	 * current execution of the loop has iterated enough times, execution is
+	 * transferred into a compiled version of the loop (i.e. on-stack
+	 * replacement), which runs from the next check of its condition until it
+	 * exits. This is attempted only once per execution of the loop, as it
+	 * will fail for the same reason again.
+	 *
+	 * @param loop
+	 * @param iterations
+	 *            The number of iterations completed in this execution of the
+	 *            loop.
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return <code>true</code> if the loop has now completed.
+	 */
+	private boolean isHotLoop(Stmt loop, int iterations, Object[] frame) {
+		counter.count++;
+		return iterations == tieredThreshold && profiler == null && tiered.transfer(loop, frame);
+	}
+
+	private Object execute(Stmt.IfElse stmt, Object[] frame) {
+		boolean condition = executeBool(stmt.getCondition(),frame);
 		if(condition) {
 			return execute(stmt.getTrueBranch(),frame);
 		} else {
@@ -224,15 +643,15 @@ public class Interpreter {
 		}
 	}
 
-	private Object execute(Stmt.Break stmt, HashMap<String, Object> frame) {
+	private Object execute(Stmt.Break stmt, Object[] frame) {
 		return BREAK_CONSTANT;
 	}
 
-	private Object execute(Stmt.Continue stmt, HashMap<String, Object> frame) {
+	private Object execute(Stmt.Continue stmt, Object[] frame) {
 		return CONTINUE_CONSTANT;
 	}
 
-	private Object execute(Stmt.Switch stmt, HashMap<String, Object> frame) {
+	private Object execute(Stmt.Switch stmt, Object[] frame) {
 		boolean fallThru = false;
 		Object value = execute(stmt.getExpr(), frame);
 		for (Stmt.Case c : stmt.getCases()) {
@@ -250,8 +669,15 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Stmt.Return stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.Return stmt, Object[] frame) {
 		Expr re = stmt.getExpr();
+		if(re instanceof Expr.Invoke) {
+			Expr.Invoke ie = (Expr.Invoke) re;
+			WhileFile.MethodDecl fun = (WhileFile.MethodDecl) declarations.get(ie.getName());
+			// This is a tail call, hence it can be executed once the current
+			// frame has been discarded (and memoised there as well).
+			return new TailCall(fun, evaluate(ie.getArguments(), frame));
+		}
 		if(re != null) {
 			return execute(re,frame);
 		} else {
@@ -260,7 +686,7 @@ public class Interpreter {
 	}
 
 	private Object execute(Stmt.VariableDeclaration stmt,
-			HashMap<String, Object> frame) {
+			Object[] frame) {
 		Expr re = stmt.getExpr();
 		Object value;
 		if (re != null) {
@@ -269,9 +695,9 @@ public class Interpreter {
 			value = Collections.EMPTY_SET; // used to indicate a variable has
 											// been declared
 		}
-		// We need to perform a deep clone here to ensure the value
-		// semantics used in While are preserved.
-		frame.put(stmt.getName(), deepClone(value));
+		// The value is now held in (at least) two places, so must be shared
+		// to ensure the value semantics used in While are preserved.
+		frame[FrameLayout.slotOf(stmt)] = CopyOnWrite.share(value);
 		return null;
 	}
 
@@ -281,10 +707,10 @@ public class Interpreter {
 	 * @param expr
 	 *            Expression to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
+	 *            Stack frame holding the current value of each variable slot.
 	 * @return
 	 */
-	private Object execute(Expr expr, HashMap<String,Object> frame) {
+	private Object execute(Expr expr, Object[] frame) {
 		if(expr instanceof Expr.Binary) {
 			return execute((Expr.Binary) expr,frame);
 		} else if(expr instanceof Expr.Literal) {
@@ -312,7 +738,21 @@ public class Interpreter {
 	}
 
 	@SuppressWarnings("incomplete-switch")
-	private Object execute(Expr.Binary expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Binary expr, Object[] frame) {
+		if(unboxed) {
+			// Evaluate the operands without boxing, such that only the final
+			// result is boxed.
+			switch (expr.getOp()) {
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV:
+			case REM:
+				return arithmetic(expr, frame);
+			default:
+				return condition(expr, frame);
+			}
+		}
 		// First, deal with the short-circuiting operators first
 		Object lhs = execute(expr.getLhs(), frame);
 
@@ -356,89 +796,396 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Expr.Literal expr, HashMap<String,Object> frame) {
-		Object o = expr.getValue();
-		// Check whether any coercions required
-		if(o instanceof Character) {
-			char c = ((Character)o);
-			return c;
-		} else if(o instanceof String) {
-			ArrayList<Integer> list = new ArrayList<>();
-			String s = ((String)o);
-			for (char c : s.toCharArray()) {
-				list.add((int) c);
+	/**
+	 * Evaluate an expression of type <code>int</code>, without boxing its
+	 * result where possible.
+	 *
+	 * @param expr
+	 *            Expression to execute.
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return
+	 */
+	private int executeInt(Expr expr, Object[] frame) {
+		int value;
+		if(expr instanceof Expr.Variable) {
+			return (Integer) frame[FrameLayout.slotOf((Expr.Variable) expr)];
+		} else if(expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			Object src = execute(e.getSource(), frame);
+			int idx = executeInt(e.getIndex(), frame);
+			if(src instanceof CopyOnWrite.IntArray) {
+				return ((CopyOnWrite.IntArray) src).getInt(idx);
+			}
+			return (Integer) ((List<?>) src).get(idx);
+		} else if(unboxed && expr instanceof Expr.Binary) {
+			value = arithmetic((Expr.Binary) expr, frame);
+		} else if(unboxed && expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			if(e.getOp() == Expr.UOp.LENGTHOF) {
+				return ((List<?>) execute(e.getExpr(), frame)).size();
 			}
-			return list;
+			value = -executeInt(e.getExpr(), frame);
+		} else {
+			return (Integer) execute(expr, frame);
+		}
+		if(value < -128 || value > 127) {
+			boxesAvoided++;
 		}
-		// Done
-		return o;
+		return value;
 	}
 
-	private Object execute(Expr.Invoke expr, HashMap<String, Object> frame) {
-		List<Expr> arguments = expr.getArguments();
-		Object[] values = new Object[arguments.size()];
-		for (int i = 0; i != values.length; ++i) {
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			values[i] = deepClone(execute(arguments.get(i), frame));
+	/**
+	 * Evaluate an expression of type <code>bool</code>, without boxing its
+	 * result or those of any comparisons it contains.
+	 *
+	 * @param expr
+	 *            Expression to execute.
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return
+	 */
+	private boolean executeBool(Expr expr, Object[] frame) {
+		if(expr instanceof Expr.Variable) {
+			return (Boolean) frame[FrameLayout.slotOf((Expr.Variable) expr)];
+		} else if(expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			Object src = execute(e.getSource(), frame);
+			int idx = executeInt(e.getIndex(), frame);
+			if(src instanceof CopyOnWrite.BoolArray) {
+				return ((CopyOnWrite.BoolArray) src).getBool(idx);
+			}
+			return (Boolean) ((List<?>) src).get(idx);
+		} else if(unboxed && expr instanceof Expr.Binary) {
+			return condition((Expr.Binary) expr, frame);
+		} else if(unboxed && expr instanceof Expr.Unary) {
+			return !executeBool(((Expr.Unary) expr).getExpr(), frame);
+		} else {
+			return (Boolean) execute(expr, frame);
+		}
+	}
+
+	private int arithmetic(Expr.Binary expr, Object[] frame) {
+		int lhs = executeInt(expr.getLhs(), frame);
+		int rhs = executeInt(expr.getRhs(), frame);
+		switch (expr.getOp()) {
+		case ADD:
+			return lhs + rhs;
+		case SUB:
+			return lhs - rhs;
+		case MUL:
+			return lhs * rhs;
+		case DIV:
+			return lhs / rhs;
+		case REM:
+			return lhs % rhs;
+		default:
+			internalFailure("unknown arithmetic expression encountered (" + expr + ")",
+					file.filename, expr);
+			return 0;
+		}
+	}
+
+	private boolean condition(Expr.Binary expr, Object[] frame) {
+		Expr lhs = expr.getLhs();
+		Expr rhs = expr.getRhs();
+		switch (expr.getOp()) {
+		case AND:
+			return executeBool(lhs, frame) && executeBool(rhs, frame);
+		case OR:
+			return executeBool(lhs, frame) || executeBool(rhs, frame);
+		case LT:
+			return executeInt(lhs, frame) < executeInt(rhs, frame);
+		case LTEQ:
+			return executeInt(lhs, frame) <= executeInt(rhs, frame);
+		case GT:
+			return executeInt(lhs, frame) > executeInt(rhs, frame);
+		case GTEQ:
+			return executeInt(lhs, frame) >= executeInt(rhs, frame);
+		case EQ:
+			return equals(lhs, rhs, frame);
+		case NEQ:
+			return !equals(lhs, rhs, frame);
+		default:
+			internalFailure("unknown condition encountered (" + expr + ")", file.filename, expr);
+			return false;
+		}
+	}
+
+	private boolean equals(Expr lhs, Expr rhs, Object[] frame) {
+		// NOTE: an expression of type int may still evaluate to a Character
+		// (e.g. a character literal), which is never equal to an Integer.
+		// Hence, only those expressions which always produce an Integer can
+		// be compared without boxing.
+		if(isAlwaysInteger(lhs) && isAlwaysInteger(rhs)) {
+			return executeInt(lhs, frame) == executeInt(rhs, frame);
+		} else if(isAlwaysInteger(lhs)) {
+			int l = executeInt(lhs, frame);
+			Object r = execute(rhs, frame);
+			return r instanceof Integer && (Integer) r == l;
+		} else if(isAlwaysInteger(rhs)) {
+			Object l = execute(lhs, frame);
+			int r = executeInt(rhs, frame);
+			return l instanceof Integer && (Integer) l == r;
+		} else if(isInstanceOf(lhs, Type.Bool.class) && isInstanceOf(rhs, Type.Bool.class)) {
+			return executeBool(lhs, frame) == executeBool(rhs, frame);
+		} else {
+			return execute(lhs, frame).equals(execute(rhs, frame));
+		}
+	}
+
+	/**
+	 * Check whether a given expression is an arithmetic operation or a length,
+	 * and therefore always evaluates to an <code>Integer</code>.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean isAlwaysInteger(Expr expr) {
+		if(expr instanceof Expr.Binary) {
+			switch (((Expr.Binary) expr).getOp()) {
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV:
+			case REM:
+				return true;
+			default:
+				return false;
+			}
+		} else {
+			return expr instanceof Expr.Unary && ((Expr.Unary) expr).getOp() != Expr.UOp.NOT;
+		}
+	}
+
+	/**
+	 * Check whether the type inferred for a given expression is an instance of
+	 * the given kind, after expanding any named types.
+	 *
+	 * @param expr
+	 * @param kind
+	 * @return
+	 */
+	private boolean isInstanceOf(Expr expr, Class<? extends Type> kind) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		return attr != null && kind.isInstance(expand(attr.type));
+	}
+
+	/**
+	 * Expand a given type until it is no longer a named type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Type expand(Type type) {
+		while(type instanceof Type.Named) {
+			WhileFile.Decl decl = declarations.get(((Type.Named) type).getName());
+			type = decl instanceof WhileFile.TypeDecl ? ((WhileFile.TypeDecl) decl).getType() : null;
+		}
+		return type;
+	}
+
+	/**
+	 * Caches the value of a literal, such that it is only constructed once.
+	 * The value is shared and, hence, is never updated in place.
+	 */
+	private static final class Constant implements Attribute {
+		private final Object value;
+
+		private Constant(Object value) {
+			this.value = value;
+		}
+	}
+
+	private Object execute(Expr.Literal expr, Object[] frame) {
+		Object o = expr.getValue();
+		if(o == null || o instanceof Integer || o instanceof Boolean || o instanceof Character) {
+			return o;
+		}
+		// Compound literals are materialised once and shared thereafter
+		Constant constant = expr.attribute(Constant.class);
+		if(constant == null) {
+			constant = new Constant(CopyOnWrite.constant(o));
+			expr.attributes().add(0, constant);
 		}
+		return constant.value;
+	}
+
+	private Object execute(Expr.Invoke expr, Object[] frame) {
+		Object[] values = evaluate(expr.getArguments(), frame);
 		WhileFile.MethodDecl fun = (WhileFile.MethodDecl) declarations.get(expr
 				.getName());
+		if(isMemoised(fun)) {
+			Object result = memo.get(fun.getName(), values);
+			if(result == null) {
+				// The result may be returned to many callers, hence it must be
+				// shared as well.
+				result = CopyOnWrite.share(execute(fun, values));
+				memo.put(fun.getName(), values, result);
+			}
+			return result;
+		}
 		return execute(fun, values);
 	}
 
-	@SuppressWarnings("unchecked")
-	private Object execute(Expr.IndexOf expr, HashMap<String,Object> frame) {
+	/**
+	 * Evaluate the arguments of a function call.
+	 *
+	 * @param arguments
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return
+	 */
+	private Object[] evaluate(List<Expr> arguments, Object[] frame) {
+		Object[] values = new Object[arguments.size()];
+		for (int i = 0; i != values.length; ++i) {
+			// Arguments are shared with the caller, rather than cloned. Thus,
+			// they are only copied if the callee updates them.
+			values[i] = CopyOnWrite.share(execute(arguments.get(i), frame));
+		}
+		return values;
+	}
+
+	private Object execute(Expr.IndexOf expr, Object[] frame) {
 		Object _src = execute(expr.getSource(),frame);
-		int idx = (Integer) execute(expr.getIndex(),frame);
+		int idx = executeInt(expr.getIndex(),frame);
 		if(_src instanceof String) {
 			String src = (String) _src;
 			return src.charAt(idx);
 		} else {
-			ArrayList<Object> src = (ArrayList<Object>) _src;
+			List<?> src = (List<?>) _src;
 			return src.get(idx);
 		}
 	}
 
-	private Object execute(Expr.ArrayGenerator expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.ArrayGenerator expr, Object[] frame) {
 		Object value = execute(expr.getValue(),frame);
-		int size = (Integer) execute(expr.getSize(),frame);
-		ArrayList<Object> ls = new ArrayList<Object>();
-		for (int i = 0; i < size; ++i) {
-			ls.add(value);
-		}
-		return ls;
+		int size = executeInt(expr.getSize(),frame);
+		charge(Math.max(size, 0));
+		return CopyOnWrite.newArray(value, size, elementKind(expr));
 	}
 
 	private Object execute(Expr.ArrayInitialiser expr,
-			HashMap<String, Object> frame) {
+			Object[] frame) {
 		List<Expr> es = expr.getArguments();
-		ArrayList<Object> ls = new ArrayList<Object>();
-		for (int i = 0; i != es.size(); ++i) {
-			ls.add(execute(es.get(i), frame));
+		charge(es.size());
+		Object[] values = new Object[es.size()];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = execute(es.get(i), frame);
+		}
+		return CopyOnWrite.newArray(values, elementKind(expr));
+	}
+
+	/**
+	 * Determine the kind of elements held in the array constructed by a given
+	 * expression, from its static type. This determines whether a dense
+	 * representation can be used for the array.
+	 *
+	 * @param expr
+	 * @return <code>Integer.class</code>, <code>Boolean.class</code> or
+	 *         <code>null</code> for compound elements.
+	 */
+	private Class<?> elementKind(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		Type type = attr == null ? null : expand(attr.type);
+		if(type instanceof Type.Array) {
+			Type element = expand(((Type.Array) type).getElement());
+			if(element instanceof Type.Int) {
+				return Integer.class;
+			} else if(element instanceof Type.Bool) {
+				return Boolean.class;
+			}
 		}
-		return ls;
+		return null;
 	}
 
 	@SuppressWarnings("unchecked")
-	private Object execute(Expr.RecordAccess expr, HashMap<String, Object> frame) {
-		HashMap<String, Object> src = (HashMap<String, Object>) execute(expr.getSource(), frame);
-		return src.get(expr.getName());
+	private Object execute(Expr.RecordAccess expr, Object[] frame) {
+		Map<String, Object> src = (Map<String, Object>) execute(expr.getSource(), frame);
+		return getField(expr, src);
 	}
 
-	private Object execute(Expr.RecordConstructor expr, HashMap<String,Object> frame) {
-		List<Pair<String,Expr>> es = expr.getFields();
-		HashMap<String,Object> rs = new HashMap<String,Object>();
+	/**
+	 * Read the field accessed by a given expression from a record. Where
+	 * possible, the field is read directly from its index in the record's
+	 * layout.
+	 *
+	 * @param expr
+	 * @param record
+	 * @return
+	 */
+	private Object getField(Expr.RecordAccess expr, Map<String, Object> record) {
+		if(record instanceof CopyOnWrite.Record) {
+			CopyOnWrite.Record r = (CopyOnWrite.Record) record;
+			return r.getAt(fieldIndex(expr, r.getLayout()));
+		}
+		return record.get(expr.getName());
+	}
 
+	/**
+	 * Write the field accessed by a given expression into a (writable) record.
+	 *
+	 * @param expr
+	 * @param record
+	 * @param value
+	 */
+	private void putField(Expr.RecordAccess expr, Map<String, Object> record, Object value) {
+		if(record instanceof CopyOnWrite.Record) {
+			CopyOnWrite.Record r = (CopyOnWrite.Record) record;
+			r.setAt(fieldIndex(expr, r.getLayout()), value);
+		} else {
+			record.put(expr.getName(), value);
+		}
+	}
+
+	/**
+	 * Determine the index of the field accessed by a given expression, for a
+	 * record with the given layout. The index is first determined from the
+	 * static type of the record being accessed and cached on the expression.
+	 * Because of width subtyping, a record may have a different layout at
+	 * runtime, in which case the index is determined again.
+	 *
+	 * @param expr
+	 * @param layout
+	 * @return
+	 */
+	private int fieldIndex(Expr.RecordAccess expr, RecordLayout layout) {
+		RecordLayout.Field field = expr.attribute(RecordLayout.Field.class);
+		if(field == null) {
+			Attribute.Type attr = expr.getSource().attribute(Attribute.Type.class);
+			Type type = attr == null ? null : expand(attr.type);
+			RecordLayout initial = type instanceof Type.Record ? RecordLayout.of((Type.Record) type) : layout;
+			field = new RecordLayout.Field(initial, expr.getName());
+			expr.attributes().add(0, field);
+		}
+		if(field.layout != layout) {
+			field.layout = layout;
+			field.index = layout.indexOf(expr.getName());
+		}
+		return field.index;
+	}
+
+	private Object execute(Expr.RecordConstructor expr, Object[] frame) {
+		List<Pair<String,Expr>> es = expr.getFields();
+		RecordLayout layout = expr.attribute(RecordLayout.class);
+		if(layout == null) {
+			ArrayList<String> names = new ArrayList<String>();
+			for(Pair<String,Expr> e : es) {
+				names.add(e.first());
+			}
+			layout = RecordLayout.of(names);
+			expr.attributes().add(0, layout);
+		}
+		CopyOnWrite.Record rs = new CopyOnWrite.Record(layout);
 		for(Pair<String,Expr> e : es) {
-			rs.put(e.first(),execute(e.second(),frame));
+			rs.setAt(layout.indexOf(e.first()), CopyOnWrite.share(execute(e.second(),frame)));
 		}
 
 		return rs;
 	}
 
 	@SuppressWarnings("unchecked")
-	private Object execute(Expr.Unary expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Unary expr, Object[] frame) {
 		Object value = execute(expr.getExpr(), frame);
 		switch (expr.getOp()) {
 		case NOT:
@@ -446,7 +1193,7 @@ public class Interpreter {
 		case NEG:
 			return -((Integer) value);
 		case LENGTHOF:
-			return ((ArrayList<Object>) value).size();
+			return ((List<Object>) value).size();
 		}
 
 		internalFailure("unknown unary expression encountered (" + expr + ")",
@@ -454,93 +1201,8 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Expr.Variable expr, HashMap<String,Object> frame) {
-		return frame.get(expr.getName());
-	}
-
-	/**
-	 * Perform a deep clone of the given object value. This is either a
-	 * <code>Boolean</code>, <code>Integer</code>, , <code>Character</code>,
-	 * <code>String</code>, <code>ArrayList</code> (for lists) or
-	 * <code>HaspMap</code> (for records). Only the latter two need to be
-	 * cloned, since the others are immutable.
-	 *
-	 * @param o
-	 * @return
-	 */
-	@SuppressWarnings("unchecked")
-	private Object deepClone(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList<Object>) o;
-			ArrayList<Object> n = new ArrayList<Object>();
-			for (int i = 0; i != l.size(); ++i) {
-				n.add(deepClone(l.get(i)));
-			}
-			return n;
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap<String, Object>) o;
-			HashMap<String, Object> n = new HashMap<String, Object>();
-			for (String field : m.keySet()) {
-				n.put(field, deepClone(m.get(field)));
-			}
-			return n;
-		} else {
-			// other cases can be ignored
-			return o;
-		}
-	}
-
-	/**
-	 * Convert the given object value to a string. This is either a
-	 * <code>Boolean</code>, <code>Integer</code>, <code>Character</code>,
-	 * <code>String</code>, <code>ArrayList</code> (for lists) or
-	 * <code>HaspMap</code> (for records). The latter two must be treated
-	 * recursively.
-	 *
-	 * @param o
-	 * @return
-	 */
-	@SuppressWarnings("unchecked")
-	private String toString(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList<Object>) o;
-			
-			if (l.stream().allMatch((x) -> x instanceof Integer && (Integer) x > 31 && (Integer) x < 127)) {
-				char[] cs = new char[l.size()];
-				for (int i = 0; i < cs.length; ++i) {
-					cs[i] = (char) (int) (Integer) l.get(i);
-				}
-				return String.copyValueOf(cs);
-			}
-			
-			String r = "[";
-			for (int i = 0; i != l.size(); ++i) {
-				if(i != 0) {
-					r = r + ", ";
-				}
-				r += toString(l.get(i));
-			}
-			return r + "]";
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap<String, Object>) o;
-			String r = "{";
-			boolean firstTime = true;
-			ArrayList<String> fields = new ArrayList<String>(m.keySet());
-			Collections.sort(fields);
-			for (String field : fields) {
-				if(!firstTime) {
-					r += ",";
-				}
-				firstTime=false;
-				r += field + ":" + toString(m.get(field));
-			}
-			return r + "}";
-		} else if(o != null) {
-			// other cases can use their default toString methods.
-			return o.toString();
-		} else {
-			return "null";
-		}
+	private Object execute(Expr.Variable expr, Object[] frame) {
+		return frame[FrameLayout.slotOf(expr)];
 	}
 
 	private Object BREAK_CONSTANT = new Object() {};
@@ -0,0 +1,128 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the results of calls to pure functions, keyed on the
+ * function and its argument values. Runtime values implement
+ * <code>equals()</code> and <code>hashCode()</code> structurally, hence two
+ * calls with equal arguments share an entry. When the cache is full, the least
+ * recently used entry is evicted.
+ */
+public final class MemoCache {
+	private final LinkedHashMap<Key, Object> entries;
+	private final int capacity;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Construct a cache holding at most a given number of entries.
+	 *
+	 * @param capacity
+	 */
+	public MemoCache(final int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Look up the result of calling a given function with the given arguments,
+	 * returning <code>null</code> if this is not cached. The argument values
+	 * must not be updated whilst they are held in the cache.
+	 *
+	 * @param function
+	 * @param arguments
+	 * @return
+	 */
+	public Object get(String function, Object[] arguments) {
+		Object result = entries.get(new Key(function, arguments));
+		if (result == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return result;
+	}
+
+	/**
+	 * Record the result of calling a given function with the given arguments.
+	 *
+	 * @param function
+	 * @param arguments
+	 * @param result
+	 */
+	public void put(String function, Object[] arguments, Object result) {
+		entries.put(new Key(function, arguments), result);
+	}
+
+	/**
+	 * Get the maximum number of entries held in this cache.
+	 *
+	 * @return
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public String toString() {
+		return "memoisation: " + hits + " hits, " + misses + " misses, " + entries.size() + " entries";
+	}
+
+	private static final class Key {
+		private final String function;
+		private final Object[] arguments;
+		private final int hashCode;
+
+		public Key(String function, Object[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+			this.hashCode = function.hashCode() * 31 + Arrays.hashCode(arguments);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				return hashCode == k.hashCode && function.equals(k.function) && Arrays.equals(arguments, k.arguments);
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+/**
+ * Receives the output of <code>print</code> statements executed by a While
+ * program. Output may be held back by a sink, and is only guaranteed to have
+ * been written once the sink is flushed. Every execution engine flushes its
+ * sink when the program finishes, whether normally or not (e.g. on an
+ * assertion failure).
+ */
+public interface PrintSink {
+	/**
+	 * Print a given runtime value (see <code>Values</code>), followed by a
+	 * newline.
+	 *
+	 * @param value
+	 */
+	public void println(Object value);
+
+	/**
+	 * Write out any output which has been held back.
+	 */
+	public void flush();
+}
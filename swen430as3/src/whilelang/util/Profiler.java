@@ -0,0 +1,264 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Stmt;
+import whilelang.ast.WhileFile;
+
+/**
+ * <p>
+ * Records how often each statement and method of a While program is executed
+ * by the <code>Interpreter</code>, along with the time spent in each. The
+ * <i>total</i> time of a statement or method includes everything executed on
+ * its behalf, whilst its <i>self</i> time excludes nested statements and
+ * (for statements) any methods invoked. The self time of a method excludes
+ * only the methods it invokes.
+ * </p>
+ * <p>
+ * Results are mapped back to source lines using the <code>Attribute.Source</code>
+ * of each statement or method. They can be printed as a hot-spot report ranked
+ * by self time, or dumped in a tab-separated form for other tools.
+ * </p>
+ */
+public final class Profiler {
+	private final WhileFile file;
+	private final IdentityHashMap<SyntacticElement, Stats> stats = new IdentityHashMap<SyntacticElement, Stats>();
+	private final ArrayList<Entry> stack = new ArrayList<Entry>();
+	private final ArrayList<Entry> methods = new ArrayList<Entry>();
+
+	/**
+	 * The accumulated results for a given statement or method.
+	 */
+	private static final class Stats {
+		private final SyntacticElement element;
+		private long count;
+		private long self;
+		private long total;
+		/**
+		 * The number of activations currently executing. Only the outermost
+		 * activation of a recursive method (or a statement within it) counts
+		 * towards total time, so that time is not counted twice.
+		 */
+		private int active;
+
+		private Stats(SyntacticElement element) {
+			this.element = element;
+		}
+	}
+
+	/**
+	 * A statement or method which is currently being executed.
+	 */
+	private static final class Entry {
+		private final Stats stats;
+		private final long start;
+		private long nested;
+
+		private Entry(Stats stats, long start) {
+			this.stats = stats;
+			this.start = start;
+		}
+	}
+
+	public Profiler(WhileFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * Record that execution of a given statement is starting.
+	 *
+	 * @param stmt
+	 */
+	public void enter(Stmt stmt) {
+		Stats s = stats(stmt);
+		s.active++;
+		stack.add(new Entry(s, System.nanoTime()));
+	}
+
+	/**
+	 * Record that execution of a given method is starting.
+	 *
+	 * @param method
+	 */
+	public void enter(WhileFile.MethodDecl method) {
+		Stats s = stats(method);
+		s.active++;
+		Entry entry = new Entry(s, System.nanoTime());
+		stack.add(entry);
+		methods.add(entry);
+	}
+
+	/**
+	 * Record that execution of the most recently entered statement or method
+	 * has finished (either normally or not).
+	 */
+	public void exit() {
+		Entry entry = stack.remove(stack.size() - 1);
+		long elapsed = System.nanoTime() - entry.start;
+		Stats s = entry.stats;
+		s.count++;
+		if (--s.active == 0) {
+			s.total += elapsed;
+		}
+		s.self += elapsed - entry.nested;
+		if (s.element instanceof WhileFile.MethodDecl) {
+			methods.remove(methods.size() - 1);
+			// Only the methods it invokes are excluded from a method's self
+			// time, so it is not charged to the enclosing statement.
+			if (!methods.isEmpty()) {
+				methods.get(methods.size() - 1).nested += elapsed;
+			}
+		}
+		if (!stack.isEmpty()) {
+			Entry parent = stack.get(stack.size() - 1);
+			if (!(parent.stats.element instanceof WhileFile.MethodDecl)) {
+				parent.nested += elapsed;
+			}
+		}
+	}
+
+	private Stats stats(SyntacticElement element) {
+		Stats s = stats.get(element);
+		if (s == null) {
+			s = new Stats(element);
+			stats.put(element, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Print the methods and statements which executed, ranked by their self
+	 * time. At most the given number of statements are listed.
+	 *
+	 * @param out
+	 * @param limit
+	 */
+	public void report(PrintStream out, int limit) {
+		Lines lines = new Lines(file.filename);
+		List<Stats> ms = ranked(true);
+		List<Stats> ss = ranked(false);
+		out.println("=== Methods (by self time) ===");
+		out.printf("%-24s %6s %12s %10s %10s%n", "METHOD", "LINE", "CALLS", "SELF ms", "TOTAL ms");
+		for (Stats s : ms) {
+			out.printf("%-24s %6d %12d %10.2f %10.2f%n", ((WhileFile.MethodDecl) s.element).getName(),
+					lines.lineOf(s.element), s.count, s.self / 1e6, s.total / 1e6);
+		}
+		out.println("=== Hot spots (by self time) ===");
+		out.printf("%6s %12s %10s %10s  %s%n", "LINE", "COUNT", "SELF ms", "TOTAL ms", "STATEMENT");
+		for (int i = 0; i < ss.size() && i < limit; ++i) {
+			Stats s = ss.get(i);
+			out.printf("%6d %12d %10.2f %10.2f  %s%n", lines.lineOf(s.element), s.count, s.self / 1e6,
+					s.total / 1e6, lines.textOf(s.element));
+		}
+	}
+
+	/**
+	 * Dump all results in a tab-separated form. Each line gives the kind of
+	 * element (<code>method</code> or <code>stmt</code>), its name or statement
+	 * kind, its source line and character range, the number of executions,
+	 * and the self and total times in nanoseconds.
+	 *
+	 * @param out
+	 */
+	public void dump(PrintStream out) {
+		Lines lines = new Lines(file.filename);
+		out.println("kind\tname\tline\tstart\tend\tcount\tself_ns\ttotal_ns");
+		for (boolean method : new boolean[] { true, false }) {
+			for (Stats s : ranked(method)) {
+				Attribute.Source source = s.element.attribute(Attribute.Source.class);
+				String name = method ? ((WhileFile.MethodDecl) s.element).getName()
+						: s.element.getClass().getSimpleName();
+				out.println((method ? "method" : "stmt") + "\t" + name + "\t" + lines.lineOf(s.element) + "\t"
+						+ (source == null ? -1 : source.start) + "\t" + (source == null ? -1 : source.end) + "\t"
+						+ s.count + "\t" + s.self + "\t" + s.total);
+			}
+		}
+	}
+
+	private List<Stats> ranked(boolean method) {
+		ArrayList<Stats> result = new ArrayList<Stats>();
+		for (Stats s : stats.values()) {
+			if ((s.element instanceof WhileFile.MethodDecl) == method) {
+				result.add(s);
+			}
+		}
+		Collections.sort(result, new Comparator<Stats>() {
+			@Override
+			public int compare(Stats o1, Stats o2) {
+				return Long.compare(o2.self, o1.self);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Maps source positions onto line numbers and text.
+	 */
+	private static final class Lines {
+		private final String text;
+
+		private Lines(String filename) {
+			String t;
+			try {
+				t = new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				t = null;
+			}
+			this.text = t;
+		}
+
+		private int lineOf(SyntacticElement element) {
+			Attribute.Source source = element.attribute(Attribute.Source.class);
+			if (text == null || source == null) {
+				return -1;
+			}
+			int line = 1;
+			for (int i = 0; i < source.start && i < text.length(); ++i) {
+				if (text.charAt(i) == '\n') {
+					line++;
+				}
+			}
+			return line;
+		}
+
+		private String textOf(SyntacticElement element) {
+			Attribute.Source source = element.attribute(Attribute.Source.class);
+			if (text == null || source == null) {
+				return element.getClass().getSimpleName();
+			}
+			// Only the first line of a compound statement is shown
+			int end = Math.min(source.end + 1, text.length());
+			int newline = text.indexOf('\n', source.start);
+			if (newline >= 0 && newline < end) {
+				end = newline;
+			}
+			return text.substring(Math.max(source.start, 0), Math.max(end, source.start)).trim();
+		}
+	}
+}
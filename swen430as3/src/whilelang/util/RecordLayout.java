@@ -0,0 +1,136 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import whilelang.ast.Attribute;
+
+/**
+ * <p>
+ * Describes the fixed layout of a record value, where each field is stored at
+ * a fixed index in an array. Fields are laid out in sorted order of their
+ * names, which is also the order in which records are printed. Layouts are
+ * interned, such that two records have the same set of fields if and only if
+ * they have the same layout object.
+ * </p>
+ * <p>
+ * Because of width subtyping, a record may have more fields at runtime than
+ * its static type suggests. Thus, an index determined from a static type is
+ * only valid for records with the corresponding layout (see
+ * <code>Field</code>). This class has no dependency on any particular
+ * execution engine, so it can be used by any backend.
+ * </p>
+ */
+public final class RecordLayout implements Attribute {
+	private static final HashMap<List<String>, RecordLayout> layouts = new HashMap<List<String>, RecordLayout>();
+
+	/**
+	 * Caches the index of a field for the record layout most recently seen by
+	 * a given field access.
+	 */
+	public static final class Field implements Attribute {
+		public RecordLayout layout;
+		public int index;
+
+		public Field(RecordLayout layout, String name) {
+			this.layout = layout;
+			this.index = layout.indexOf(name);
+		}
+	}
+
+	/**
+	 * The field names of this layout, in sorted order.
+	 */
+	private final String[] fields;
+
+	private RecordLayout(String[] fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * Get the number of fields in this layout.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return fields.length;
+	}
+
+	/**
+	 * Get the name of the field at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public String getField(int index) {
+		return fields[index];
+	}
+
+	/**
+	 * Get the index of the field with a given name, or <code>-1</code> if
+	 * there is no such field.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public int indexOf(Object name) {
+		int index = Arrays.binarySearch(fields, name);
+		return index < 0 ? -1 : index;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(fields);
+	}
+
+	/**
+	 * Get the layout for values of a given record type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static RecordLayout of(whilelang.ast.Type.Record type) {
+		ArrayList<String> names = new ArrayList<String>();
+		for (Pair<whilelang.ast.Type, String> field : type.getFields()) {
+			names.add(field.second());
+		}
+		return of(names);
+	}
+
+	/**
+	 * Get the layout for records with the given field names (in any order).
+	 *
+	 * @param names
+	 * @return
+	 */
+	public static synchronized RecordLayout of(Collection<String> names) {
+		ArrayList<String> sorted = new ArrayList<String>(names);
+		Collections.sort(sorted);
+		RecordLayout layout = layouts.get(sorted);
+		if (layout == null) {
+			layout = new RecordLayout(sorted.toArray(new String[sorted.size()]));
+			layouts.put(sorted, layout);
+		}
+		return layout;
+	}
+}
@@ -0,0 +1,553 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.WhileFile;
+import whilelang.compiler.ClassFileWriter;
+
+/**
+ * <p>
+ * Compiles those methods of a While program which are executed frequently by
+ * the <code>Interpreter</code> into JVM bytecode, using the translation
+ * implemented by <code>ClassFileWriter</code>. The compiled class is loaded
+ * directly from memory, and subsequent calls to the method are then dispatched
+ * to it. Thus, short programs do not pay for compilation, whilst long running
+ * ones are executed mostly as bytecode.
+ * </p>
+ * <p>
+ * A method becomes <i>hot</i> once the number of times it has been invoked,
+ * plus the number of loop iterations (i.e. back-edges) executed within it,
+ * reaches a given threshold. The JVM backend does not support
+ * <code>print</code>, and a compiled method can only invoke other compiled
+ * methods. Therefore, only methods which neither print nor invoke a method
+ * which does can be compiled (see <code>EffectAnalysis</code>). A method is
+ * compiled together with every method it (transitively) invokes.
+ * </p>
+ * <p>
+ * Method compilation does not help a method which is invoked only once, but
+ * runs a long loop (e.g. <code>main</code>). Therefore, a loop which iterates
+ * enough times is itself compiled, and the remainder of its execution is
+ * transferred into compiled code (see <code>transfer()</code>).
+ * </p>
+ * <p>
+ * Values are converted between the representation used by the interpreter
+ * (see <code>CopyOnWrite</code>) and that used by the JVM backend on every
+ * call into compiled code. Since these conversions copy arrays and records,
+ * compiled code pays off most for methods which do significant work.
+ * </p>
+ */
+public final class TieredCompiler {
+	/**
+	 * Returned from <code>invoke()</code> when a call must be executed by the
+	 * interpreter instead.
+	 */
+	public static final Object INTERPRET = new Object();
+
+	/**
+	 * Counts the executions of a given method, and holds its compiled form
+	 * once it has one.
+	 */
+	public static final class Counter {
+		private final WhileFile.MethodDecl method;
+		/**
+		 * The number of invocations plus loop iterations executed by the
+		 * interpreter for this method.
+		 */
+		public int count;
+		private Method compiled;
+		private boolean failed;
+
+		private Counter(WhileFile.MethodDecl method, boolean compilable) {
+			this.method = method;
+			this.failed = !compilable;
+		}
+	}
+
+	/**
+	 * A loop compiled for on-stack replacement, where <code>slots</code>
+	 * identifies the frame slot of each variable passed in, and
+	 * <code>assigned</code> those which the loop may update. The method is
+	 * <code>null</code> if the loop cannot be compiled.
+	 */
+	private static final class CompiledLoop {
+		private Method method;
+		private int[] slots;
+		private boolean[] assigned;
+	}
+
+	private final WhileFile file;
+	private final int threshold;
+	private final Set<String> compilable;
+	private final Map<String, Set<String>> calls;
+	private final IdentityHashMap<WhileFile.MethodDecl, Counter> counters = new IdentityHashMap<WhileFile.MethodDecl, Counter>();
+	private final IdentityHashMap<Stmt, CompiledLoop> loops = new IdentityHashMap<Stmt, CompiledLoop>();
+	private final Loader loader = new Loader();
+	private int classes;
+	private int compiled;
+	private int compiledLoops;
+	private int failures;
+	private int transfers;
+
+	/**
+	 * Construct a tiered compiler for a given file, which compiles a method
+	 * once its count reaches a given threshold.
+	 *
+	 * @param file
+	 * @param threshold
+	 */
+	public TieredCompiler(WhileFile file, int threshold) {
+		this.file = file;
+		this.threshold = threshold;
+		EffectAnalysis effects = new EffectAnalysis();
+		this.compilable = effects.pureFunctions(file);
+		this.calls = effects.callGraph();
+	}
+
+	/**
+	 * Get the counter for a given method.
+	 *
+	 * @param method
+	 * @return
+	 */
+	public Counter counter(WhileFile.MethodDecl method) {
+		Counter c = counters.get(method);
+		if (c == null) {
+			c = new Counter(method, compilable.contains(method.getName()));
+			counters.put(method, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Record an invocation of the method with a given counter and, if the
+	 * method is (or has just become) compiled, execute it as bytecode. If
+	 * this is not possible, <code>INTERPRET</code> is returned and the caller
+	 * must interpret the method as normal.
+	 *
+	 * @param counter
+	 * @param arguments
+	 *            The argument values, as represented by the interpreter.
+	 * @return The value returned, as represented by the interpreter.
+	 */
+	public Object invoke(Counter counter, Object[] arguments) {
+		if (counter.compiled == null) {
+			if (counter.failed || ++counter.count < threshold) {
+				return INTERPRET;
+			}
+			compile(counter);
+			if (counter.compiled == null) {
+				return INTERPRET;
+			}
+		}
+		Object[] values = new Object[arguments.length];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = toJvm(arguments[i]);
+			if (values[i] == INTERPRET) {
+				return INTERPRET;
+			}
+		}
+		return CopyOnWrite.constant(call(counter.compiled, values));
+	}
+
+	/**
+	 * Transfer execution of a given loop into compiled code, after it has
+	 * iterated a number of times in the interpreter. The loop is compiled on
+	 * the first attempt, and then executed from the check of its condition
+	 * until it exits. The value of each variable declared outside the loop and
+	 * used within it is passed across, and the frame is updated with their
+	 * final values. A loop can only be compiled if it neither prints nor
+	 * returns, and invokes only methods which can themselves be compiled.
+	 *
+	 * @param loop
+	 *            Either a <code>while</code> or <code>for</code> loop.
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return <code>true</code> if the loop has now completed, or
+	 *         <code>false</code> if the interpreter must continue executing
+	 *         it.
+	 */
+	public boolean transfer(Stmt loop, Object[] frame) {
+		CompiledLoop l = loops.get(loop);
+		if (l == null) {
+			l = compile(loop);
+			loops.put(loop, l);
+		}
+		if (l.method == null) {
+			return false;
+		}
+		Object[] values = new Object[l.slots.length];
+		for (int i = 0; i != values.length; ++i) {
+			Object v = frame[l.slots[i]];
+			// A variable may not have been assigned yet
+			values[i] = v == null ? INTERPRET : toJvm(v);
+			if (values[i] == INTERPRET) {
+				return false;
+			}
+		}
+		call(l.method, (Object) values);
+		for (int i = 0; i != values.length; ++i) {
+			// Variables which were not assigned still hold their original
+			// values, so need not be converted back.
+			if (l.assigned[i]) {
+				frame[l.slots[i]] = CopyOnWrite.constant(values[i]);
+			}
+		}
+		transfers++;
+		return true;
+	}
+
+	/**
+	 * Invoke a compiled method, propagating any exception it throws.
+	 *
+	 * @param method
+	 * @param arguments
+	 * @return
+	 */
+	private static Object call(Method method, Object... arguments) {
+		try {
+			return method.invoke(null, arguments);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the number of methods which have been compiled.
+	 *
+	 * @return
+	 */
+	public int getCompiled() {
+		return compiled;
+	}
+
+	/**
+	 * Get the number of times execution of a loop was transferred into
+	 * compiled code.
+	 *
+	 * @return
+	 */
+	public int getTransfers() {
+		return transfers;
+	}
+
+	@Override
+	public String toString() {
+		return "tiered: " + compiled + " methods and " + compiledLoops + " loops compiled in " + classes
+				+ " classes, " + failures + " failed, " + transfers + " loop transfers";
+	}
+
+	/**
+	 * Compile the method with a given counter, along with all methods it
+	 * invokes. If this fails for any reason, the method is never compiled
+	 * again and remains interpreted.
+	 *
+	 * @param counter
+	 */
+	private void compile(Counter counter) {
+		counter.failed = true;
+		Set<String> names = new HashSet<String>();
+		callees(counter.method.getName(), names);
+		try {
+			Class<?> c = load(names, Collections.<ClassFileWriter.Loop>emptyList());
+			for (Method m : c.getMethods()) {
+				if (m.getName().equals(counter.method.getName())) {
+					counter.compiled = m;
+					counter.failed = false;
+					compiled++;
+				}
+			}
+		} catch (IOException | ClassNotFoundException | RuntimeException | LinkageError e) {
+			// The JVM backend does not support this method, so leave it to
+			// the interpreter.
+			failures++;
+		}
+	}
+
+	/**
+	 * Compile a given loop, along with all methods it invokes. If this is not
+	 * possible, the result has no method and the loop remains interpreted.
+	 *
+	 * @param loop
+	 * @return
+	 */
+	private CompiledLoop compile(Stmt loop) {
+		CompiledLoop l = new CompiledLoop();
+		LoopAnalysis analysis = new LoopAnalysis();
+		if (loop instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) loop;
+			analysis.check(s.getCondition());
+			analysis.check(s.getIncrement());
+			analysis.check(s.getBody());
+		} else {
+			Stmt.While s = (Stmt.While) loop;
+			analysis.check(s.getCondition());
+			analysis.check(s.getBody());
+		}
+		Set<String> names = new HashSet<String>();
+		for (String callee : analysis.invoked) {
+			if (!compilable.contains(callee)) {
+				analysis.compilable = false;
+			} else {
+				callees(callee, names);
+			}
+		}
+		if (!analysis.compilable) {
+			return l;
+		}
+		// Every variable used but not declared in the loop is passed in
+		ArrayList<Pair<whilelang.ast.Type, String>> variables = new ArrayList<Pair<whilelang.ast.Type, String>>();
+		l.slots = new int[analysis.used.size()];
+		l.assigned = new boolean[analysis.used.size()];
+		for (Expr.Variable v : analysis.used.values()) {
+			l.slots[variables.size()] = FrameLayout.slotOf(v);
+			l.assigned[variables.size()] = analysis.assigned.contains(v.getName());
+			variables.add(new Pair<whilelang.ast.Type, String>(v.attribute(Attribute.Type.class).type, v.getName()));
+		}
+		try {
+			Class<?> c = load(names, Collections.singletonList(new ClassFileWriter.Loop("loop", loop, variables)));
+			l.method = c.getMethod("loop", Object[].class);
+			compiledLoops++;
+		} catch (IOException | ReflectiveOperationException | RuntimeException | LinkageError e) {
+			failures++;
+		}
+		return l;
+	}
+
+	/**
+	 * Generate and load a class containing some methods of the file being
+	 * executed, along with some loops.
+	 *
+	 * @param methods
+	 * @param loops
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private Class<?> load(Set<String> methods, List<ClassFileWriter.Loop> loops)
+			throws IOException, ClassNotFoundException {
+		String className = "WhileTier" + (classes++);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new ClassFileWriter(bytes).write(file, className, methods, loops);
+		loader.define(className, bytes.toByteArray());
+		// Initialise the class now, such that it is verified before any call
+		// is dispatched to it.
+		return Class.forName(className, true, loader);
+	}
+
+	/**
+	 * Determine the names of all methods (transitively) invoked by a given
+	 * method, including itself.
+	 *
+	 * @param method
+	 * @param names
+	 */
+	private void callees(String method, Set<String> names) {
+		if (names.add(method)) {
+			for (String callee : calls.get(method)) {
+				callees(callee, names);
+			}
+		}
+	}
+
+	/**
+	 * Convert a value from the representation used by the interpreter into
+	 * that used by the JVM backend (i.e. <code>ArrayList</code> for arrays and
+	 * <code>HashMap</code> for records). Characters have no counterpart in
+	 * the JVM backend, so <code>INTERPRET</code> is returned for any value
+	 * containing one.
+	 *
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object toJvm(Object value) {
+		if (value instanceof Integer || value instanceof Boolean) {
+			return value;
+		} else if (value instanceof List) {
+			List<Object> list = (List<Object>) value;
+			ArrayList<Object> r = new ArrayList<Object>(list.size());
+			for (int i = 0; i != list.size(); ++i) {
+				Object v = toJvm(list.get(i));
+				if (v == INTERPRET) {
+					return INTERPRET;
+				}
+				r.add(v);
+			}
+			return r;
+		} else if (value instanceof Map) {
+			HashMap<String, Object> r = new HashMap<String, Object>();
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+				Object v = toJvm(e.getValue());
+				if (v == INTERPRET) {
+					return INTERPRET;
+				}
+				r.put(e.getKey(), v);
+			}
+			return r;
+		} else {
+			return INTERPRET;
+		}
+	}
+
+	/**
+	 * Determines whether a loop can be compiled, which methods it invokes and
+	 * which variables declared outside it are used within it.
+	 */
+	private static final class LoopAnalysis {
+		private boolean compilable = true;
+		private final Set<String> invoked = new HashSet<String>();
+		private final Set<String> declared = new HashSet<String>();
+		private final Set<String> assigned = new HashSet<String>();
+		private final LinkedHashMap<String, Expr.Variable> used = new LinkedHashMap<String, Expr.Variable>();
+
+		private void check(List<Stmt> statements) {
+			for (Stmt s : statements) {
+				check(s);
+			}
+		}
+
+		private void check(Stmt stmt) {
+			if (stmt instanceof Stmt.Assert) {
+				check(((Stmt.Assert) stmt).getExpr());
+			} else if (stmt instanceof Stmt.Print || stmt instanceof Stmt.Return) {
+				// Neither of these is supported by a compiled loop
+				compilable = false;
+			} else if (stmt instanceof Stmt.Assign) {
+				Stmt.Assign s = (Stmt.Assign) stmt;
+				Expr lhs = s.getLhs();
+				while (!(lhs instanceof Expr.Variable)) {
+					// An update to part of a compound value updates the
+					// variable holding it
+					lhs = lhs instanceof Expr.IndexOf ? ((Expr.IndexOf) lhs).getSource()
+							: ((Expr.RecordAccess) lhs).getSource();
+				}
+				assigned.add(((Expr.Variable) lhs).getName());
+				check(s.getLhs());
+				check(s.getRhs());
+			} else if (stmt instanceof Stmt.VariableDeclaration) {
+				Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+				if (used.containsKey(s.getName())) {
+					// A single register cannot hold both variables
+					compilable = false;
+				}
+				declared.add(s.getName());
+				check(s.getExpr());
+			} else if (stmt instanceof Expr.Invoke) {
+				check((Expr) stmt);
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				check(s.getCondition());
+				check(s.getTrueBranch());
+				check(s.getFalseBranch());
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				check(s.getDeclaration());
+				check(s.getCondition());
+				check(s.getIncrement());
+				check(s.getBody());
+			} else if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				check(s.getCondition());
+				check(s.getBody());
+			} else if (stmt instanceof Stmt.Switch) {
+				Stmt.Switch s = (Stmt.Switch) stmt;
+				check(s.getExpr());
+				for (Stmt.Case c : s.getCases()) {
+					check(c.getValue());
+					check(c.getBody());
+				}
+			}
+		}
+
+		private void check(Expr expr) {
+			if (expr instanceof Expr.Variable) {
+				Expr.Variable v = (Expr.Variable) expr;
+				if (!declared.contains(v.getName()) && !used.containsKey(v.getName())) {
+					used.put(v.getName(), v);
+				}
+			} else if (expr instanceof Expr.Binary) {
+				Expr.Binary e = (Expr.Binary) expr;
+				check(e.getLhs());
+				check(e.getRhs());
+			} else if (expr instanceof Expr.Unary) {
+				check(((Expr.Unary) expr).getExpr());
+			} else if (expr instanceof Expr.IndexOf) {
+				Expr.IndexOf e = (Expr.IndexOf) expr;
+				check(e.getSource());
+				check(e.getIndex());
+			} else if (expr instanceof Expr.RecordAccess) {
+				check(((Expr.RecordAccess) expr).getSource());
+			} else if (expr instanceof Expr.ArrayGenerator) {
+				Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+				check(e.getValue());
+				check(e.getSize());
+			} else if (expr instanceof Expr.ArrayInitialiser) {
+				for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+					check(e);
+				}
+			} else if (expr instanceof Expr.RecordConstructor) {
+				for (Pair<String, Expr> e : ((Expr.RecordConstructor) expr).getFields()) {
+					check(e.second());
+				}
+			} else if (expr instanceof Expr.Invoke) {
+				Expr.Invoke e = (Expr.Invoke) expr;
+				invoked.add(e.getName());
+				for (Expr arg : e.getArguments()) {
+					check(arg);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads classes generated in memory.
+	 */
+	private static final class Loader extends ClassLoader {
+		private Loader() {
+			super(TieredCompiler.class.getClassLoader());
+		}
+
+		private Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formats runtime values (see <code>Values</code>) as text, appending
+ * directly to a buffer rather than building intermediate strings. An array of
+ * integers which are all printable ASCII characters is formatted as a string.
+ * The buffer can be drained part way through formatting a value, once it
+ * reaches a given limit (see <code>overflow()</code>). Thus, formatting a value
+ * takes time linear in its size, and needs only a bounded amount of memory
+ * when the buffer is drained.
+ */
+public class ValueFormatter {
+	protected final StringBuilder buffer = new StringBuilder();
+	private final int limit;
+
+	/**
+	 * Construct a formatter whose buffer is never drained.
+	 */
+	public ValueFormatter() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Construct a formatter which calls <code>overflow()</code> whenever the
+	 * buffer holds at least a given number of characters.
+	 *
+	 * @param limit
+	 */
+	public ValueFormatter(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Append the text of a given value to the buffer.
+	 *
+	 * @param o
+	 */
+	@SuppressWarnings("unchecked")
+	public void append(Object o) {
+		if (o instanceof CopyOnWrite.IntArray) {
+			CopyOnWrite.IntArray l = (CopyOnWrite.IntArray) o;
+			if (l.isPrintable()) {
+				for (int i = 0; i != l.size(); ++i) {
+					buffer.append((char) l.getInt(i));
+					check();
+				}
+			} else {
+				append(l);
+			}
+		} else if (o instanceof List) {
+			List<Object> l = (List<Object>) o;
+			if (isPrintable(l)) {
+				for (int i = 0; i != l.size(); ++i) {
+					buffer.append((char) (int) (Integer) l.get(i));
+					check();
+				}
+			} else {
+				append(l);
+			}
+		} else if (o instanceof CopyOnWrite.Record) {
+			CopyOnWrite.Record r = (CopyOnWrite.Record) o;
+			RecordLayout layout = r.getLayout();
+			buffer.append('{');
+			// Fields are laid out in sorted order already
+			for (int i = 0; i != layout.size(); ++i) {
+				if (i != 0) {
+					buffer.append(',');
+				}
+				buffer.append(layout.getField(i)).append(':');
+				append(r.getAt(i));
+			}
+			buffer.append('}');
+		} else if (o instanceof Map) {
+			Map<String, Object> m = (Map<String, Object>) o;
+			ArrayList<String> fields = new ArrayList<String>(m.keySet());
+			Collections.sort(fields);
+			buffer.append('{');
+			for (int i = 0; i != fields.size(); ++i) {
+				if (i != 0) {
+					buffer.append(',');
+				}
+				buffer.append(fields.get(i)).append(':');
+				append(m.get(fields.get(i)));
+			}
+			buffer.append('}');
+		} else {
+			// other cases can use their default toString methods.
+			buffer.append(o);
+		}
+		check();
+	}
+
+	/**
+	 * Append the elements of a list, separated by commas and enclosed in
+	 * braces.
+	 *
+	 * @param l
+	 */
+	private void append(List<Object> l) {
+		buffer.append('[');
+		for (int i = 0; i != l.size(); ++i) {
+			if (i != 0) {
+				buffer.append(", ");
+			}
+			append(l.get(i));
+		}
+		buffer.append(']');
+	}
+
+	/**
+	 * Check whether every element of a list is an integer representing a
+	 * printable ASCII character. This stops at the first element which is
+	 * not.
+	 *
+	 * @param l
+	 * @return
+	 */
+	private static boolean isPrintable(List<Object> l) {
+		for (int i = 0; i != l.size(); ++i) {
+			Object x = l.get(i);
+			if (!(x instanceof Integer) || (Integer) x < 32 || (Integer) x > 126) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void check() {
+		if (buffer.length() >= limit) {
+			overflow();
+		}
+	}
+
+	/**
+	 * Called whenever the buffer has reached the limit given when this
+	 * formatter was constructed. By default, this does nothing.
+	 */
+	protected void overflow() {
+	}
+
+	@Override
+	public String toString() {
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,85 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Provides the operations on runtime values which are shared by the different
+ * execution engines for While programs. A runtime value is either a
+ * <code>Boolean</code>, <code>Integer</code>, <code>Character</code>,
+ * <code>List</code> (for arrays) or <code>Map</code> (for records). Arrays
+ * are usually an <code>ArrayList</code> and records a <code>HashMap</code>,
+ * but the interpreter may use a dense array representation or fixed record
+ * layouts (see <code>CopyOnWrite</code>).
+ */
+public final class Values {
+
+	private Values() {
+	}
+
+	/**
+	 * Perform a deep clone of the given object value. This is either a
+	 * <code>Boolean</code>, <code>Integer</code>, , <code>Character</code>,
+	 * <code>String</code>, <code>ArrayList</code> (for lists) or
+	 * <code>HaspMap</code> (for records). Only the latter two need to be
+	 * cloned, since the others are immutable.
+	 *
+	 * @param o
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object deepClone(Object o) {
+		if (o instanceof ArrayList) {
+			ArrayList<Object> l = (ArrayList<Object>) o;
+			ArrayList<Object> n = new ArrayList<Object>();
+			for (int i = 0; i != l.size(); ++i) {
+				n.add(deepClone(l.get(i)));
+			}
+			return n;
+		} else if (o instanceof HashMap) {
+			HashMap<String, Object> m = (HashMap<String, Object>) o;
+			HashMap<String, Object> n = new HashMap<String, Object>();
+			for (String field : m.keySet()) {
+				n.put(field, deepClone(m.get(field)));
+			}
+			return n;
+		} else {
+			// other cases can be ignored
+			return o;
+		}
+	}
+
+	/**
+	 * Convert the given object value to a string. This is either a
+	 * <code>Boolean</code>, <code>Integer</code>, <code>Character</code>,
+	 * <code>String</code>, <code>ArrayList</code> (for lists) or
+	 * <code>HaspMap</code> (for records). The latter two must be treated
+	 * recursively (see <code>ValueFormatter</code>).
+	 *
+	 * @param o
+	 * @return
+	 */
+	public static String toString(Object o) {
+		ValueFormatter formatter = new ValueFormatter();
+		formatter.append(o);
+		return formatter.toString();
+	}
+}
@@ -0,0 +1,300 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import static whilelang.util.Bytecode.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Executes While programs which have been lowered into the register-based
+ * instruction set described by <code>Bytecode</code>. Each function runs in a
+ * single dispatch loop over its code array, with one <code>Object[]</code>
+ * holding its registers. Runtime values are shared with the other execution
+ * engines (see <code>Values</code>), hence the observable behaviour is
+ * identical to that of the <code>Interpreter</code>.
+ */
+public class VirtualMachine {
+	private Object[] constants;
+	private Bytecode.Function[] functions;
+
+	/**
+	 * Receives the output of print statements.
+	 */
+	private PrintSink sink = new BufferedPrintSink();
+
+	/**
+	 * Send the output of print statements to a given sink, rather than the
+	 * standard output. The sink is flushed when the program finishes.
+	 *
+	 * @param sink
+	 */
+	public void setPrintSink(PrintSink sink) {
+		this.sink = sink;
+	}
+
+	public void run(Bytecode.Program program) {
+		this.constants = program.constants;
+		this.functions = program.functions;
+		Bytecode.Function main = program.get("main");
+		if (main != null) {
+			try {
+				execute(main, new Object[main.registers]);
+			} finally {
+				sink.flush();
+			}
+		} else {
+			System.out.println("Cannot find a main() function");
+		}
+	}
+
+	/**
+	 * Execute a given function in a given register frame, where the arguments
+	 * have already been placed into the first registers.
+	 *
+	 * @param function
+	 * @param regs
+	 * @return The value returned, or <code>null</code> if none.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object execute(Bytecode.Function function, Object[] regs) {
+		int[] code = function.code;
+		int pc = 0;
+		while (true) {
+			switch (code[pc]) {
+			case CONST:
+				regs[code[pc + 1]] = constants[code[pc + 2]];
+				pc += 3;
+				break;
+			case STRING: {
+				String s = (String) constants[code[pc + 2]];
+				ArrayList<Integer> list = new ArrayList<Integer>(s.length());
+				for (int i = 0; i != s.length(); ++i) {
+					list.add((int) s.charAt(i));
+				}
+				regs[code[pc + 1]] = list;
+				pc += 3;
+				break;
+			}
+			case MOVE:
+				regs[code[pc + 1]] = regs[code[pc + 2]];
+				pc += 3;
+				break;
+			case COPY:
+				regs[code[pc + 1]] = Values.deepClone(regs[code[pc + 2]]);
+				pc += 3;
+				break;
+			case ADD:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] + (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case SUB:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] - (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case MUL:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] * (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case DIV:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] / (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case REM:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] % (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case ADDI:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] + code[pc + 3];
+				pc += 4;
+				break;
+			case NEG:
+				regs[code[pc + 1]] = -(Integer) regs[code[pc + 2]];
+				pc += 3;
+				break;
+			case NOT:
+				regs[code[pc + 1]] = !(Boolean) regs[code[pc + 2]];
+				pc += 3;
+				break;
+			case EQ:
+				regs[code[pc + 1]] = regs[code[pc + 2]].equals(regs[code[pc + 3]]);
+				pc += 4;
+				break;
+			case NE:
+				regs[code[pc + 1]] = !regs[code[pc + 2]].equals(regs[code[pc + 3]]);
+				pc += 4;
+				break;
+			case LT:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] < (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case LE:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] <= (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case GT:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] > (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case GE:
+				regs[code[pc + 1]] = (Integer) regs[code[pc + 2]] >= (Integer) regs[code[pc + 3]];
+				pc += 4;
+				break;
+			case LENGTH:
+				regs[code[pc + 1]] = ((ArrayList<Object>) regs[code[pc + 2]]).size();
+				pc += 3;
+				break;
+			case NEWARRAY: {
+				int first = code[pc + 2];
+				int n = code[pc + 3];
+				ArrayList<Object> ls = new ArrayList<Object>(n);
+				for (int i = 0; i != n; ++i) {
+					ls.add(regs[first + i]);
+				}
+				regs[code[pc + 1]] = ls;
+				pc += 4;
+				break;
+			}
+			case GENARRAY: {
+				Object v = regs[code[pc + 2]];
+				int n = (Integer) regs[code[pc + 3]];
+				ArrayList<Object> ls = new ArrayList<Object>(Math.max(n, 0));
+				for (int i = 0; i < n; ++i) {
+					ls.add(v);
+				}
+				regs[code[pc + 1]] = ls;
+				pc += 4;
+				break;
+			}
+			case LOAD:
+				regs[code[pc + 1]] = ((ArrayList<Object>) regs[code[pc + 2]]).get((Integer) regs[code[pc + 3]]);
+				pc += 4;
+				break;
+			case STORE:
+				((ArrayList<Object>) regs[code[pc + 1]]).set((Integer) regs[code[pc + 2]],
+						Values.deepClone(regs[code[pc + 3]]));
+				pc += 4;
+				break;
+			case NEWRECORD: {
+				String[] names = (String[]) constants[code[pc + 2]];
+				int first = code[pc + 3];
+				HashMap<String, Object> rs = new HashMap<String, Object>();
+				for (int i = 0; i != names.length; ++i) {
+					rs.put(names[i], regs[first + i]);
+				}
+				regs[code[pc + 1]] = rs;
+				pc += 4;
+				break;
+			}
+			case GETFIELD:
+				regs[code[pc + 1]] = ((HashMap<String, Object>) regs[code[pc + 2]]).get(constants[code[pc + 3]]);
+				pc += 4;
+				break;
+			case PUTFIELD:
+				((HashMap<String, Object>) regs[code[pc + 1]]).put((String) constants[code[pc + 2]],
+						Values.deepClone(regs[code[pc + 3]]));
+				pc += 4;
+				break;
+			case JUMP:
+				pc = code[pc + 1];
+				break;
+			case IFTRUE:
+				pc = (Boolean) regs[code[pc + 1]] ? code[pc + 2] : pc + 3;
+				break;
+			case IFFALSE:
+				pc = (Boolean) regs[code[pc + 1]] ? pc + 3 : code[pc + 2];
+				break;
+			case IFEQ:
+				pc = regs[code[pc + 1]].equals(regs[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+				break;
+			case IFNE:
+				pc = regs[code[pc + 1]].equals(regs[code[pc + 2]]) ? pc + 4 : code[pc + 3];
+				break;
+			case IFLT:
+				pc = (Integer) regs[code[pc + 1]] < (Integer) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+				break;
+			case IFLE:
+				pc = (Integer) regs[code[pc + 1]] <= (Integer) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+				break;
+			case IFGT:
+				pc = (Integer) regs[code[pc + 1]] > (Integer) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+				break;
+			case IFGE:
+				pc = (Integer) regs[code[pc + 1]] >= (Integer) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+				break;
+			case IFLTLEN:
+				pc = (Integer) regs[code[pc + 1]] < ((ArrayList<Object>) regs[code[pc + 2]]).size() ? code[pc + 3]
+						: pc + 4;
+				break;
+			case IFGELEN:
+				pc = (Integer) regs[code[pc + 1]] >= ((ArrayList<Object>) regs[code[pc + 2]]).size() ? code[pc + 3]
+						: pc + 4;
+				break;
+			case CALL: {
+				Bytecode.Function callee = functions[code[pc + 2]];
+				int first = code[pc + 3];
+				int n = code[pc + 4];
+				Object[] frame = new Object[callee.registers];
+				for (int i = 0; i != n; ++i) {
+					// We need to perform a deep clone here to ensure the value
+					// semantics used in While are preserved.
+					frame[i] = Values.deepClone(regs[first + i]);
+				}
+				Object result = execute(callee, frame);
+				if (code[pc + 1] >= 0) {
+					regs[code[pc + 1]] = result;
+				}
+				pc += 5;
+				break;
+			}
+			case TAILCALL: {
+				Bytecode.Function callee = functions[code[pc + 1]];
+				int first = code[pc + 2];
+				int n = code[pc + 3];
+				Object[] frame = new Object[callee.registers];
+				for (int i = 0; i != n; ++i) {
+					frame[i] = Values.deepClone(regs[first + i]);
+				}
+				// Continue with the callee in place of the current function
+				function = callee;
+				code = callee.code;
+				regs = frame;
+				pc = 0;
+				break;
+			}
+			case RETURN:
+				return regs[code[pc + 1]];
+			case RETURNVOID:
+				return null;
+			case PRINT:
+				sink.println(regs[code[pc + 1]]);
+				pc += 2;
+				break;
+			case ASSERT:
+				if (!(Boolean) regs[code[pc + 1]]) {
+					throw new RuntimeException("assertion failure");
+				}
+				pc += 2;
+				break;
+			default:
+				throw new RuntimeException("unknown opcode encountered (" + code[pc] + ") in function \""
+						+ function.name + "\"");
+			}
+		}
+	}
+}
@@ -45,6 +45,7 @@ public class Main {
 	 */
 	public static void main(String[] args) throws Exception {
 		boolean verbose = false;
+		boolean optimise = false;
 		Target target = Target.INTERPRETER;
 		int fileArgsBegin = 0;
 
@@ -63,6 +64,8 @@ public class Main {
 				    target = Target.JVM;
 				} else if(arg.equals("-x86")) {
 				    target = Target.X86;
+				} else if(arg.equals("-optimise")) {
+					optimise = true;
 				} else {
 					throw new RuntimeException("Unknown option: " + args[i]);
 				}
@@ -73,7 +76,7 @@ public class Main {
 
 		for (int i = fileArgsBegin; i != args.length; ++i) {
 			String filename = args[i];
-			if(!compileAndExecute(filename,verbose,target)) {
+			if(!compileAndExecute(filename,verbose,optimise,target)) {
 				System.exit(-1);
 			}
 		}
@@ -86,12 +89,14 @@ public class Main {
 	 * @param filename Filename of while source file to be compiled.
 	 * @param verbose  Flag indicating whether or not to print out detailed
 	 *                 information when an error occurs.
+	 * @param optimise Flag indicating whether or not the program should be
+	 *                 optimised before it is executed.
 	 * @param target   The target environment to generate code for.
 	 * @return
 	 */
-    public static boolean compileAndExecute(String filename, boolean verbose, Target target) {
+    public static boolean compileAndExecute(String filename, boolean verbose, boolean optimise, Target target) {
 		try {
-			WhileCompiler compiler = new WhileCompiler(filename);
+			WhileCompiler compiler = new WhileCompiler(filename, optimise);
 
 			// First, compile the source file
 			WhileFile ast = compiler.compile();
@@ -135,7 +140,8 @@ public class Main {
 	public static void usage() {
 		String[][] info = {
 				{ "version", "Print version information" },
-				{ "verbose", "Print detailed information on what the compiler is doing" }
+				{ "verbose", "Print detailed information on what the compiler is doing" },
+				{ "optimise", "Optimise programs before executing them" }
 				};
 
 		System.out.println("usage: wlc <options> <source-files>");
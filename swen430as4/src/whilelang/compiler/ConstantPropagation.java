@@ -0,0 +1,472 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+
+/**
+ * <p>
+ * Responsible for folding operations whose operands are constants, and for
+ * propagating the values of local variables known to hold constants into the
+ * expressions which use them. For example, in the following:
+ * </p>
+ *
+ * <pre>
+ * int n = 10;
+ * int m = n * 2 + 1;
+ * if(m > n) { ... } else { ... }
+ * </pre>
+ *
+ * <p>
+ * the initialiser of <code>m</code> becomes <code>21</code>, and the
+ * <code>if</code> statement is replaced by its true branch. Likewise, a
+ * <code>while</code> loop whose condition is <code>false</code> is removed.
+ * Only <code>int</code> and <code>bool</code> values are propagated, since
+ * substituting a compound value would construct it afresh at each use.
+ * </p>
+ *
+ * <p>
+ * The environment of known constants is threaded through the statements of a
+ * method in order. At the head of a loop, every variable assigned within it is
+ * forgotten (since its value may differ between iterations), and at a join
+ * point only those constants known on both incoming paths are retained.
+ * Operations which would fail at runtime (e.g. division by zero) are never
+ * folded, so that the failure is preserved.
+ * </p>
+ */
+public class ConstantPropagation extends Transformer {
+	/**
+	 * Maps local variables to the constants they are known to hold, or is
+	 * <code>null</code> if the current statement is unreachable.
+	 */
+	private Map<String, Object> constants;
+
+	/**
+	 * The number of expressions replaced by constants.
+	 */
+	private int folded;
+
+	/**
+	 * Get the number of expressions which were replaced by constants.
+	 *
+	 * @return
+	 */
+	public int getFolded() {
+		return folded;
+	}
+
+	@Override
+	public WhileFile.MethodDecl transform(WhileFile.MethodDecl method) {
+		constants = new HashMap<String, Object>();
+		return super.transform(method);
+	}
+
+	@Override
+	public void transform(Stmt stmt, List<Stmt> output) {
+		if (constants == null) {
+			// Statement is unreachable, hence nothing is known.
+			constants = new HashMap<String, Object>();
+		}
+		if (stmt instanceof Stmt.IfElse) {
+			transform((Stmt.IfElse) stmt, output);
+		} else if (stmt instanceof Stmt.While) {
+			transform((Stmt.While) stmt, output);
+		} else {
+			output.add(transform(stmt));
+		}
+	}
+
+	@Override
+	public Stmt transform(Stmt stmt) {
+		Stmt r = super.transform(stmt);
+		if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) {
+			constants = null;
+		}
+		return r;
+	}
+
+	@Override
+	public Stmt transform(Stmt.Assign stmt) {
+		Stmt.Assign r = (Stmt.Assign) super.transform(stmt);
+		if (r.getLhs() instanceof Expr.Variable) {
+			bind(((Expr.Variable) r.getLhs()).getName(), r.getRhs());
+		}
+		return r;
+	}
+
+	@Override
+	public Stmt transform(Stmt.VariableDeclaration stmt) {
+		Stmt.VariableDeclaration r = (Stmt.VariableDeclaration) super.transform(stmt);
+		bind(r.getName(), r.getExpr());
+		return r;
+	}
+
+	/**
+	 * Transform an if-else statement. If its condition is constant then it is
+	 * replaced by the branch taken. In this case, the branch is inlined into
+	 * the enclosing block, unless it declares variables of its own (whose
+	 * scope would then change).
+	 *
+	 * @param stmt
+	 * @param output
+	 */
+	private void transform(Stmt.IfElse stmt, List<Stmt> output) {
+		Expr condition = transform(stmt.getCondition());
+		Object c = constant(condition);
+		if (c != null) {
+			List<Stmt> branch = transform(c == Boolean.TRUE ? stmt.getTrueBranch() : stmt.getFalseBranch());
+			if (declaresVariables(branch)) {
+				// The branch taken keeps its position, so it still runs
+				List<Stmt> empty = Collections.<Stmt>emptyList();
+				output.add(c == Boolean.TRUE ? new Stmt.IfElse(condition, branch, empty, attributes(stmt))
+						: new Stmt.IfElse(condition, empty, branch, attributes(stmt)));
+			} else {
+				output.addAll(branch);
+			}
+			return;
+		}
+		Map<String, Object> entry = constants;
+		constants = new HashMap<String, Object>(entry);
+		List<Stmt> trueBranch = transform(stmt.getTrueBranch());
+		Map<String, Object> afterTrue = constants;
+		constants = new HashMap<String, Object>(entry);
+		List<Stmt> falseBranch = transform(stmt.getFalseBranch());
+		constants = join(afterTrue, constants);
+		if (condition == stmt.getCondition() && trueBranch == stmt.getTrueBranch()
+				&& falseBranch == stmt.getFalseBranch()) {
+			output.add(stmt);
+		} else {
+			output.add(new Stmt.IfElse(condition, trueBranch, falseBranch, attributes(stmt)));
+		}
+	}
+
+	/**
+	 * Transform a while loop. If its condition is false on entry, the loop is
+	 * removed altogether.
+	 *
+	 * @param stmt
+	 * @param output
+	 */
+	private void transform(Stmt.While stmt, List<Stmt> output) {
+		forgetAssigned(stmt.getBody());
+		Map<String, Object> head = new HashMap<String, Object>(constants);
+		Expr condition = transform(stmt.getCondition());
+		if (constant(condition) == Boolean.FALSE) {
+			return;
+		}
+		List<Stmt> body = transform(stmt.getBody());
+		constants = head;
+		if (condition == stmt.getCondition() && body == stmt.getBody()) {
+			output.add(stmt);
+		} else {
+			output.add(new Stmt.While(condition, body, attributes(stmt)));
+		}
+	}
+
+	@Override
+	public Stmt transform(Stmt.For stmt) {
+		Stmt.VariableDeclaration declaration = stmt.getDeclaration();
+		if (declaration != null) {
+			declaration = (Stmt.VariableDeclaration) transform(declaration);
+		}
+		forgetAssigned(stmt.getBody());
+		if (stmt.getIncrement() != null) {
+			forgetAssigned(stmt.getIncrement());
+		}
+		Map<String, Object> head = new HashMap<String, Object>(constants);
+		Expr condition = stmt.getCondition();
+		if (condition != null) {
+			condition = transform(condition);
+		}
+		List<Stmt> body = transform(stmt.getBody());
+		Stmt increment = stmt.getIncrement();
+		if (increment != null) {
+			// The increment is reached from the end of the body or via a
+			// continue, hence only those constants known at the loop head are
+			// certain.
+			constants = new HashMap<String, Object>(head);
+			increment = transform(increment);
+		}
+		constants = head;
+		if (declaration == stmt.getDeclaration() && condition == stmt.getCondition()
+				&& increment == stmt.getIncrement() && body == stmt.getBody()) {
+			return stmt;
+		}
+		return new Stmt.For(declaration, condition, increment, body, attributes(stmt));
+	}
+
+	@Override
+	public Stmt transform(Stmt.Switch stmt) {
+		Expr expr = transform(stmt.getExpr());
+		// Cases may fall through into each other, hence any variable assigned
+		// in one is unknown in all.
+		for (Stmt.Case c : stmt.getCases()) {
+			forgetAssigned(c.getBody());
+		}
+		Map<String, Object> entry = constants;
+		ArrayList<Stmt.Case> cases = new ArrayList<Stmt.Case>();
+		boolean changed = expr != stmt.getExpr();
+		for (Stmt.Case c : stmt.getCases()) {
+			constants = new HashMap<String, Object>(entry);
+			List<Stmt> body = transform(c.getBody());
+			if (body != c.getBody()) {
+				c = new Stmt.Case(c.getValue(), body, attributes(c));
+				changed = true;
+			}
+			cases.add(c);
+		}
+		constants = entry;
+		if (!changed) {
+			return stmt;
+		}
+		return new Stmt.Switch(expr, cases, attributes(stmt));
+	}
+
+	@Override
+	public Expr transform(Expr.Variable expr) {
+		Object value = constants.get(expr.getName());
+		Type type = typeOf(expr);
+		if (value != null && (type instanceof Type.Int || type instanceof Type.Bool)) {
+			folded++;
+			return new Expr.Literal(value, attributes(expr));
+		}
+		return expr;
+	}
+
+	@Override
+	public Expr transform(Expr.Unary expr) {
+		Expr e = transform(expr.getExpr());
+		Object value = constant(e);
+		if (expr.getOp() == Expr.UOp.NOT && value instanceof Boolean) {
+			return literal(!(Boolean) value, expr);
+		} else if (expr.getOp() == Expr.UOp.NEG && value instanceof Integer) {
+			return literal(-(Integer) value, expr);
+		} else if (e == expr.getExpr()) {
+			return expr;
+		}
+		return new Expr.Unary(expr.getOp(), e, attributes(expr));
+	}
+
+	@Override
+	public Expr transform(Expr.Binary expr) {
+		Expr lhs = transform(expr.getLhs());
+		Expr rhs = transform(expr.getRhs());
+		Object l = constant(lhs);
+		Object r = constant(rhs);
+		switch (expr.getOp()) {
+		case AND:
+			// The right-hand side is not evaluated when the left-hand side is
+			// false, hence it can be dropped.
+			if (l != null) {
+				return l == Boolean.TRUE ? rhs : literal(false, expr);
+			} else if (r == Boolean.TRUE) {
+				return lhs;
+			}
+			break;
+		case OR:
+			if (l != null) {
+				return l == Boolean.TRUE ? literal(true, expr) : rhs;
+			} else if (r == Boolean.FALSE) {
+				return lhs;
+			}
+			break;
+		default:
+			if (l != null && r != null) {
+				Object value = evaluate(expr.getOp(), l, r);
+				if (value != null) {
+					return literal(value, expr);
+				}
+			}
+		}
+		if (lhs == expr.getLhs() && rhs == expr.getRhs()) {
+			return expr;
+		}
+		return new Expr.Binary(expr.getOp(), lhs, rhs, attributes(expr));
+	}
+
+	/**
+	 * Evaluate a binary operator over constant operands. If the operation
+	 * cannot be evaluated (e.g. it would divide by zero), then
+	 * <code>null</code> is returned.
+	 *
+	 * @param op
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private static Object evaluate(Expr.BOp op, Object lhs, Object rhs) {
+		if (op == Expr.BOp.EQ) {
+			return lhs.equals(rhs);
+		} else if (op == Expr.BOp.NEQ) {
+			return !lhs.equals(rhs);
+		} else if (!(lhs instanceof Integer) || !(rhs instanceof Integer)) {
+			return null;
+		}
+		int l = (Integer) lhs;
+		int r = (Integer) rhs;
+		switch (op) {
+		case ADD:
+			return l + r;
+		case SUB:
+			return l - r;
+		case MUL:
+			return l * r;
+		case DIV:
+			return r == 0 ? null : (Object) (l / r);
+		case REM:
+			return r == 0 ? null : (Object) (l % r);
+		case LT:
+			return l < r;
+		case LTEQ:
+			return l <= r;
+		case GT:
+			return l > r;
+		case GTEQ:
+			return l >= r;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Construct a literal which replaces a given expression.
+	 *
+	 * @param value
+	 * @param expr
+	 * @return
+	 */
+	private Expr literal(Object value, Expr expr) {
+		folded++;
+		return new Expr.Literal(value, attributes(expr));
+	}
+
+	/**
+	 * Get the value of a given expression if it is a constant which can be
+	 * folded (i.e. an <code>int</code> or <code>bool</code> literal), or
+	 * <code>null</code> otherwise. Character literals are excluded, since
+	 * these are represented differently from integers.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	static Object constant(Expr expr) {
+		if (expr instanceof Expr.Literal) {
+			Object value = ((Expr.Literal) expr).getValue();
+			if (value instanceof Integer || value instanceof Boolean) {
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Record the value assigned to a given variable, if this is a constant.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	private void bind(String name, Expr value) {
+		Object c = value == null ? null : constant(value);
+		if (c != null) {
+			constants.put(name, c);
+		} else {
+			constants.remove(name);
+		}
+	}
+
+	/**
+	 * Forget the value of every variable assigned or declared in a given block
+	 * of statements.
+	 *
+	 * @param block
+	 */
+	private void forgetAssigned(List<Stmt> block) {
+		for (Stmt s : block) {
+			forgetAssigned(s);
+		}
+	}
+
+	private void forgetAssigned(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			Expr.LVal lhs = ((Stmt.Assign) stmt).getLhs();
+			if (lhs instanceof Expr.Variable) {
+				constants.remove(((Expr.Variable) lhs).getName());
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			constants.remove(((Stmt.VariableDeclaration) stmt).getName());
+		} else if (stmt instanceof Stmt.IfElse) {
+			forgetAssigned(((Stmt.IfElse) stmt).getTrueBranch());
+			forgetAssigned(((Stmt.IfElse) stmt).getFalseBranch());
+		} else if (stmt instanceof Stmt.While) {
+			forgetAssigned(((Stmt.While) stmt).getBody());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			if (s.getDeclaration() != null) {
+				forgetAssigned(s.getDeclaration());
+			}
+			if (s.getIncrement() != null) {
+				forgetAssigned(s.getIncrement());
+			}
+			forgetAssigned(s.getBody());
+		} else if (stmt instanceof Stmt.Switch) {
+			for (Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+				forgetAssigned(c.getBody());
+			}
+		}
+	}
+
+	/**
+	 * Determine the constants known on both of two incoming paths. If a path
+	 * is unreachable (i.e. <code>null</code>) then the other is used.
+	 *
+	 * @param c1
+	 * @param c2
+	 * @return
+	 */
+	private static Map<String, Object> join(Map<String, Object> c1, Map<String, Object> c2) {
+		if (c1 == null) {
+			return c2;
+		} else if (c2 == null) {
+			return c1;
+		}
+		HashMap<String, Object> r = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> e : c1.entrySet()) {
+			if (e.getValue().equals(c2.get(e.getKey()))) {
+				r.put(e.getKey(), e.getValue());
+			}
+		}
+		return r;
+	}
+
+	private static boolean declaresVariables(List<Stmt> block) {
+		for (Stmt s : block) {
+			if (s instanceof Stmt.VariableDeclaration) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,436 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.EffectAnalysis;
+import whilelang.util.Pair;
+
+/**
+ * <p>
+ * Responsible for moving computations whose value cannot change between the
+ * iterations of a loop out of that loop. For example, in the following:
+ * </p>
+ *
+ * <pre>
+ * for(int i = 0; i < |xs|; i = i + 1) {
+ *     total = total + xs[i] * (p.x + 1);
+ * }
+ * </pre>
+ *
+ * <p>
+ * both <code>|xs|</code> and <code>p.x + 1</code> are computed once, into
+ * fresh variables declared before the loop, provided neither <code>xs</code>
+ * nor <code>p</code> is assigned within it. An expression is invariant if
+ * every variable it reads is neither assigned nor declared anywhere within the
+ * loop (i.e. it has no definition there). Only <code>int</code> and
+ * <code>bool</code> expressions are moved, since a compound value would be
+ * copied into its variable.
+ * </p>
+ *
+ * <p>
+ * Moving an expression before a loop means it is evaluated even when the loop
+ * (or the branch containing it) is not executed. Hence, an expression within
+ * the body of a loop is only moved if its evaluation cannot fail (e.g. it does
+ * not divide or index an array) and calls no function. An expression within
+ * the condition of a loop is always evaluated on entry to the loop, and so can
+ * be moved regardless, provided nothing evaluated before it could fail (or is
+ * conditional, as on the right of <code>&&</code>). In this case, it may call
+ * a function provided that function is pure (see <code>EffectAnalysis</code>),
+ * since evaluating a pure call once rather than on every iteration cannot be
+ * observed.
+ * </p>
+ *
+ * <p>
+ * Loops are processed innermost first, such that an expression moved out of
+ * an inner loop may then be moved out of the loop enclosing it.
+ * </p>
+ */
+public class LoopInvariantCodeMotion extends Transformer {
+	/**
+	 * The names of those functions which are pure.
+	 */
+	private Set<String> pure;
+
+	/**
+	 * Used to construct names which are unique within the file.
+	 */
+	private int fresh;
+
+	/**
+	 * The names of the variables declared within the method being
+	 * transformed, including those introduced by this pass.
+	 */
+	private Set<String> names;
+
+	/**
+	 * The number of expressions moved out of loops.
+	 */
+	private int hoisted;
+
+	/**
+	 * Get the number of expressions which were moved out of loops.
+	 *
+	 * @return
+	 */
+	public int getHoisted() {
+		return hoisted;
+	}
+
+	@Override
+	public WhileFile transform(WhileFile wf) {
+		pure = new EffectAnalysis().pureFunctions(wf);
+		return super.transform(wf);
+	}
+
+	@Override
+	public WhileFile.MethodDecl transform(WhileFile.MethodDecl method) {
+		names = declaredNames(method);
+		return super.transform(method);
+	}
+
+	@Override
+	public void transform(Stmt stmt, List<Stmt> output) {
+		if (stmt instanceof Stmt.While || stmt instanceof Stmt.For) {
+			// Inner loops are transformed first
+			Stmt loop = transform(stmt);
+			output.add(hoist(loop, output));
+		} else {
+			super.transform(stmt, output);
+		}
+	}
+
+	/**
+	 * Move the invariant expressions of a given loop into variables declared
+	 * before it, which are appended onto a given list.
+	 *
+	 * @param loop
+	 * @param output
+	 * @return The transformed loop.
+	 */
+	private Stmt hoist(Stmt loop, List<Stmt> output) {
+		HashSet<String> definitions = new HashSet<String>();
+		defined(loop, definitions);
+		Motion motion = new Motion(definitions, output);
+		if (loop instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) loop;
+			Expr condition = motion.hoistCondition(s.getCondition());
+			List<Stmt> body = motion.transform(s.getBody());
+			if (condition == s.getCondition() && body == s.getBody()) {
+				return s;
+			}
+			return new Stmt.While(condition, body, attributes(s));
+		} else {
+			Stmt.For s = (Stmt.For) loop;
+			Expr condition = s.getCondition();
+			if (condition != null) {
+				// The declaration is executed before the condition, hence any
+				// failure in it must come first.
+				motion.safe = s.getDeclaration() == null || s.getDeclaration().getExpr() == null
+						|| isSafe(s.getDeclaration().getExpr());
+				condition = motion.hoistCondition(condition);
+			}
+			Stmt increment = s.getIncrement();
+			if (increment != null) {
+				increment = motion.transform(increment);
+			}
+			List<Stmt> body = motion.transform(s.getBody());
+			if (condition == s.getCondition() && increment == s.getIncrement() && body == s.getBody()) {
+				return s;
+			}
+			return new Stmt.For(s.getDeclaration(), condition, increment, body, attributes(s));
+		}
+	}
+
+	/**
+	 * Replaces the invariant expressions of a loop with variables, declaring
+	 * each variable before the loop.
+	 */
+	private class Motion extends Transformer {
+		/**
+		 * The variables defined within the loop.
+		 */
+		private final Set<String> definitions;
+
+		/**
+		 * The declarations of the variables introduced, which precede the
+		 * loop.
+		 */
+		private final List<Stmt> output;
+
+		/**
+		 * The expressions moved so far, and the variable holding each.
+		 */
+		private final ArrayList<Pair<Expr, String>> moved = new ArrayList<Pair<Expr, String>>();
+
+		/**
+		 * Indicates whether nothing evaluated so far in the condition could
+		 * fail.
+		 */
+		private boolean safe = true;
+
+		public Motion(Set<String> definitions, List<Stmt> output) {
+			this.definitions = definitions;
+			this.output = output;
+			this.file = LoopInvariantCodeMotion.this.file;
+		}
+
+		@Override
+		public Expr transform(Expr expr) {
+			if (isCandidate(expr) && isSafe(expr)) {
+				return move(expr);
+			}
+			return super.transform(expr);
+		}
+
+		/**
+		 * Move the invariant expressions out of the condition of the loop,
+		 * visiting its subexpressions in the order they are evaluated.
+		 *
+		 * @param expr
+		 * @return
+		 */
+		public Expr hoistCondition(Expr expr) {
+			if (isCandidate(expr) && (safe || isSafe(expr))) {
+				return move(expr);
+			} else if (expr instanceof Expr.Binary) {
+				Expr.Binary e = (Expr.Binary) expr;
+				Expr lhs = hoistCondition(e.getLhs());
+				Expr rhs;
+				if (e.getOp() == Expr.BOp.AND || e.getOp() == Expr.BOp.OR) {
+					// The right-hand side is evaluated conditionally
+					rhs = transform(e.getRhs());
+					safe &= isSafe(e.getRhs());
+				} else {
+					rhs = hoistCondition(e.getRhs());
+					safe &= isSafe(e);
+				}
+				if (lhs == e.getLhs() && rhs == e.getRhs()) {
+					return e;
+				}
+				return new Expr.Binary(e.getOp(), lhs, rhs, attributes(e));
+			} else if (expr instanceof Expr.Unary) {
+				Expr.Unary e = (Expr.Unary) expr;
+				Expr operand = hoistCondition(e.getExpr());
+				return operand == e.getExpr() ? e : new Expr.Unary(e.getOp(), operand, attributes(e));
+			}
+			Expr r = transform(expr);
+			safe &= isSafe(expr);
+			return r;
+		}
+
+		/**
+		 * Replace a given expression by a variable declared before the loop.
+		 * Where the same expression has already been moved, its variable is
+		 * reused.
+		 *
+		 * @param expr
+		 * @return
+		 */
+		private Expr move(Expr expr) {
+			String name = null;
+			for (Pair<Expr, String> m : moved) {
+				if (equivalent(m.first(), expr)) {
+					name = m.second();
+				}
+			}
+			if (name == null) {
+				do {
+					name = "invariant$" + (++fresh);
+				} while (!names.add(name));
+				output.add(new Stmt.VariableDeclaration(typeOf(expr), name, expr, attributes(expr)));
+				moved.add(new Pair<Expr, String>(expr, name));
+			}
+			hoisted++;
+			return new Expr.Variable(name, attributes(expr));
+		}
+
+		/**
+		 * Determine whether a given expression is worth moving out of the
+		 * loop, and could be. That is, it is an invariant <code>int</code> or
+		 * <code>bool</code> expression which involves some computation.
+		 *
+		 * @param expr
+		 * @return
+		 */
+		private boolean isCandidate(Expr expr) {
+			if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+				return false;
+			}
+			Type type = typeOf(expr);
+			return (type instanceof Type.Int || type instanceof Type.Bool) && isInvariant(expr);
+		}
+
+		private boolean isInvariant(Expr expr) {
+			if (expr instanceof Expr.Literal) {
+				return true;
+			} else if (expr instanceof Expr.Variable) {
+				return !definitions.contains(((Expr.Variable) expr).getName());
+			} else if (expr instanceof Expr.Binary) {
+				Expr.Binary e = (Expr.Binary) expr;
+				return isInvariant(e.getLhs()) && isInvariant(e.getRhs());
+			} else if (expr instanceof Expr.Unary) {
+				return isInvariant(((Expr.Unary) expr).getExpr());
+			} else if (expr instanceof Expr.RecordAccess) {
+				return isInvariant(((Expr.RecordAccess) expr).getSource());
+			} else if (expr instanceof Expr.IndexOf) {
+				Expr.IndexOf e = (Expr.IndexOf) expr;
+				return isInvariant(e.getSource()) && isInvariant(e.getIndex());
+			} else if (expr instanceof Expr.Invoke) {
+				Expr.Invoke e = (Expr.Invoke) expr;
+				if (!pure.contains(e.getName())) {
+					return false;
+				}
+				for (Expr argument : e.getArguments()) {
+					if (!isInvariant(argument)) {
+						return false;
+					}
+				}
+				return true;
+			}
+			// Constructing compound values is not worthwhile
+			return false;
+		}
+	}
+
+	/**
+	 * Determine whether an expression can be evaluated without failing, and
+	 * without calling any function.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean isSafe(Expr expr) {
+		if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+			return true;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			if ((e.getOp() == Expr.BOp.DIV || e.getOp() == Expr.BOp.REM) && !isNonZero(e.getRhs())) {
+				return false;
+			}
+			return isSafe(e.getLhs()) && isSafe(e.getRhs());
+		} else if (expr instanceof Expr.Unary) {
+			return isSafe(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.RecordAccess) {
+			return isSafe(((Expr.RecordAccess) expr).getSource());
+		}
+		return false;
+	}
+
+	private static boolean isNonZero(Expr expr) {
+		Object value = ConstantPropagation.constant(expr);
+		return value instanceof Integer && (Integer) value != 0;
+	}
+
+	/**
+	 * Determine whether two expressions always evaluate to the same value,
+	 * because they are structurally identical.
+	 *
+	 * @param e1
+	 * @param e2
+	 * @return
+	 */
+	private static boolean equivalent(Expr e1, Expr e2) {
+		if (e1 instanceof Expr.Literal && e2 instanceof Expr.Literal) {
+			return ((Expr.Literal) e1).getValue().equals(((Expr.Literal) e2).getValue());
+		} else if (e1 instanceof Expr.Variable && e2 instanceof Expr.Variable) {
+			return ((Expr.Variable) e1).getName().equals(((Expr.Variable) e2).getName());
+		} else if (e1 instanceof Expr.Binary && e2 instanceof Expr.Binary) {
+			Expr.Binary b1 = (Expr.Binary) e1;
+			Expr.Binary b2 = (Expr.Binary) e2;
+			return b1.getOp() == b2.getOp() && equivalent(b1.getLhs(), b2.getLhs())
+					&& equivalent(b1.getRhs(), b2.getRhs());
+		} else if (e1 instanceof Expr.Unary && e2 instanceof Expr.Unary) {
+			Expr.Unary u1 = (Expr.Unary) e1;
+			Expr.Unary u2 = (Expr.Unary) e2;
+			return u1.getOp() == u2.getOp() && equivalent(u1.getExpr(), u2.getExpr());
+		} else if (e1 instanceof Expr.RecordAccess && e2 instanceof Expr.RecordAccess) {
+			Expr.RecordAccess r1 = (Expr.RecordAccess) e1;
+			Expr.RecordAccess r2 = (Expr.RecordAccess) e2;
+			return r1.getName().equals(r2.getName()) && equivalent(r1.getSource(), r2.getSource());
+		} else if (e1 instanceof Expr.IndexOf && e2 instanceof Expr.IndexOf) {
+			Expr.IndexOf i1 = (Expr.IndexOf) e1;
+			Expr.IndexOf i2 = (Expr.IndexOf) e2;
+			return equivalent(i1.getSource(), i2.getSource()) && equivalent(i1.getIndex(), i2.getIndex());
+		} else if (e1 instanceof Expr.Invoke && e2 instanceof Expr.Invoke) {
+			Expr.Invoke c1 = (Expr.Invoke) e1;
+			Expr.Invoke c2 = (Expr.Invoke) e2;
+			if (!c1.getName().equals(c2.getName()) || c1.getArguments().size() != c2.getArguments().size()) {
+				return false;
+			}
+			for (int i = 0; i != c1.getArguments().size(); ++i) {
+				if (!equivalent(c1.getArguments().get(i), c2.getArguments().get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine the variables defined (i.e. declared, or assigned in whole or
+	 * part) within a given statement.
+	 *
+	 * @param stmt
+	 * @param definitions
+	 */
+	private static void defined(Stmt stmt, Set<String> definitions) {
+		if (stmt instanceof Stmt.Assign) {
+			Expr lhs = ((Stmt.Assign) stmt).getLhs();
+			while (!(lhs instanceof Expr.Variable)) {
+				lhs = lhs instanceof Expr.IndexOf ? ((Expr.IndexOf) lhs).getSource()
+						: ((Expr.RecordAccess) lhs).getSource();
+			}
+			definitions.add(((Expr.Variable) lhs).getName());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			definitions.add(((Stmt.VariableDeclaration) stmt).getName());
+		} else if (stmt instanceof Stmt.IfElse) {
+			defined(((Stmt.IfElse) stmt).getTrueBranch(), definitions);
+			defined(((Stmt.IfElse) stmt).getFalseBranch(), definitions);
+		} else if (stmt instanceof Stmt.While) {
+			defined(((Stmt.While) stmt).getBody(), definitions);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			if (s.getDeclaration() != null) {
+				defined(s.getDeclaration(), definitions);
+			}
+			if (s.getIncrement() != null) {
+				defined(s.getIncrement(), definitions);
+			}
+			defined(s.getBody(), definitions);
+		} else if (stmt instanceof Stmt.Switch) {
+			for (Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+				defined(c.getBody(), definitions);
+			}
+		}
+	}
+
+	private static void defined(List<Stmt> block, Set<String> definitions) {
+		for (Stmt stmt : block) {
+			defined(stmt, definitions);
+		}
+	}
+}
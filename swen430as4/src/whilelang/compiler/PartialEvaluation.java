@@ -0,0 +1,413 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.EffectAnalysis;
+import whilelang.util.Interpreter;
+
+/**
+ * <p>
+ * Responsible for propagating constants across function calls. A call to a
+ * pure function (see <code>EffectAnalysis</code>) whose arguments are all
+ * constants is evaluated at compile time, using the interpreter, and replaced
+ * by the <code>int</code> or <code>bool</code> literal it returns. For
+ * example, <code>fib(10)</code> becomes <code>55</code>. A pure call made
+ * only for its effect is removed altogether once it is known to succeed.
+ * </p>
+ *
+ * <p>
+ * Otherwise, a call which passes constants for some <code>int</code> or
+ * <code>bool</code> parameters is redirected to a <i>specialised</i> copy of
+ * its function. This omits those parameters, declaring each instead as a local
+ * variable initialised with its constant, such that constant propagation can
+ * then fold their uses. Calls made within a specialised function are
+ * themselves candidates for evaluation or specialisation, except those back to
+ * the function it was specialised from (which could otherwise be unrolled
+ * without end).
+ * </p>
+ *
+ * <p>
+ * Compile-time evaluation must not change the behaviour of the program, hence
+ * a call is left alone if evaluating it fails (e.g. an assertion does not
+ * hold), or if it exceeds a given number of steps (see
+ * <code>Interpreter.setStepLimit()</code>), which bounds both the time and
+ * the memory it takes. A function one of whose calls exceeds the limit is not
+ * evaluated again. Likewise, the number of specialised functions created is
+ * bounded.
+ * </p>
+ */
+public class PartialEvaluation extends Transformer {
+	/**
+	 * Used to indicate that evaluating a given call failed.
+	 */
+	private static final Object FAILED = new Object();
+
+	/**
+	 * The maximum number of steps which evaluating a single call may take.
+	 */
+	private final long stepLimit;
+
+	/**
+	 * The maximum number of specialised functions which may be created.
+	 */
+	private final int maxSpecialisations;
+
+	/**
+	 * The names of those functions which may be evaluated at compile time.
+	 */
+	private Set<String> pure;
+
+	/**
+	 * The names of those functions which are no longer evaluated at compile
+	 * time, since evaluating one of their calls exceeded the step limit.
+	 */
+	private Set<String> abandoned;
+
+	/**
+	 * Evaluates calls at compile time. This executes a copy of the original
+	 * source file, so that any attributes it attaches to the AST (e.g. frame
+	 * layouts) are not seen by the backends.
+	 */
+	private Interpreter evaluator;
+	private WhileFile sandbox;
+
+	/**
+	 * Caches the result of evaluating each call, or <code>FAILED</code>.
+	 */
+	private HashMap<List<Object>, Object> results;
+
+	/**
+	 * Maps each function declared (including those specialised) to its
+	 * declaration.
+	 */
+	private HashMap<String, WhileFile.MethodDecl> methods;
+
+	/**
+	 * Maps each specialised function to the function it was specialised from.
+	 */
+	private HashMap<String, String> origins;
+
+	/**
+	 * Maps each call signature (i.e. the function called and the constant
+	 * passed for each parameter, or <code>null</code>) to the function
+	 * specialised for it.
+	 */
+	private HashMap<List<Object>, String> specialisations;
+
+	/**
+	 * The specialised functions which have yet to be transformed.
+	 */
+	private ArrayDeque<WhileFile.MethodDecl> worklist;
+
+	/**
+	 * The function from which the method currently being transformed
+	 * originates.
+	 */
+	private String origin;
+
+	/**
+	 * The number of calls replaced by constants, or removed.
+	 */
+	private int evaluated;
+
+	public PartialEvaluation(long stepLimit, int maxSpecialisations) {
+		this.stepLimit = stepLimit;
+		this.maxSpecialisations = maxSpecialisations;
+	}
+
+	/**
+	 * Get the number of calls which were evaluated at compile time.
+	 *
+	 * @return
+	 */
+	public int getEvaluated() {
+		return evaluated;
+	}
+
+	/**
+	 * Get the number of specialised functions which were created.
+	 *
+	 * @return
+	 */
+	public int getSpecialised() {
+		return specialisations.size();
+	}
+
+	@Override
+	public WhileFile transform(WhileFile wf) {
+		this.file = wf;
+		pure = new EffectAnalysis().pureFunctions(wf);
+		abandoned = new HashSet<String>();
+		sandbox = new Transformer(true) {}.transform(wf);
+		evaluator = new Interpreter();
+		evaluator.setStepLimit(stepLimit);
+		results = new HashMap<List<Object>, Object>();
+		methods = new HashMap<String, WhileFile.MethodDecl>();
+		origins = new HashMap<String, String>();
+		specialisations = new HashMap<List<Object>, String>();
+		worklist = new ArrayDeque<WhileFile.MethodDecl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				methods.put(declaration.name(), (WhileFile.MethodDecl) declaration);
+			}
+		}
+		HashMap<String, WhileFile.MethodDecl> transformed = new HashMap<String, WhileFile.MethodDecl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				origin = declaration.name();
+				transformed.put(origin, transform((WhileFile.MethodDecl) declaration));
+			}
+		}
+		// Specialised functions are transformed once created, which may lead
+		// to further specialisations.
+		HashMap<String, List<WhileFile.MethodDecl>> specialised = new HashMap<String, List<WhileFile.MethodDecl>>();
+		while (!worklist.isEmpty()) {
+			WhileFile.MethodDecl method = worklist.poll();
+			origin = origins.get(method.getName());
+			if (!specialised.containsKey(origin)) {
+				specialised.put(origin, new ArrayList<WhileFile.MethodDecl>());
+			}
+			specialised.get(origin).add(transform(method));
+		}
+		// Each specialised function is declared immediately after the function
+		// it originates from, since some backends require a function to be
+		// declared before it is called.
+		ArrayList<WhileFile.Decl> declarations = new ArrayList<WhileFile.Decl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				declarations.add(transformed.get(declaration.name()));
+				if (specialised.containsKey(declaration.name())) {
+					declarations.addAll(specialised.get(declaration.name()));
+				}
+			} else {
+				declarations.add(declaration);
+			}
+		}
+		return new WhileFile(wf.filename, declarations);
+	}
+
+	@Override
+	public void transform(Stmt stmt, List<Stmt> output) {
+		if (stmt instanceof Expr.Invoke) {
+			Expr.Invoke call = (Expr.Invoke) super.transform((Expr.Invoke) stmt);
+			if (evaluate(call) != FAILED) {
+				// Call has no effect, since it is pure and succeeds
+				evaluated++;
+				return;
+			}
+			output.add((Stmt) specialise(call));
+		} else {
+			super.transform(stmt, output);
+		}
+	}
+
+	@Override
+	public Stmt transform(Stmt stmt) {
+		if (stmt instanceof Expr.Invoke) {
+			// The increment of a for loop must remain a statement, hence the
+			// call is not replaced by its result.
+			return (Stmt) specialise((Expr.Invoke) super.transform((Expr.Invoke) stmt));
+		}
+		return super.transform(stmt);
+	}
+
+	@Override
+	public Expr transform(Expr.Invoke expr) {
+		Expr.Invoke call = (Expr.Invoke) super.transform(expr);
+		Object value = evaluate(call);
+		Type type = typeOf(call);
+		if ((value instanceof Integer && type instanceof Type.Int)
+				|| (value instanceof Boolean && type instanceof Type.Bool)) {
+			evaluated++;
+			return new Expr.Literal(value, attributes(call));
+		}
+		return specialise(call);
+	}
+
+	/**
+	 * Evaluate a given call at compile time, provided the function called is
+	 * pure and every argument is a constant. The result (which is
+	 * <code>null</code> for a function which returns nothing) is returned, or
+	 * <code>FAILED</code> if the call could not be evaluated.
+	 *
+	 * @param call
+	 * @return
+	 */
+	private Object evaluate(Expr.Invoke call) {
+		if (!pure.contains(call.getName()) || abandoned.contains(call.getName())) {
+			return FAILED;
+		}
+		List<Expr> arguments = call.getArguments();
+		Object[] values = new Object[arguments.size()];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = ConstantPropagation.constant(arguments.get(i));
+			if (values[i] == null) {
+				return FAILED;
+			}
+		}
+		List<Object> key = signature(call.getName(), values);
+		if (results.containsKey(key)) {
+			return results.get(key);
+		}
+		Object result;
+		try {
+			result = evaluator.invoke(sandbox, call.getName(), values);
+		} catch (Interpreter.StepLimitExceeded e) {
+			// Other calls to this function are likely to be as costly
+			abandoned.add(call.getName());
+			result = FAILED;
+		} catch (RuntimeException e) {
+			// Evaluation failed (e.g. an assertion does not hold)
+			result = FAILED;
+		} catch (StackOverflowError e) {
+			result = FAILED;
+		} catch (OutOfMemoryError e) {
+			abandoned.add(call.getName());
+			result = FAILED;
+		}
+		results.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Redirect a given call to a version of its function specialised for the
+	 * constant arguments it is passed, where possible. Otherwise, the call is
+	 * returned unchanged.
+	 *
+	 * @param call
+	 * @return
+	 */
+	private Expr specialise(Expr.Invoke call) {
+		WhileFile.MethodDecl method = methods.get(call.getName());
+		String source = origins.containsKey(call.getName()) ? origins.get(call.getName()) : call.getName();
+		if (method == null || source.equals(origin)) {
+			return call;
+		}
+		List<WhileFile.Parameter> parameters = method.getParameters();
+		List<Expr> arguments = call.getArguments();
+		Object[] values = new Object[arguments.size()];
+		int found = 0;
+		for (int i = 0; i != values.length; ++i) {
+			Type type = expand(parameters.get(i).getType());
+			if (type instanceof Type.Int || type instanceof Type.Bool) {
+				values[i] = ConstantPropagation.constant(arguments.get(i));
+				found += values[i] == null ? 0 : 1;
+			}
+		}
+		if (found == 0 || (found == values.length && pure.contains(call.getName()))) {
+			// Either there is nothing to specialise for, or the call could
+			// have been evaluated were it not to fail.
+			return call;
+		}
+		List<Object> key = signature(call.getName(), values);
+		String name = specialisations.get(key);
+		if (name == null) {
+			if (specialisations.size() == maxSpecialisations) {
+				return call;
+			}
+			name = freshName(source);
+			specialisations.put(key, name);
+			WhileFile.MethodDecl specialised = specialise(method, name, values);
+			methods.put(name, specialised);
+			origins.put(name, source);
+			worklist.add(specialised);
+		}
+		ArrayList<Expr> remaining = new ArrayList<Expr>();
+		for (int i = 0; i != values.length; ++i) {
+			if (values[i] == null) {
+				remaining.add(arguments.get(i));
+			}
+		}
+		return new Expr.Invoke(name, remaining, attributes(call));
+	}
+
+	/**
+	 * Construct a copy of a given function, specialised for the constants
+	 * given for some of its parameters (the others being <code>null</code>).
+	 * Each such parameter is instead declared at the start of the body, and
+	 * its constant then propagated through the body.
+	 *
+	 * @param method
+	 * @param name
+	 *            The name of the specialised function.
+	 * @param values
+	 * @return
+	 */
+	private WhileFile.MethodDecl specialise(WhileFile.MethodDecl method, String name, Object[] values) {
+		// The body is copied, since nodes cannot be shared between functions
+		// (e.g. their frame layouts differ).
+		WhileFile.MethodDecl copy = new Transformer(true) {}.transform(file, method);
+		ArrayList<WhileFile.Parameter> parameters = new ArrayList<WhileFile.Parameter>();
+		ArrayList<Stmt> body = new ArrayList<Stmt>();
+		for (int i = 0; i != values.length; ++i) {
+			WhileFile.Parameter p = copy.getParameters().get(i);
+			if (values[i] == null) {
+				parameters.add(p);
+			} else {
+				ArrayList<Attribute> attributes = new ArrayList<Attribute>(Arrays.asList(attributes(p)));
+				attributes.add(new Attribute.Type(p.getType()));
+				Expr.Literal value = new Expr.Literal(values[i], attributes);
+				body.add(new Stmt.VariableDeclaration(p.getType(), p.getName(), value, attributes(p)));
+			}
+		}
+		body.addAll(copy.getBody());
+		WhileFile.MethodDecl specialised = new WhileFile.MethodDecl(name, copy.getRet(), parameters, body,
+				attributes(copy));
+		return new ConstantPropagation().transform(file, specialised);
+	}
+
+	/**
+	 * Determine a name for a specialised function which does not clash with
+	 * any other function.
+	 *
+	 * @param source
+	 *            The name of the function being specialised.
+	 * @return
+	 */
+	private String freshName(String source) {
+		Set<String> names = new HashSet<String>();
+		for (WhileFile.Decl declaration : file.declarations) {
+			names.add(declaration.name());
+		}
+		names.addAll(methods.keySet());
+		int index = 1;
+		while (names.contains(source + "_" + index)) {
+			index++;
+		}
+		return source + "_" + index;
+	}
+
+	private static List<Object> signature(String name, Object[] values) {
+		ArrayList<Object> key = new ArrayList<Object>();
+		key.add(name);
+		key.addAll(Arrays.asList(values));
+		return key;
+	}
+}
@@ -0,0 +1,545 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.Pair;
+import whilelang.util.SyntacticElement;
+
+/**
+ * <p>
+ * Provides a base for optimisation passes which rewrite the AST of a source
+ * file. Since AST nodes are immutable, a rewritten node is constructed afresh,
+ * carrying the same attributes (e.g. source location and type) as the node it
+ * replaces. By default every node is rewritten into itself, and a node is only
+ * reconstructed when one of its children has actually changed. Thus, a pass
+ * need only override the methods for those nodes it is interested in.
+ * </p>
+ *
+ * <p>
+ * A statement may be rewritten into zero or more statements, by overriding
+ * <code>transform(Stmt,List)</code>. This does not apply to the declaration
+ * and increment of a <code>for</code> loop, which must each be rewritten into
+ * exactly one statement.
+ * </p>
+ */
+public abstract class Transformer {
+	/**
+	 * The source file being transformed.
+	 */
+	protected WhileFile file;
+
+	/**
+	 * Indicates whether every node should be reconstructed, even when unchanged.
+	 */
+	private final boolean copy;
+
+	public Transformer() {
+		this(false);
+	}
+
+	/**
+	 * Construct a transformer which, if requested, reconstructs every node it
+	 * visits. The result then shares no nodes with the original, and so can be
+	 * modified (e.g. by attaching attributes) independently of it.
+	 *
+	 * @param copy
+	 */
+	protected Transformer(boolean copy) {
+		this.copy = copy;
+	}
+
+	/**
+	 * Transform a given source file.
+	 *
+	 * @param wf
+	 *            The source file to be transformed.
+	 * @return The transformed source file.
+	 */
+	public WhileFile transform(WhileFile wf) {
+		this.file = wf;
+		ArrayList<WhileFile.Decl> declarations = new ArrayList<WhileFile.Decl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				declarations.add(transform((WhileFile.MethodDecl) declaration));
+			} else {
+				declarations.add(declaration);
+			}
+		}
+		return new WhileFile(wf.filename, declarations);
+	}
+
+	/**
+	 * Transform a given method of a source file, independently of any other
+	 * declarations in that file.
+	 *
+	 * @param wf
+	 *            The source file enclosing the method.
+	 * @param method
+	 *            The method to be transformed.
+	 * @return The transformed method.
+	 */
+	public WhileFile.MethodDecl transform(WhileFile wf, WhileFile.MethodDecl method) {
+		this.file = wf;
+		return transform(method);
+	}
+
+	public WhileFile.MethodDecl transform(WhileFile.MethodDecl method) {
+		List<Stmt> body = transform(method.getBody());
+		if (!copy && body == method.getBody()) {
+			return method;
+		}
+		List<WhileFile.Parameter> parameters = method.getParameters();
+		if (copy) {
+			parameters = new ArrayList<WhileFile.Parameter>();
+			for (WhileFile.Parameter p : method.getParameters()) {
+				parameters.add(new WhileFile.Parameter(p.getType(), p.getName(), attributes(p)));
+			}
+		}
+		return new WhileFile.MethodDecl(method.getName(), method.getRet(), parameters, body, attributes(method));
+	}
+
+	/**
+	 * Transform a given block of statements. If no statement is changed, then
+	 * the original block is returned.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public List<Stmt> transform(List<Stmt> block) {
+		ArrayList<Stmt> result = new ArrayList<Stmt>();
+		for (Stmt stmt : block) {
+			transform(stmt, result);
+		}
+		return !copy && sameElements(block, result) ? block : result;
+	}
+
+	/**
+	 * Transform a given statement, appending the zero or more statements which
+	 * replace it onto a given list.
+	 *
+	 * @param stmt
+	 * @param output
+	 */
+	public void transform(Stmt stmt, List<Stmt> output) {
+		output.add(transform(stmt));
+	}
+
+	public Stmt transform(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			return transform((Stmt.Assert) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			return transform((Stmt.Print) stmt);
+		} else if (stmt instanceof Stmt.Assign) {
+			return transform((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.Break) {
+			return copy ? new Stmt.Break(attributes(stmt)) : stmt;
+		} else if (stmt instanceof Stmt.Continue) {
+			return copy ? new Stmt.Continue(attributes(stmt)) : stmt;
+		} else if (stmt instanceof Stmt.Return) {
+			return transform((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return transform((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			return (Stmt) transform((Expr) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			return transform((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			return transform((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			return transform((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			return transform((Stmt.Switch) stmt);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	public Stmt transform(Stmt.Assert stmt) {
+		Expr expr = transform(stmt.getExpr());
+		if (!copy && expr == stmt.getExpr()) {
+			return stmt;
+		}
+		return new Stmt.Assert(expr, attributes(stmt));
+	}
+
+	public Stmt transform(Stmt.Print stmt) {
+		Expr expr = transform(stmt.getExpr());
+		if (!copy && expr == stmt.getExpr()) {
+			return stmt;
+		}
+		return new Stmt.Print(expr, attributes(stmt));
+	}
+
+	public Stmt transform(Stmt.Assign stmt) {
+		Expr.LVal lhs = transformLVal(stmt.getLhs());
+		Expr rhs = transform(stmt.getRhs());
+		if (!copy && lhs == stmt.getLhs() && rhs == stmt.getRhs()) {
+			return stmt;
+		}
+		return new Stmt.Assign(lhs, rhs, attributes(stmt));
+	}
+
+	public Stmt transform(Stmt.Return stmt) {
+		if (stmt.getExpr() == null) {
+			return copy ? new Stmt.Return(null, attributes(stmt)) : stmt;
+		}
+		Expr expr = transform(stmt.getExpr());
+		if (!copy && expr == stmt.getExpr()) {
+			return stmt;
+		}
+		return new Stmt.Return(expr, attributes(stmt));
+	}
+
+	public Stmt transform(Stmt.VariableDeclaration stmt) {
+		if (stmt.getExpr() == null) {
+			return copy ? new Stmt.VariableDeclaration(stmt.getType(), stmt.getName(), null, attributes(stmt)) : stmt;
+		}
+		Expr expr = transform(stmt.getExpr());
+		if (!copy && expr == stmt.getExpr()) {
+			return stmt;
+		}
+		return new Stmt.VariableDeclaration(stmt.getType(), stmt.getName(), expr, attributes(stmt));
+	}
+
+	public Stmt transform(Stmt.IfElse stmt) {
+		Expr condition = transform(stmt.getCondition());
+		List<Stmt> trueBranch = transform(stmt.getTrueBranch());
+		List<Stmt> falseBranch = transform(stmt.getFalseBranch());
+		if (!copy && condition == stmt.getCondition() && trueBranch == stmt.getTrueBranch()
+				&& falseBranch == stmt.getFalseBranch()) {
+			return stmt;
+		}
+		return new Stmt.IfElse(condition, trueBranch, falseBranch, attributes(stmt));
+	}
+
+	public Stmt transform(Stmt.For stmt) {
+		Stmt.VariableDeclaration declaration = stmt.getDeclaration();
+		if (declaration != null) {
+			declaration = (Stmt.VariableDeclaration) transform(declaration);
+		}
+		Expr condition = stmt.getCondition();
+		if (condition != null) {
+			condition = transform(condition);
+		}
+		Stmt increment = stmt.getIncrement();
+		if (increment != null) {
+			increment = transform(increment);
+		}
+		List<Stmt> body = transform(stmt.getBody());
+		if (!copy && declaration == stmt.getDeclaration() && condition == stmt.getCondition()
+				&& increment == stmt.getIncrement() && body == stmt.getBody()) {
+			return stmt;
+		}
+		return new Stmt.For(declaration, condition, increment, body, attributes(stmt));
+	}
+
+	public Stmt transform(Stmt.While stmt) {
+		Expr condition = transform(stmt.getCondition());
+		List<Stmt> body = transform(stmt.getBody());
+		if (!copy && condition == stmt.getCondition() && body == stmt.getBody()) {
+			return stmt;
+		}
+		return new Stmt.While(condition, body, attributes(stmt));
+	}
+
+	public Stmt transform(Stmt.Switch stmt) {
+		Expr expr = transform(stmt.getExpr());
+		ArrayList<Stmt.Case> cases = new ArrayList<Stmt.Case>();
+		boolean changed = expr != stmt.getExpr();
+		for (Stmt.Case c : stmt.getCases()) {
+			List<Stmt> body = transform(c.getBody());
+			if (copy || body != c.getBody()) {
+				c = new Stmt.Case(c.getValue(), body, attributes(c));
+				changed = true;
+			}
+			cases.add(c);
+		}
+		if (!copy && !changed) {
+			return stmt;
+		}
+		return new Stmt.Switch(expr, cases, attributes(stmt));
+	}
+
+	/**
+	 * Transform the target of an assignment. The variable at its root is never
+	 * changed, but any index expressions within it may be.
+	 *
+	 * @param lval
+	 * @return
+	 */
+	public Expr.LVal transformLVal(Expr.LVal lval) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) lval;
+			Expr source = transformLVal((Expr.LVal) e.getSource());
+			Expr index = transform(e.getIndex());
+			if (!copy && source == e.getSource() && index == e.getIndex()) {
+				return e;
+			}
+			return new Expr.IndexOf(source, index, attributes(e));
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) lval;
+			Expr source = transformLVal((Expr.LVal) e.getSource());
+			if (!copy && source == e.getSource()) {
+				return e;
+			}
+			return new Expr.RecordAccess(source, e.getName(), attributes(e));
+		} else if (copy) {
+			Expr.Variable v = (Expr.Variable) lval;
+			return new Expr.Variable(v.getName(), attributes(v));
+		} else {
+			return lval;
+		}
+	}
+
+	public Expr transform(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return transform((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Literal) {
+			return transform((Expr.Literal) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			return transform((Expr.IndexOf) expr);
+		} else if (expr instanceof Expr.Invoke) {
+			return transform((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			return transform((Expr.ArrayGenerator) expr);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			return transform((Expr.ArrayInitialiser) expr);
+		} else if (expr instanceof Expr.RecordAccess) {
+			return transform((Expr.RecordAccess) expr);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			return transform((Expr.RecordConstructor) expr);
+		} else if (expr instanceof Expr.Unary) {
+			return transform((Expr.Unary) expr);
+		} else if (expr instanceof Expr.Variable) {
+			return transform((Expr.Variable) expr);
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+			return null;
+		}
+	}
+
+	public Expr transform(Expr.Binary expr) {
+		Expr lhs = transform(expr.getLhs());
+		Expr rhs = transform(expr.getRhs());
+		if (!copy && lhs == expr.getLhs() && rhs == expr.getRhs()) {
+			return expr;
+		}
+		return new Expr.Binary(expr.getOp(), lhs, rhs, attributes(expr));
+	}
+
+	public Expr transform(Expr.IndexOf expr) {
+		Expr source = transform(expr.getSource());
+		Expr index = transform(expr.getIndex());
+		if (!copy && source == expr.getSource() && index == expr.getIndex()) {
+			return expr;
+		}
+		return new Expr.IndexOf(source, index, attributes(expr));
+	}
+
+	public Expr transform(Expr.Invoke expr) {
+		List<Expr> arguments = transformAll(expr.getArguments());
+		if (!copy && arguments == expr.getArguments()) {
+			return expr;
+		}
+		return new Expr.Invoke(expr.getName(), arguments, attributes(expr));
+	}
+
+	public Expr transform(Expr.ArrayGenerator expr) {
+		Expr value = transform(expr.getValue());
+		Expr size = transform(expr.getSize());
+		if (!copy && value == expr.getValue() && size == expr.getSize()) {
+			return expr;
+		}
+		return new Expr.ArrayGenerator(value, size, attributes(expr));
+	}
+
+	public Expr transform(Expr.ArrayInitialiser expr) {
+		List<Expr> arguments = transformAll(expr.getArguments());
+		if (!copy && arguments == expr.getArguments()) {
+			return expr;
+		}
+		return new Expr.ArrayInitialiser(arguments, attributes(expr));
+	}
+
+	public Expr transform(Expr.RecordAccess expr) {
+		Expr source = transform(expr.getSource());
+		if (!copy && source == expr.getSource()) {
+			return expr;
+		}
+		return new Expr.RecordAccess(source, expr.getName(), attributes(expr));
+	}
+
+	public Expr transform(Expr.RecordConstructor expr) {
+		ArrayList<Pair<String, Expr>> fields = new ArrayList<Pair<String, Expr>>();
+		boolean changed = false;
+		for (Pair<String, Expr> field : expr.getFields()) {
+			Expr e = transform(field.second());
+			changed |= e != field.second();
+			fields.add(new Pair<String, Expr>(field.first(), e));
+		}
+		if (!copy && !changed) {
+			return expr;
+		}
+		return new Expr.RecordConstructor(fields, attributes(expr));
+	}
+
+	public Expr transform(Expr.Unary expr) {
+		Expr e = transform(expr.getExpr());
+		if (!copy && e == expr.getExpr()) {
+			return expr;
+		}
+		return new Expr.Unary(expr.getOp(), e, attributes(expr));
+	}
+
+	public Expr transform(Expr.Literal expr) {
+		return copy ? new Expr.Literal(expr.getValue(), attributes(expr)) : expr;
+	}
+
+	public Expr transform(Expr.Variable expr) {
+		return copy ? new Expr.Variable(expr.getName(), attributes(expr)) : expr;
+	}
+
+	/**
+	 * Transform a list of expressions (e.g. the arguments of an invocation). If
+	 * no expression is changed, then the original list is returned.
+	 *
+	 * @param exprs
+	 * @return
+	 */
+	public List<Expr> transformAll(List<Expr> exprs) {
+		ArrayList<Expr> result = new ArrayList<Expr>();
+		for (Expr e : exprs) {
+			result.add(transform(e));
+		}
+		return !copy && sameElements(exprs, result) ? exprs : result;
+	}
+
+	/**
+	 * Determine the type of a given expression, as determined by the type
+	 * checker, with any named types expanded.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	protected Type typeOf(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		return attr == null ? null : expand(attr.type);
+	}
+
+	/**
+	 * Expand a named type into its definition.
+	 *
+	 * @param type
+	 * @return
+	 */
+	protected Type expand(Type type) {
+		while (type instanceof Type.Named) {
+			Type body = null;
+			for (WhileFile.Decl d : file.declarations) {
+				if (d instanceof WhileFile.TypeDecl && d.name().equals(((Type.Named) type).getName())) {
+					body = ((WhileFile.TypeDecl) d).getType();
+				}
+			}
+			type = body;
+		}
+		return type;
+	}
+
+	/**
+	 * Determine the names of the parameters of a given method, and of every
+	 * variable declared within its body. A pass which introduces variables into
+	 * the method must choose names apart from these.
+	 *
+	 * @param method
+	 * @return
+	 */
+	protected static Set<String> declaredNames(WhileFile.MethodDecl method) {
+		HashSet<String> names = new HashSet<String>();
+		for (WhileFile.Parameter parameter : method.getParameters()) {
+			names.add(parameter.name());
+		}
+		declaredNames(method.getBody(), names);
+		return names;
+	}
+
+	private static void declaredNames(List<Stmt> block, Set<String> names) {
+		for (Stmt stmt : block) {
+			if (stmt instanceof Stmt.VariableDeclaration) {
+				names.add(((Stmt.VariableDeclaration) stmt).getName());
+			} else if (stmt instanceof Stmt.IfElse) {
+				declaredNames(((Stmt.IfElse) stmt).getTrueBranch(), names);
+				declaredNames(((Stmt.IfElse) stmt).getFalseBranch(), names);
+			} else if (stmt instanceof Stmt.While) {
+				declaredNames(((Stmt.While) stmt).getBody(), names);
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				if (s.getDeclaration() != null) {
+					names.add(s.getDeclaration().getName());
+				}
+				declaredNames(s.getBody(), names);
+			} else if (stmt instanceof Stmt.Switch) {
+				for (Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+					declaredNames(c.getBody(), names);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the attributes of a given AST node, such that they can be attached to
+	 * a node which replaces it. Only the source location and type are retained,
+	 * since any other attributes are computed from the node's context (e.g. the
+	 * frame layout of an enclosing method) and may not hold for the new node.
+	 *
+	 * @param element
+	 * @return
+	 */
+	protected static Attribute[] attributes(SyntacticElement element) {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (Attribute attribute : element.attributes()) {
+			if (attribute instanceof Attribute.Source || attribute instanceof Attribute.Type) {
+				attributes.add(attribute);
+			}
+		}
+		return attributes.toArray(new Attribute[attributes.size()]);
+	}
+
+	private static boolean sameElements(List<?> l1, List<?> l2) {
+		if (l1.size() != l2.size()) {
+			return false;
+		}
+		for (int i = 0; i != l1.size(); ++i) {
+			if (l1.get(i) != l2.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
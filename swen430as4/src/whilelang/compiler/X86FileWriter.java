@@ -143,6 +143,10 @@ public class X86FileWriter {
 		// local variables for this method.
 		int widthOfLocals = determineCalleeStackFrameWidth(md);
 		allocateSpaceOnStack(widthOfLocals, context);
+		// Add the entry label. This is where recursive calls in tail position
+		// will jump to, since they can reuse the current stack frame.
+		context = context.setEntry(md, "label" + labelIndex++);
+		instructions.add(new Instruction.Label(context.entryLabel()));
 		// translate the statements which make up the body of this method.
 		translate(md.getBody(), context);
 		// Add the return label. This is where any return statements in the
@@ -488,7 +492,10 @@ public class X86FileWriter {
 		List<Instruction> instructions = context.instructions();
 		Expr rv = statement.getExpr();
 		// Handle return values (if applicable)
-		if (rv != null) {
+		if (rv instanceof Expr.Invoke && ((Expr.Invoke) rv).getName().equals(context.method().getName())) {
+			translateTailCall((Expr.Invoke) rv, context);
+			return;
+		} else if (rv != null) {
 			// Determine the offset within the stack of this local variable.
 			MemoryLocation loc = context.getVariableLocation("$");
 			// Translate right-hand side and load into variable location
@@ -499,6 +506,37 @@ public class X86FileWriter {
 		instructions.add(new Instruction.Addr(Instruction.AddrOp.jmp, context.exitLabel()));
 	}
 
+	/**
+	 * Translate a recursive call in tail position. Since the current stack frame
+	 * is no longer needed, the arguments simply overwrite the parameters (which
+	 * live in the caller's part of the frame) and we branch back to the start of
+	 * the method body. Thus, no call is made and the stack does not grow. The
+	 * arguments are first evaluated into temporary space on the stack, since they
+	 * may refer to the parameters being overwritten.
+	 *
+	 * @param e
+	 * @param context
+	 */
+	public void translateTailCall(Expr.Invoke e, Context context) {
+		List<Instruction> instructions = context.instructions();
+		List<WhileFile.Parameter> parameters = context.method().getParameters();
+		List<Expr> arguments = e.getArguments();
+		// First, translate the arguments into temporary space
+		int width = allocateSpaceOnStack(arguments.size() * WORD_SIZE, context);
+		for (int i = 0; i != arguments.size(); ++i) {
+			Location tmp = new MemoryLocation(HSP, i * WORD_SIZE);
+			translate(arguments.get(i), tmp, context);
+		}
+		// Second, overwrite the parameters
+		for (int i = 0; i != parameters.size(); ++i) {
+			Location tmp = new MemoryLocation(HSP, i * WORD_SIZE);
+			bitwiseCopy(tmp, context.getVariableLocation(parameters.get(i).getName()), context);
+		}
+		freeSpaceOnStack(width, context);
+		// Finally, branch back to the start of the method body
+		instructions.add(new Instruction.Addr(Instruction.AddrOp.jmp, context.entryLabel()));
+	}
+
 	/**
 	 * Translate a variable declaration in the While language to a sequence of
 	 * machine instructions. This will only actually correspond to any instructions
@@ -2416,6 +2454,8 @@ public class X86FileWriter {
 		private final X86File.Data data;
 		private List<Register> freeRegisters;
 		private String exitLabel;
+		private WhileFile.MethodDecl method;
+		private String entryLabel;
 		private final Stack<String> breakLabels;
 		private final Stack<String> continueLabels;
 
@@ -2441,6 +2481,8 @@ public class X86FileWriter {
 			this.data = other.data;
 			this.freeRegisters = other.freeRegisters;
 			this.exitLabel = other.exitLabel;
+			this.method = other.method;
+			this.entryLabel = other.entryLabel;
 			this.breakLabels = other.breakLabels;
 			this.continueLabels = other.continueLabels;
 		}
@@ -2507,6 +2549,40 @@ public class X86FileWriter {
 			return c;
 		}
 
+		/**
+		 * Set the method being translated, and the label marking the start of
+		 * its body.
+		 *
+		 * @param method
+		 * @param label
+		 * @return
+		 */
+		public Context setEntry(WhileFile.MethodDecl method, String label) {
+			Context c = new Context(this);
+			c.method = method;
+			c.entryLabel = label;
+			return c;
+		}
+
+		/**
+		 * Get the method being translated.
+		 *
+		 * @return
+		 */
+		public WhileFile.MethodDecl method() {
+			return method;
+		}
+
+		/**
+		 * Get target label for the start of the method body. This is necessary
+		 * when implementing recursive calls in tail position.
+		 *
+		 * @return
+		 */
+		public String entryLabel() {
+			return entryLabel;
+		}
+
 		public List<Instruction> instructions() {
 			return code.instructions;
 		}
@@ -78,7 +78,7 @@ public abstract class AbstractX86ValidTests {
 	protected void compileTest(String testname) throws IOException {
 		String sourceFileName = WHILE_SRC_DIR + testname + ".while";
 		String asmFileName = WHILE_SRC_DIR + testname + ".s";
-		WhileCompiler compiler = new WhileCompiler(sourceFileName);
+		WhileCompiler compiler = new WhileCompiler(sourceFileName, optimise());
 		WhileFile ast = compiler.compile();
 		X86File file = new X86FileWriter(TARGET).build(ast);
 		new AsmFileWriter(new File(asmFileName)).write(file);
@@ -86,6 +86,16 @@ public abstract class AbstractX86ValidTests {
 		compileWithGcc(WHILE_SRC_DIR, testname, asmFileName, RUNTIME_LIBRARY);
 	}
 
+	/**
+	 * Determine whether or not test programs should be optimised before being
+	 * compiled into assembly.
+	 *
+	 * @return
+	 */
+	protected boolean optimise() {
+		return false;
+	}
+
 	public void compileWithGcc(String dir, String target, String... files) {
 		try {
 			String tmp = "gcc -Wno-format -o " + dir + target;
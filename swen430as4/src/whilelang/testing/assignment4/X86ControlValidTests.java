@@ -29,6 +29,13 @@ public class X86ControlValidTests extends AbstractX86ValidTests {
 			"Switch_Valid_9",
 			"While_Valid_7",
 			"While_Valid_8",
+			"Constant_Valid_1",
+			"Constant_Valid_2",
+			"Partial_Valid_1",
+			"Partial_Valid_2",
+			"Inline_Valid_1",
+			"Invariant_Valid_1",
+			"Invariant_Valid_2",
 	};
 
 	public X86ControlValidTests(String testName) {
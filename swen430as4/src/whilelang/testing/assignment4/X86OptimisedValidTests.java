@@ -0,0 +1,33 @@
+package whilelang.testing.assignment4;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs every test suitable for the x86 backend after the program has been
+ * optimised.
+ */
+public class X86OptimisedValidTests extends AbstractX86ValidTests {
+
+	public X86OptimisedValidTests(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected boolean optimise() {
+		return true;
+	}
+
+	// Here we enumerate all available test cases.
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> testcases = new ArrayList<>();
+		testcases.addAll(X86FundamentalValidTests.data());
+		testcases.addAll(X86PrimitiveCompoundValidTests.data());
+		testcases.addAll(X86NestedCompoundValidTests.data());
+		testcases.addAll(X86ControlValidTests.data());
+		return testcases;
+	}
+}
@@ -38,6 +38,7 @@ public class X86PrimitiveCompoundValidTests extends AbstractX86ValidTests {
 			"IfElse_Valid_1",
 			"IntEquals_Valid_1",
 			"Method_Valid_1",
+			"Method_Valid_4",
 			"RecordAccess_Valid_2",
 			"RecordAssign_Valid_1",
 			"RecordAssign_Valid_2",
@@ -0,0 +1,203 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.WhileFile;
+
+/**
+ * Responsible for determining which functions are <i>pure</i>. Since values in
+ * While have value semantics, the only side effect a function can have is to
+ * print something. Thus, a function is pure if it contains no print
+ * statements, and invokes only functions which are themselves pure. The result
+ * of a pure function depends only on its arguments, so calls to it can be
+ * memoised.
+ */
+public class EffectAnalysis {
+	private WhileFile file;
+
+	/**
+	 * The functions invoked by the function currently being analysed.
+	 */
+	private Set<String> callees;
+
+	/**
+	 * Indicates whether the function currently being analysed prints
+	 * something.
+	 */
+	private boolean prints;
+
+	/**
+	 * Maps each function analysed to the functions it invokes directly.
+	 */
+	private HashMap<String, Set<String>> calls;
+
+	/**
+	 * Determine the names of all pure functions in a given file.
+	 *
+	 * @param wf
+	 * @return
+	 */
+	public Set<String> pureFunctions(WhileFile wf) {
+		this.file = wf;
+		calls = new HashMap<String, Set<String>>();
+		HashSet<String> impure = new HashSet<String>();
+
+		// First, determine the direct effects of each function
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl fd = (WhileFile.MethodDecl) declaration;
+				callees = new HashSet<String>();
+				prints = false;
+				check(fd.getBody());
+				calls.put(fd.getName(), callees);
+				if (prints) {
+					impure.add(fd.getName());
+				}
+			}
+		}
+
+		// Second, propagate impurity back through the call graph until a
+		// fixed point is reached.
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Map.Entry<String, Set<String>> e : calls.entrySet()) {
+				if (!impure.contains(e.getKey())) {
+					for (String callee : e.getValue()) {
+						if (impure.contains(callee) || !calls.containsKey(callee)) {
+							impure.add(e.getKey());
+							changed = true;
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		HashSet<String> pure = new HashSet<String>(calls.keySet());
+		pure.removeAll(impure);
+		return pure;
+	}
+
+	/**
+	 * Get the functions directly invoked by each function in the file most
+	 * recently analysed by <code>pureFunctions()</code>.
+	 *
+	 * @return
+	 */
+	public Map<String, Set<String>> callGraph() {
+		return calls;
+	}
+
+	private void check(List<Stmt> statements) {
+		for (Stmt s : statements) {
+			check(s);
+		}
+	}
+
+	private void check(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			check(((Stmt.Assert) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Print) {
+			prints = true;
+			check(((Stmt.Print) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			check(s.getLhs());
+			check(s.getRhs());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			check(((Stmt.VariableDeclaration) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Return) {
+			check(((Stmt.Return) stmt).getExpr());
+		} else if (stmt instanceof Expr.Invoke) {
+			check((Expr) stmt);
+		} else if (stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) {
+			// These have no effects
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			check(s.getCondition());
+			check(s.getTrueBranch());
+			check(s.getFalseBranch());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			check(s.getDeclaration());
+			check(s.getCondition());
+			check(s.getIncrement());
+			check(s.getBody());
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			check(s.getCondition());
+			check(s.getBody());
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			check(s.getExpr());
+			for (Stmt.Case c : s.getCases()) {
+				check(c.getBody());
+			}
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+		}
+	}
+
+	private void check(Expr expr) {
+		if (expr == null || expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+			// These have no effects
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			check(e.getLhs());
+			check(e.getRhs());
+		} else if (expr instanceof Expr.Unary) {
+			check(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			check(e.getSource());
+			check(e.getIndex());
+		} else if (expr instanceof Expr.RecordAccess) {
+			check(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			check(e.getValue());
+			check(e.getSize());
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				check(e);
+			}
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> e : ((Expr.RecordConstructor) expr).getFields()) {
+				check(e.second());
+			}
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			callees.add(e.getName());
+			for (Expr arg : e.getArguments()) {
+				check(arg);
+			}
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+}
@@ -43,13 +43,21 @@ public class Interpreter {
 	private HashMap<String, WhileFile.Decl> declarations;
 	private WhileFile file;
 
+	/**
+	 * The maximum number of steps which a call to <code>invoke()</code> may
+	 * take, or zero if there is no limit. Executing a block takes one step, and
+	 * allocating or copying an array takes one step for each element.
+	 */
+	private long stepLimit;
+
+	/**
+	 * The number of steps taken by the current call to <code>invoke()</code>.
+	 */
+	private long steps;
+
 	public void run(WhileFile wf) {
 		// First, initialise the map of declaration names to their bodies.
-		declarations = new HashMap<String,WhileFile.Decl>();
-		for(WhileFile.Decl decl : wf.declarations) {
-			declarations.put(decl.name(), decl);
-		}
-		this.file = wf;
+		initialise(wf);
 
 		// Second, pick the main method (if one exits) and execute it
 		WhileFile.Decl main = declarations.get("main");
@@ -61,6 +69,50 @@ public class Interpreter {
 		}
 	}
 
+	/**
+	 * Limit the number of steps which may be taken by each subsequent call to
+	 * <code>invoke()</code>. Since every loop iteration and function call
+	 * executes a block, and every array element allocated or copied is counted,
+	 * this bounds both the time and the memory taken by any call, even one
+	 * which would not terminate. A limit of zero means no limit is imposed.
+	 *
+	 * @param limit
+	 */
+	public void setStepLimit(long limit) {
+		this.stepLimit = limit;
+	}
+
+	/**
+	 * Execute a given function of a source file on given argument values,
+	 * returning its result. This is used to evaluate calls at compile time (see
+	 * <code>PartialEvaluation</code>). An exception is thrown if the function
+	 * fails (e.g. an assertion does not hold), or if the step limit is
+	 * exceeded.
+	 *
+	 * @param wf
+	 *            The source file declaring the function.
+	 * @param name
+	 *            The name of the function to execute.
+	 * @param arguments
+	 *            Array of argument values.
+	 * @return
+	 */
+	public Object invoke(WhileFile wf, String name, Object... arguments) {
+		if(file != wf) {
+			initialise(wf);
+		}
+		steps = 0;
+		return execute((WhileFile.MethodDecl) declarations.get(name), arguments);
+	}
+
+	private void initialise(WhileFile wf) {
+		declarations = new HashMap<String,WhileFile.Decl>();
+		for(WhileFile.Decl decl : wf.declarations) {
+			declarations.put(decl.name(), decl);
+		}
+		this.file = wf;
+	}
+
 	/**
 	 * Execute a given function with the given argument values. If the number of
 	 * arguments is incorrect, then an exception is thrown.
@@ -79,19 +131,69 @@ public class Interpreter {
 							+ function.getName() + "\"");
 		}
 
-		// Second, construct the stack frame in which this function will
-		// execute.
-		HashMap<String,Object> frame = new HashMap<String,Object>();
-		for(int i=0;i!=arguments.length;++i) {
-			WhileFile.Parameter parameter = function.getParameters().get(i);
-			frame.put(parameter.getName(),arguments[i]);
+		// Second, execute the function body! A call in tail position is
+		// returned to here rather than being executed by the caller, such
+		// that the stack does not grow.
+		while(true) {
+			// Construct the stack frame in which the function will execute.
+			HashMap<String,Object> frame = new HashMap<String,Object>();
+			for(int i=0;i!=arguments.length;++i) {
+				WhileFile.Parameter parameter = function.getParameters().get(i);
+				frame.put(parameter.getName(),arguments[i]);
+			}
+			Object r = execute(function.getBody(),frame);
+			if(r instanceof TailCall) {
+				function = ((TailCall) r).function;
+				arguments = ((TailCall) r).arguments;
+			} else {
+				return r;
+			}
+		}
+	}
+
+	/**
+	 * Signals that a call to <code>invoke()</code> has exceeded the step limit.
+	 * No stack trace is recorded, as this is never needed.
+	 */
+	public static final class StepLimitExceeded extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private StepLimitExceeded() {
+			super("step limit exceeded", null, false, false);
+		}
+	}
+
+	/**
+	 * Account for a given number of steps taken by the current call to
+	 * <code>invoke()</code>. This is done before the work is performed, so that
+	 * (for example) an array too large to allocate is never attempted.
+	 *
+	 * @param cost
+	 */
+	private void charge(long cost) {
+		steps += cost;
+		if(stepLimit != 0 && steps > stepLimit) {
+			throw new StepLimitExceeded();
 		}
+	}
+
+	/**
+	 * Represents a call in tail position which is yet to be executed. This is
+	 * returned from the body of the calling function, and then executed in its
+	 * place.
+	 */
+	private static final class TailCall {
+		private final WhileFile.MethodDecl function;
+		private final Object[] arguments;
 
-		// Third, execute the function body!
-		return execute(function.getBody(),frame);
+		private TailCall(WhileFile.MethodDecl function, Object[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
 	}
 
 	private Object execute(List<Stmt> block, HashMap<String,Object> frame) {
+		charge(1);
 		for(int i=0;i!=block.size();i=i+1) {
 			Object r = execute(block.get(i),frame);
 			if(r != null) {
@@ -252,7 +354,13 @@ public class Interpreter {
 
 	private Object execute(Stmt.Return stmt, HashMap<String,Object> frame) {
 		Expr re = stmt.getExpr();
-		if(re != null) {
+		if(re instanceof Expr.Invoke) {
+			// This is a tail call, hence it can be executed once the current
+			// frame has been discarded.
+			Expr.Invoke ie = (Expr.Invoke) re;
+			WhileFile.MethodDecl fun = (WhileFile.MethodDecl) declarations.get(ie.getName());
+			return new TailCall(fun, evaluate(ie.getArguments(), frame));
+		} else if(re != null) {
 			return execute(re,frame);
 		} else {
 			return Collections.EMPTY_SET; // used to indicate a function has returned
@@ -375,16 +483,20 @@ public class Interpreter {
 	}
 
 	private Object execute(Expr.Invoke expr, HashMap<String, Object> frame) {
-		List<Expr> arguments = expr.getArguments();
+		Object[] values = evaluate(expr.getArguments(), frame);
+		WhileFile.MethodDecl fun = (WhileFile.MethodDecl) declarations.get(expr
+				.getName());
+		return execute(fun, values);
+	}
+
+	private Object[] evaluate(List<Expr> arguments, HashMap<String, Object> frame) {
 		Object[] values = new Object[arguments.size()];
 		for (int i = 0; i != values.length; ++i) {
 			// We need to perform a deep clone here to ensure the value
 			// semantics used in While are preserved.
 			values[i] = deepClone(execute(arguments.get(i), frame));
 		}
-		WhileFile.MethodDecl fun = (WhileFile.MethodDecl) declarations.get(expr
-				.getName());
-		return execute(fun, values);
+		return values;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -403,6 +515,7 @@ public class Interpreter {
 	private Object execute(Expr.ArrayGenerator expr, HashMap<String, Object> frame) {
 		Object value = execute(expr.getValue(),frame);
 		int size = (Integer) execute(expr.getSize(),frame);
+		charge(Math.max(size, 0));
 		ArrayList<Object> ls = new ArrayList<Object>();
 		for (int i = 0; i < size; ++i) {
 			ls.add(value);
@@ -413,6 +526,7 @@ public class Interpreter {
 	private Object execute(Expr.ArrayInitialiser expr,
 			HashMap<String, Object> frame) {
 		List<Expr> es = expr.getArguments();
+		charge(es.size());
 		ArrayList<Object> ls = new ArrayList<Object>();
 		for (int i = 0; i != es.size(); ++i) {
 			ls.add(execute(es.get(i), frame));
@@ -472,6 +586,7 @@ public class Interpreter {
 	private Object deepClone(Object o) {
 		if (o instanceof ArrayList) {
 			ArrayList<Object> l = (ArrayList<Object>) o;
+			charge(l.size());
 			ArrayList<Object> n = new ArrayList<Object>();
 			for (int i = 0; i != l.size(); ++i) {
 				n.add(deepClone(l.get(i)));